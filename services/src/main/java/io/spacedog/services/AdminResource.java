@@ -3,7 +3,13 @@
  */
 package io.spacedog.services;
 
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+
 import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+import net.codestory.http.Context;
 import net.codestory.http.annotations.Get;
 import net.codestory.http.payload.Payload;
 
@@ -26,6 +32,60 @@ public class AdminResource extends Resource {
 		throw Exceptions.runtime("this route always returns http code 500");
 	}
 
+	@Get("/1/admin/caches")
+	@Get("/1/admin/caches/")
+	public Payload getCaches() {
+		SpaceContext.checkSuperDogCredentials();
+		CredentialsResource credentials = CredentialsResource.get();
+		ObjectNode caches = Json.object(//
+				"credentialsTokens", toJson(credentials.tokenCache()));
+
+		if (credentials.passwordCache().isPresent())
+			caches.set("credentialsPasswords", toJson(credentials.passwordCache().get().cache()));
+
+		caches.set("settings", toJson(SettingsResource.get().cache().cache()));
+
+		return JsonPayload.json(caches);
+	}
+
+	@Get("/1/admin/hashing")
+	@Get("/1/admin/hashing/")
+	public Payload getHashing() {
+		SpaceContext.checkSuperDogCredentials();
+		return JsonPayload.json(PasswordHasher.get().toJson());
+	}
+
+	@Get("/1/admin/logging")
+	@Get("/1/admin/logging/")
+	public Payload getLogging() {
+		SpaceContext.checkSuperDogCredentials();
+		return JsonPayload.json(LogWriter.get().toJson());
+	}
+
+	@Get("/1/admin/metrics")
+	@Get("/1/admin/metrics/")
+	public Payload getMetrics(Context context) {
+		SpaceContext.checkSuperDogCredentials();
+
+		if ("prometheus".equals(context.get("format")))
+			return new Payload(Metrics.PROMETHEUS_CONTENT_TYPE, Metrics.get().toPrometheus());
+
+		return JsonPayload.json(Metrics.get().toJson());
+	}
+
+	//
+	// Implementation
+	//
+
+	private ObjectNode toJson(Cache<?, ?> cache) {
+		CacheStats stats = cache.stats();
+		return Json.object("size", cache.size(), //
+				"hitCount", stats.hitCount(), //
+				"missCount", stats.missCount(), //
+				"hitRate", stats.hitRate(), //
+				"evictionCount", stats.evictionCount());
+	}
+
 	//
 	// Singleton
 	//
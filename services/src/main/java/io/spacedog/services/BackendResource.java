@@ -68,6 +68,7 @@ public class BackendResource extends Resource {
 
 		CredentialsResource.get().deleteAll(credentials.target());
 		Start.get().getElasticClient().deleteAllIndices(credentials.target());
+		SettingsResource.get().invalidateCache(credentials.target());
 
 		if (!SpaceContext.isTest() && !Start.get().configuration().isOffline()) {
 			FileResource.get().deleteAll();
@@ -2,24 +2,46 @@ package io.spacedog.services;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import io.spacedog.services.JsonPayload.InputStreamingOutput;
+import io.spacedog.utils.BatchSettings;
+import io.spacedog.utils.Exceptions;
 import io.spacedog.utils.Json;
 import io.spacedog.utils.JsonBuilder;
 import io.spacedog.utils.SpaceException;
+import io.spacedog.utils.SpaceHeaders;
 import net.codestory.http.Context;
 import net.codestory.http.Cookie;
 import net.codestory.http.Cookies;
@@ -32,12 +54,28 @@ import net.codestory.http.annotations.Prefix;
 import net.codestory.http.constants.HttpStatus;
 import net.codestory.http.payload.Payload;
 
+/**
+ * Runs a list of sub requests in a single http request. Sub requests are run
+ * one after the other, or in parallel on a bounded pool of threads if asked
+ * to or if they are all GET requests. Parallel sub requests get a copy of the
+ * batch request space context. Consecutive data object sub requests are run
+ * with a single elasticsearch call, see {@link DataBatch}. Responses are
+ * always in sub request order.
+ */
 @Prefix("/1/batch")
 public class BatchResource extends Resource {
 
 	// query parameter names
 
 	private static final String STOP_ON_ERROR_QUERY_PARAM = "stopOnError";
+	private static final String PARALLEL_QUERY_PARAM = "parallel";
+
+	// streamed batches not started after this delay release their lease
+	private static final long STREAM_LEASE_TIMEOUT = 60000;
+
+	private ThreadPoolExecutor executor;
+	// per backend, leases of streamed batches in progress
+	private ConcurrentMap<String, StreamLeases> streams = Maps.newConcurrentMap();
 
 	//
 	// Routes
@@ -54,37 +92,80 @@ public class BatchResource extends Resource {
 					"batch are limited to 10 sub requests");
 
 		boolean stopOnError = context.query().getBoolean(STOP_ON_ERROR_QUERY_PARAM, false);
+		boolean allGets = true;
+		List<BatchJsonRequestWrapper> wrappers = Lists.newArrayListWithCapacity(requests.size());
+
+		for (JsonNode request : requests) {
+			allGets = allGets && "GET".equalsIgnoreCase(request.path("method").asText());
+			wrappers.add(new BatchJsonRequestWrapper(Json.checkObject(request), context));
+		}
+
+		List<Payload> payloads = execute(wrappers, //
+				isParallel(context, stopOnError, allGets, wrappers.size()), stopOnError);
+
 		JsonBuilder<ObjectNode> batchPayload = JsonPayload.builder().array("responses");
 
-		for (int i = 0; i < requests.size(); i++) {
+		for (int i = 0; i < payloads.size(); i++)
+			batchPayload.node(toResponse(wrappers.get(i), payloads.get(i)));
 
-			Payload requestPayload = null;
-			BatchJsonRequestWrapper requestWrapper = new BatchJsonRequestWrapper(//
-					Json.checkObject(requests.get(i)), context);
+		return JsonPayload.json(batchPayload);
+	}
 
-			try {
-				requestPayload = Start.get().executeRequest(requestWrapper, null);
-			} catch (Throwable t) {
-				requestPayload = JsonPayload.error(t);
-			}
+	/**
+	 * Runs a json array of sub requests of any size. The array is read and
+	 * run by windows of sub requests and responses are written as soon as
+	 * available, so that memory does not depend on the batch size. Backends
+	 * are limited in the number of sub requests per streamed batch and in
+	 * the number of streamed batches running at the same time.
+	 */
+	@Post("/_stream")
+	@Post("/_stream/")
+	public Payload postStream(Context context) throws IOException {
+
+		String backendId = SpaceContext.target();
+		BatchSettings settings = SettingsResource.get().load(BatchSettings.class);
+		StartConfiguration configuration = Start.get().configuration();
+		int max = Math.min(settings.maxStreamedRequests, configuration.batchStreamMax());
+		boolean stopOnError = context.query().getBoolean(STOP_ON_ERROR_QUERY_PARAM, false);
 
-			if (requestPayload == null)
-				requestPayload = new Payload(HttpStatus.INTERNAL_SERVER_ERROR);
+		StreamLeases leases = streams.computeIfAbsent(backendId, id -> new StreamLeases());
+		Object lease = leases.acquire(settings.maxConcurrentStreams, STREAM_LEASE_TIMEOUT);
+		if (lease == null)
+			throw Exceptions.tooManyRequests(//
+					"too many streamed batches in progress for backend [%s]", backendId);
 
-			if (requestPayload.isSuccess() && "GET".equalsIgnoreCase(requestWrapper.method())) {
+		try {
+			JsonParser parser = Json.mapper().getFactory()//
+					.createParser(context.request().inputStream());
 
-				batchPayload.object()//
-						.put("success", true)//
-						.put("status", requestPayload.code())//
-						.node("content", JsonPayload.toJsonNode(requestPayload))//
-						.end();
-			} else
-				batchPayload.node(JsonPayload.toJsonNode(requestPayload));
+			if (parser.nextToken() != JsonToken.START_ARRAY)
+				throw Exceptions.illegalArgument("batch is not a json array of sub requests");
+
+			// responses are written once this request
+			// space context is removed from this thread
+			SpaceContext spaceContext = SpaceContext.get();
+
+			// the lease expires by itself if this output is never written
+			return new Payload(JsonPayload.JSON_CONTENT_UTF8, (InputStreamingOutput) output -> {
+				try {
+					leases.hold(lease);
+					SpaceContext.call(spaceContext, () -> stream(parser, output, context, //
+							max, configuration.batchStreamWindow(), stopOnError));
+
+				} catch (IOException | RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw Exceptions.runtime(e);
+				} finally {
+					leases.release(lease);
+					parser.close();
+				}
+			});
 
-			if (stopOnError && requestPayload.isError())
-				break;
+		} catch (Throwable t) {
+			leases.release(lease);
+			throw t;
 		}
-		return JsonPayload.json(batchPayload);
 	}
 
 	@Get("")
@@ -93,32 +174,326 @@ public class BatchResource extends Resource {
 
 		ObjectNode response = Json.object();
 		boolean stopOnError = context.query().getBoolean(STOP_ON_ERROR_QUERY_PARAM, false);
+		List<String> keys = Lists.newArrayList();
+		List<BatchJsonRequestWrapper> wrappers = Lists.newArrayList();
 
 		for (String key : context.query().keys()) {
 
-			if (!key.equals(STOP_ON_ERROR_QUERY_PARAM)) {
-				Payload payload = null;
-				BatchJsonRequestWrapper requestWrapper = new BatchJsonRequestWrapper(//
+			if (!key.equals(STOP_ON_ERROR_QUERY_PARAM) && !key.equals(PARALLEL_QUERY_PARAM)) {
+				keys.add(key);
+				wrappers.add(new BatchJsonRequestWrapper(//
 						Json.object("method", "GET", "path", "/1" + context.get(key)), //
-						context);
+						context));
+			}
+		}
 
-				try {
-					payload = Start.get().executeRequest(requestWrapper, null);
-				} catch (Throwable t) {
-					payload = JsonPayload.error(t);
-				}
+		List<Payload> payloads = execute(wrappers, //
+				isParallel(context, stopOnError, true, wrappers.size()), stopOnError);
+
+		for (int i = 0; i < payloads.size(); i++)
+			response.set(keys.get(i), JsonPayload.toJsonNode(payloads.get(i)));
 
-				if (payload == null)
-					payload = new Payload(HttpStatus.INTERNAL_SERVER_ERROR);
+		return JsonPayload.json(response);
+	}
 
-				response.set(key, JsonPayload.toJsonNode(payload));
+	//
+	// Implementation
+	//
 
-				if (payload.isError() && stopOnError)
+	private Void stream(JsonParser parser, OutputStream output, Context context, //
+			int max, int window, boolean stopOnError) throws IOException {
+
+		long start = System.currentTimeMillis();
+		JsonGenerator generator = Json.mapper().getFactory().createGenerator(output);
+		generator.writeStartObject();
+		generator.writeBooleanField("success", true);
+		generator.writeNumberField("status", HttpStatus.OK);
+		generator.writeArrayFieldStart("responses");
+
+		int read = 0;
+		AtomicInteger total = new AtomicInteger();
+		Throwable error = null;
+		List<BatchJsonRequestWrapper> wrappers = Lists.newArrayListWithCapacity(window);
+
+		try {
+			boolean next = true;
+			boolean limitExceeded = false;
+
+			while (next) {
+				wrappers.clear();
+				boolean allGets = true;
+
+				while (wrappers.size() < window //
+						&& (next = parser.nextToken() == JsonToken.START_OBJECT)) {
+
+					if (read++ == max) {
+						// sub requests already read are run anyway
+						limitExceeded = true;
+						next = false;
+						break;
+					}
+
+					ObjectNode request = Json.mapper().readTree(parser);
+					allGets = allGets && "GET".equalsIgnoreCase(request.path("method").asText());
+					wrappers.add(new BatchJsonRequestWrapper(request, context));
+				}
+
+				if (wrappers.isEmpty())
 					break;
+
+				Iterator<BatchJsonRequestWrapper> requests = wrappers.iterator();
+				next = execute(wrappers, isParallel(context, stopOnError, allGets, wrappers.size()), //
+						stopOnError, payload -> {
+							write(generator, toResponse(requests.next(), payload));
+							total.incrementAndGet();
+						}) //
+						&& next;
 			}
+
+			if (limitExceeded)
+				throw new SpaceException("batch-limit-exceeded", HttpStatus.BAD_REQUEST, //
+						"streamed batch are limited to %s sub requests", max);
+
+			if (parser.getCurrentToken() != null //
+					&& parser.getCurrentToken() != JsonToken.END_ARRAY //
+					&& parser.getCurrentToken() != JsonToken.END_OBJECT)
+				throw Exceptions.illegalArgument(//
+						"invalid sub request in batch: [%s] token", parser.getCurrentToken());
+
+		} catch (Throwable t) {
+			error = t;
 		}
 
-		return JsonPayload.json(response);
+		generator.writeEndArray();
+		generator.writeNumberField("total", total.get());
+		generator.writeNumberField("took", System.currentTimeMillis() - start);
+
+		if (error != null) {
+			generator.writeFieldName("error");
+			generator.writeTree(JsonPayload.toJson(error, SpaceContext.isDebug()));
+		}
+
+		generator.writeEndObject();
+		generator.close();
+		return null;
+	}
+
+	private void write(JsonGenerator generator, JsonNode response) {
+		try {
+			generator.writeTree(response);
+			generator.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private JsonNode toResponse(BatchJsonRequestWrapper request, Payload payload) {
+
+		if (payload.isSuccess() && "GET".equalsIgnoreCase(request.method()))
+			return Json.objectBuilder()//
+					.put("success", true)//
+					.put("status", payload.code())//
+					.node("content", JsonPayload.toJsonNode(payload))//
+					.build();
+
+		return JsonPayload.toJsonNode(payload);
+	}
+
+	private boolean isParallel(Context context, boolean stopOnError, boolean allGets, int size) {
+		// stop on error means sub requests are run one after the other,
+		// and batches in parallel batches are not run in parallel to make
+		// sure workers never wait for queued sub requests
+		if (stopOnError || size < 2 || Thread.currentThread() instanceof Worker)
+			return false;
+
+		return context.query().getBoolean(PARALLEL_QUERY_PARAM, allGets);
+	}
+
+	private List<Payload> execute(List<BatchJsonRequestWrapper> requests, //
+			boolean parallel, boolean stopOnError) {
+
+		List<Payload> payloads = Lists.newArrayListWithCapacity(requests.size());
+		execute(requests, parallel, stopOnError, payloads::add);
+		return payloads;
+	}
+
+	/**
+	 * Gives sub request payloads to the specified consumer in sub request
+	 * order, as soon as they are available. Returns false if stopped on
+	 * error.
+	 */
+	private boolean execute(List<BatchJsonRequestWrapper> requests, //
+			boolean parallel, boolean stopOnError, Consumer<Payload> consumer) {
+
+		// with stop on error, sub requests are run one by one
+		// since batched writes can not be stopped halfway
+		List<Callable<List<Payload>>> steps = plan(requests, !stopOnError);
+
+		if (!parallel) {
+			for (Callable<List<Payload>> step : steps) {
+				List<Payload> payloads = call(step);
+				payloads.forEach(consumer);
+
+				if (stopOnError && payloads.get(0).isError())
+					return false;
+			}
+			return true;
+		}
+
+		List<Future<List<Payload>>> futures = Lists.newArrayListWithCapacity(steps.size());
+
+		for (Callable<List<Payload>> step : steps) {
+			SpaceContext spaceContext = SpaceContext.fork();
+			futures.add(executor().submit(//
+					() -> SpaceContext.call(spaceContext, step)));
+		}
+
+		try {
+			for (Future<List<Payload>> future : futures)
+				future.get().forEach(consumer);
+
+		} catch (ExecutionException e) {
+			throw Exceptions.runtime(e.getCause());
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Exceptions.runtime(e, "batch interrupted");
+		}
+
+		return true;
+	}
+
+	/**
+	 * Splits sub requests in steps run one after the other. Runs of data
+	 * object gets or writes are coalesced in a single step if asked to,
+	 * other sub requests are run in their own step.
+	 */
+	private List<Callable<List<Payload>>> plan(List<BatchJsonRequestWrapper> requests, boolean coalesce) {
+
+		List<Callable<List<Payload>>> steps = Lists.newArrayList();
+		List<DataBatch.Item> run = Lists.newArrayList();
+
+		for (BatchJsonRequestWrapper request : requests) {
+			DataBatch.Item item = coalesce ? DataBatch.toItem(request) : null;
+
+			if (item == null || (!run.isEmpty() && run.get(0).kind() != item.kind())) {
+				addRun(steps, run);
+				run = Lists.newArrayList();
+			}
+
+			if (item == null)
+				steps.add(() -> Collections.singletonList(execute(request)));
+			else
+				run.add(item);
+		}
+
+		addRun(steps, run);
+		return steps;
+	}
+
+	private void addRun(List<Callable<List<Payload>>> steps, List<DataBatch.Item> run) {
+		if (run.size() == 1) {
+			BatchJsonRequestWrapper request = run.get(0).request();
+			steps.add(() -> Collections.singletonList(execute(request)));
+
+		} else if (run.size() > 1)
+			steps.add(() -> DataBatch.execute(run, this::execute));
+	}
+
+	private List<Payload> call(Callable<List<Payload>> step) {
+		try {
+			return step.call();
+		} catch (Exception e) {
+			throw Exceptions.runtime(e);
+		}
+	}
+
+	private Payload execute(BatchJsonRequestWrapper request) {
+
+		Payload payload = null;
+
+		try {
+			// sub requests share the batch request credentials
+			// unless they have their own authorization header
+			Optional<String> authorization = request.ownHeader(SpaceHeaders.AUTHORIZATION);
+
+			payload = authorization.isPresent() //
+					? SpaceContext.call(SpaceContext.fork(authorization.get()), //
+							() -> Start.get().executeRequest(request, null))
+					: Start.get().executeRequest(request, null);
+
+		} catch (Throwable t) {
+			payload = JsonPayload.error(t);
+		}
+
+		return payload == null //
+				? new Payload(HttpStatus.INTERNAL_SERVER_ERROR)
+				: payload;
+	}
+
+	private synchronized ThreadPoolExecutor executor() {
+		if (executor == null) {
+			StartConfiguration configuration = Start.get().configuration();
+			// when the queue is full, sub requests are run
+			// by the batch request thread
+			executor = new ThreadPoolExecutor(//
+					configuration.batchThreads(), configuration.batchThreads(), //
+					0, TimeUnit.MILLISECONDS, //
+					new ArrayBlockingQueue<>(configuration.batchQueueSize()), //
+					new WorkerFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return executor;
+	}
+
+	/**
+	 * Leases of the streamed batches of a backend. Leases are acquired when
+	 * streamed batches are accepted and expire if their batch is not started
+	 * in time, for example when their payload is never written, so that they
+	 * never block other streamed batches forever. Started batches hold their
+	 * lease until released.
+	 */
+	private static class StreamLeases {
+
+		// per lease, expiration time in milliseconds
+		private Map<Object, Long> expirations = Maps.newHashMap();
+
+		private synchronized Object acquire(int max, long timeout) {
+			long now = System.currentTimeMillis();
+			expirations.values().removeIf(expiration -> expiration < now);
+
+			if (expirations.size() >= max)
+				return null;
+
+			Object lease = new Object();
+			expirations.put(lease, now + timeout);
+			return lease;
+		}
+
+		private synchronized void hold(Object lease) {
+			expirations.put(lease, Long.MAX_VALUE);
+		}
+
+		private synchronized void release(Object lease) {
+			expirations.remove(lease);
+		}
+	}
+
+	private static class Worker extends Thread {
+
+		private Worker(Runnable runnable, String name) {
+			super(runnable, name);
+			setDaemon(true);
+		}
+	}
+
+	private static class WorkerFactory implements ThreadFactory {
+
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			return new Worker(runnable, "batch-worker-" + count.incrementAndGet());
+		}
 	}
 
 	//
@@ -188,6 +563,17 @@ public class BatchResource extends Resource {
 			return context.request().header(name);
 		}
 
+		// header of this sub request if any, not of the batch request
+		public Optional<String> ownHeader(String name) {
+			Iterator<Entry<String, JsonNode>> headers = request.path("headers").fields();
+			while (headers.hasNext()) {
+				Entry<String, JsonNode> header = headers.next();
+				if (header.getKey().equalsIgnoreCase(name))
+					return Optional.of(header.getValue().asText());
+			}
+			return Optional.empty();
+		}
+
 		@Override
 		public InputStream inputStream() throws IOException {
 			throw new UnsupportedOperationException(//
@@ -270,5 +656,6 @@ public class BatchResource extends Resource {
 	}
 
 	private BatchResource() {
+		SettingsResource.get().registerSettingsClass(BatchSettings.class);
 	}
 }
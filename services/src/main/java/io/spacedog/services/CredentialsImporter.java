@@ -0,0 +1,356 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.joda.time.DateTime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Credentials.Level;
+import io.spacedog.utils.CredentialsSettings;
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.JsonBuilder;
+import io.spacedog.utils.SpaceFieldNames;
+import io.spacedog.utils.Usernames;
+import io.spacedog.utils.Utils;
+import net.codestory.http.constants.HttpStatus;
+import net.codestory.http.payload.Payload;
+
+/**
+ * Imports a stream of NDJSON credentials, one credentials object per line, in
+ * batches. Each batch checks username uniqueness with multi gets, hashes clear
+ * passwords in parallel on the password hashing pool, then bulk indexes
+ * username and credentials documents. Lines may contain already hashed
+ * passwords. Each line gets its own result.
+ */
+public class CredentialsImporter implements SpaceFieldNames {
+
+	private String backendId;
+	private int batchSize;
+	private CredentialsSettings settings;
+	private ElasticClient elastic;
+	private CredentialsResource resource;
+
+	private ArrayNode results = Json.array();
+	private int created;
+	private int failed;
+
+	private static class Line {
+		private int number;
+		private ObjectNode data;
+		private Credentials credentials;
+		private String password;
+		private long usernameVersion = -1;
+		private Throwable error;
+
+		private Line(int number) {
+			this.number = number;
+		}
+
+		private boolean isValid() {
+			return error == null;
+		}
+	}
+
+	public CredentialsImporter(String backendId, int batchSize) {
+		this.backendId = backendId;
+		this.batchSize = batchSize;
+		this.settings = SettingsResource.get().load(CredentialsSettings.class);
+		this.elastic = Start.get().getElasticClient();
+		this.resource = CredentialsResource.get();
+	}
+
+	public Payload run(InputStream input) throws IOException {
+		long start = System.currentTimeMillis();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, Utils.UTF8));
+		List<Line> batch = Lists.newArrayListWithCapacity(batchSize);
+		int number = 0;
+		String text = null;
+
+		while ((text = reader.readLine()) != null) {
+			number++;
+
+			if (text.trim().isEmpty())
+				continue;
+
+			Line line = new Line(number);
+			try {
+				line.data = Json.readObject(text);
+			} catch (Exception e) {
+				line.error = e;
+			}
+
+			batch.add(line);
+
+			if (batch.size() == batchSize) {
+				importBatch(batch);
+				batch.clear();
+			}
+		}
+
+		importBatch(batch);
+
+		long took = System.currentTimeMillis() - start;
+
+		JsonBuilder<ObjectNode> builder = JsonPayload.builder()//
+				.put("took", took)//
+				.put("total", created + failed)//
+				.put("created", created)//
+				.put("failed", failed)//
+				.put("credentialsPerSecond", took == 0 ? created : created * 1000 / took);
+
+		return JsonPayload.json(builder.node("results", results));
+	}
+
+	//
+	// Implementation
+	//
+
+	private void importBatch(List<Line> batch) {
+		if (batch.isEmpty())
+			return;
+
+		for (Line line : batch)
+			if (line.isValid())
+				toCredentials(line);
+
+		checkUsernames(batch);
+		hashPasswords(batch);
+		indexUsernames(batch);
+		indexCredentials(batch);
+
+		for (Line line : batch)
+			addResult(line);
+	}
+
+	private void toCredentials(Line line) {
+		try {
+			Credentials credentials = new Credentials(backendId);
+			credentials.id(org.elasticsearch.common.Strings.randomBase64UUID());
+
+			credentials.name(Json.checkStringNotNullOrEmpty(line.data, USERNAME));
+			Usernames.checkValid(credentials.name(), Optional.of(settings.usernameRegex()));
+
+			credentials.email(Json.checkStringNotNullOrEmpty(line.data, EMAIL));
+			credentials.level(resource.extractAndCheckLevel(line.data, Level.USER));
+
+			if (line.data.has(ENABLED))
+				credentials.enabled(line.data.get(ENABLED).asBoolean());
+
+			for (JsonNode role : line.data.path(ROLES))
+				credentials.roles().add(role.asText());
+
+			JsonNode hashedPassword = line.data.get(HASHED_PASSWORD);
+			JsonNode password = line.data.get(PASSWORD);
+
+			if (!Json.isNull(hashedPassword))
+				credentials.setHashedPassword(hashedPassword.asText(), //
+						line.data.hasNonNull(PASSWORD_SALT) //
+								? line.data.get(PASSWORD_SALT).asText() : null,
+						line.data.hasNonNull(PASSWORD_ITERATIONS) //
+								? line.data.get(PASSWORD_ITERATIONS).asInt() : null);
+
+			else if (!Json.isNull(password))
+				line.password = password.asText();
+
+			else
+				credentials.newPasswordResetCode();
+
+			String now = DateTime.now().toString();
+			credentials.createdAt(now);
+			credentials.updatedAt(now);
+			line.credentials = credentials;
+
+		} catch (Exception e) {
+			line.error = e;
+		}
+	}
+
+	private void checkUsernames(List<Line> batch) {
+
+		// usernames must be unique in this batch
+		Map<String, Line> lines = Maps.newHashMap();
+		for (Line line : batch)
+			if (line.isValid()) {
+				String id = resource.toUsernameId(backendId, line.credentials.name());
+				if (lines.containsKey(id))
+					line.error = Exceptions.alreadyExists(CredentialsResource.TYPE, //
+							line.credentials.name());
+				else
+					lines.put(id, line);
+			}
+
+		if (lines.isEmpty())
+			return;
+
+		// and not already taken by existing credentials
+		Map<String, GetResponse> usernames = Maps.newHashMap();
+		for (MultiGetItemResponse item : elastic.multiGet(Resource.SPACEDOG_BACKEND, //
+				CredentialsResource.USERNAME_TYPE, lines.keySet()).getResponses())
+			if (!item.isFailed() && item.getResponse().isExists())
+				usernames.put(item.getId(), item.getResponse());
+
+		if (usernames.isEmpty())
+			return;
+
+		Set<String> credentialsIds = usernames.values().stream()//
+				.map(response -> response.getSource().get(CREDENTIALS_ID).toString())//
+				.collect(Collectors.toSet());
+
+		Map<String, Credentials> existing = Maps.newHashMap();
+		for (MultiGetItemResponse item : elastic.multiGet(Resource.SPACEDOG_BACKEND, //
+				CredentialsResource.TYPE, credentialsIds).getResponses())
+			if (!item.isFailed() && item.getResponse().isExists())
+				existing.put(item.getId(), resource.toCredentials(item.getResponse()));
+
+		for (GetResponse username : usernames.values()) {
+			Line line = lines.get(username.getId());
+			Credentials owner = existing.get(//
+					username.getSource().get(CREDENTIALS_ID).toString());
+
+			if (resource.isUsernameReleased(backendId, line.credentials.name(), //
+					username, Optional.ofNullable(owner)))
+				// obsolete username document is overwritten
+				line.usernameVersion = username.getVersion();
+			else
+				line.error = Exceptions.alreadyExists(CredentialsResource.TYPE, //
+						line.credentials.name());
+		}
+	}
+
+	private void hashPasswords(List<Line> batch) {
+		List<Line> lines = batch.stream()//
+				.filter(line -> line.isValid() && line.password != null)//
+				.collect(Collectors.toList());
+
+		if (lines.isEmpty())
+			return;
+
+		List<Supplier<Throwable>> hashings = lines.stream()//
+				.map(line -> (Supplier<Throwable>) () -> {
+					try {
+						line.credentials.setPassword(line.password, //
+								Optional.of(settings.passwordRegex()));
+						return null;
+					} catch (Exception e) {
+						return e;
+					}
+				})//
+				.collect(Collectors.toList());
+
+		// lines rejected by the hashing pool are failures
+		// but the import goes on with the next lines
+		List<Throwable> errors = PasswordHasher.get()//
+				.executeAll(backendId, hashings, rejection -> rejection);
+
+		for (int i = 0; i < lines.size(); i++)
+			lines.get(i).error = errors.get(i);
+	}
+
+	private void indexUsernames(List<Line> batch) {
+		BulkRequestBuilder bulk = elastic.prepareBulk();
+		List<Line> lines = Lists.newArrayList();
+
+		for (Line line : batch)
+			if (line.isValid()) {
+				IndexRequestBuilder request = resource.prepareIndexUsername(//
+						backendId, line.credentials.name(), line.credentials.id());
+
+				if (line.usernameVersion < 0)
+					request.setCreate(true);
+				else
+					request.setVersion(line.usernameVersion);
+
+				bulk.add(request);
+				lines.add(line);
+			}
+
+		if (lines.isEmpty())
+			return;
+
+		BulkItemResponse[] items = bulk.get().getItems();
+		for (int i = 0; i < items.length; i++)
+			if (items[i].isFailed())
+				// somebody took this username meanwhile
+				lines.get(i).error = Exceptions.alreadyExists(CredentialsResource.TYPE, //
+						lines.get(i).credentials.name());
+	}
+
+	private void indexCredentials(List<Line> batch) {
+		BulkRequestBuilder bulk = elastic.prepareBulk();
+		List<Line> lines = Lists.newArrayList();
+
+		for (Line line : batch)
+			if (line.isValid())
+				try {
+					bulk.add(elastic.prepareIndex(Resource.SPACEDOG_BACKEND, //
+							CredentialsResource.TYPE, line.credentials.id())//
+							.setSource(Json.mapper().writeValueAsString(line.credentials)));
+					lines.add(line);
+				} catch (Exception e) {
+					line.error = e;
+				}
+
+		if (lines.isEmpty())
+			return;
+
+		BulkResponse response = bulk.get();
+		BulkRequestBuilder releases = elastic.prepareBulk();
+		BulkItemResponse[] items = response.getItems();
+
+		for (int i = 0; i < items.length; i++) {
+			Line line = lines.get(i);
+			if (items[i].isFailed()) {
+				line.error = Exceptions.runtime(items[i].getFailureMessage());
+				releases.add(elastic.prepareDelete(Resource.SPACEDOG_BACKEND, //
+						CredentialsResource.USERNAME_TYPE, //
+						resource.toUsernameId(backendId, line.credentials.name())));
+			} else
+				line.credentials.version(items[i].getVersion());
+		}
+
+		if (releases.numberOfActions() > 0)
+			releases.get();
+	}
+
+	private void addResult(Line line) {
+		ObjectNode result = results.addObject().put("line", line.number);
+
+		if (line.isValid()) {
+			created++;
+			result.put("success", true)//
+					.put("status", HttpStatus.CREATED)//
+					.put(ID, line.credentials.id())//
+					.put(USERNAME, line.credentials.name());
+		} else {
+			failed++;
+			result.put("success", false)//
+					.put("status", JsonPayload.status(line.error))//
+					.set("error", JsonPayload.toJson(line.error, false));
+		}
+	}
+}
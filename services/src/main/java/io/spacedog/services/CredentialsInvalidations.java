@@ -0,0 +1,97 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import io.spacedog.utils.Credentials;
+
+/**
+ * Records credentials and backend invalidations so that cached credentials
+ * are checked when read instead of scanning caches at each credentials
+ * update. Cached credentials keep the generation read before they were
+ * loaded. They are stale if their credentials or their backend have been
+ * invalidated since, even if the invalidation happened while they were still
+ * loading. Invalidations are kept as long as the longest cache ttl.
+ */
+public class CredentialsInvalidations {
+
+	// credentials ids never contain any ':'
+	private static final String BACKEND_PREFIX = "backend:";
+
+	private AtomicLong generation = new AtomicLong();
+	private Cache<String, Long> invalidations;
+
+	public CredentialsInvalidations(long ttl) {
+		this.invalidations = CacheBuilder.newBuilder()//
+				.expireAfterWrite(ttl, TimeUnit.SECONDS)//
+				.build();
+	}
+
+	/**
+	 * Returns the current generation. Read it before loading credentials to
+	 * cache.
+	 */
+	public long generation() {
+		return generation.get();
+	}
+
+	public void invalidateCredentials(String credentialsId) {
+		invalidate(credentialsId);
+	}
+
+	public void invalidateBackend(String backendId) {
+		invalidate(BACKEND_PREFIX + backendId);
+	}
+
+	public Cached toCached(Credentials credentials, long generation) {
+		return new Cached(credentials.copy(), generation);
+	}
+
+	/**
+	 * Returns a copy of the cached credentials or empty if they have been
+	 * invalidated since they were loaded.
+	 */
+	public Optional<Credentials> check(Cached cached) {
+		if (cached == null //
+				|| isInvalidated(cached.credentials.id(), cached.generation) //
+				|| isInvalidated(BACKEND_PREFIX + cached.credentials.backendId(), //
+						cached.generation))
+			return Optional.empty();
+
+		return Optional.of(cached.credentials.copy());
+	}
+
+	public static class Cached {
+
+		private Credentials credentials;
+		private long generation;
+
+		private Cached(Credentials credentials, long generation) {
+			this.credentials = credentials;
+			this.generation = generation;
+		}
+	}
+
+	//
+	// Implementation
+	//
+
+	private void invalidate(String key) {
+		// concurrent invalidations of the same key keep the highest generation
+		invalidations.asMap().merge(key, generation.incrementAndGet(), Math::max);
+	}
+
+	private boolean isInvalidated(String key, long generation) {
+		if (key == null)
+			return false;
+		Long invalidated = invalidations.getIfPresent(key);
+		return invalidated != null && invalidated > generation;
+	}
+}
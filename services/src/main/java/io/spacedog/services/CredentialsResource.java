@@ -5,11 +5,20 @@ package io.spacedog.services;
 
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
@@ -20,8 +29,12 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 
+import io.spacedog.services.CredentialsInvalidations.Cached;
 import io.spacedog.utils.Backends;
 import io.spacedog.utils.Check;
 import io.spacedog.utils.Credentials;
@@ -34,7 +47,9 @@ import io.spacedog.utils.JsonBuilder;
 import io.spacedog.utils.Roles;
 import io.spacedog.utils.Schema;
 import io.spacedog.utils.SpaceHeaders;
+import io.spacedog.utils.SpaceParams;
 import io.spacedog.utils.Usernames;
+import io.spacedog.utils.Utils;
 import net.codestory.http.Context;
 import net.codestory.http.annotations.Delete;
 import net.codestory.http.annotations.Get;
@@ -46,6 +61,48 @@ import net.codestory.http.payload.Payload;
 public class CredentialsResource extends Resource {
 
 	public static final String TYPE = "credentials";
+	public static final String TOKEN_TYPE = "token";
+	public static final String USERNAME_TYPE = "username";
+
+	/**
+	 * Username documents are written before their credentials. Younger
+	 * documents without credentials might be reservations of credentials not
+	 * yet indexed and are never reclaimed.
+	 */
+	private static final long USERNAME_RESERVATION_GRACE_PERIOD = 5 * 60 * 1000;
+
+	//
+	// Fields
+	//
+
+	/**
+	 * Access token to credentials cache to avoid an elastic search for each
+	 * bearer authenticated request. Cached credentials are never returned
+	 * directly but copied since request processing can modify them.
+	 * Invalidation is local to this server, the cache ttl limits how long
+	 * other servers might use stale credentials.
+	 */
+	private Cache<String, Cached> tokenCache;
+
+	/**
+	 * Credentials and backend invalidations cached credentials are checked
+	 * against when read.
+	 */
+	private CredentialsInvalidations invalidations;
+
+	/**
+	 * Opt in verified password cache for basic authenticated requests. Empty
+	 * if configured ttl is zero.
+	 */
+	private Optional<PasswordCache> passwordCache;
+
+	/**
+	 * Signs and checks stateless access tokens of backends with signed access
+	 * tokens enabled in their credentials settings. Empty if signed tokens are
+	 * not enabled on this server, backends then get stored sessions whatever
+	 * their settings.
+	 */
+	private Optional<SignedTokens> signedTokens;
 
 	//
 	// init
@@ -61,6 +118,8 @@ public class CredentialsResource extends Resource {
 				.string(ACCESS_TOKEN)//
 				.string(ACCESS_TOKEN_EXPIRES_AT)//
 				.string(HASHED_PASSWORD)//
+				.string(PASSWORD_SALT)//
+				.integer(PASSWORD_ITERATIONS)//
 				.string(PASSWORD_RESET_CODE)//
 				.string(EMAIL)//
 				.string(CREATED_AT)//
@@ -84,6 +143,142 @@ public class CredentialsResource extends Resource {
 			elastic.putMapping(SPACEDOG_BACKEND, TYPE, mapping);
 		else
 			elastic.createIndex(SPACEDOG_BACKEND, TYPE, mapping, false);
+
+		initTokens(elastic);
+		initUsernames(elastic);
+		if (signedTokens.isPresent()) {
+			signedTokens.get().init(elastic);
+			signedTokens.get().start(//
+					Start.get().configuration().credentialsTokenReloadPeriod());
+		}
+	}
+
+	/**
+	 * Token documents are the session store. There is one document per
+	 * session, its id is the hash of the session access token. Sessions are
+	 * created and deleted without any credentials update and access tokens are
+	 * checked with a real time get by id instead of a search. Expired sessions
+	 * are deleted in background by the {@link SessionSweeper}.
+	 */
+	private void initTokens(ElasticClient elastic) {
+		Schema schema = Schema.builder(TOKEN_TYPE)//
+				.string(CREDENTIALS_ID)//
+				.string(BACKEND_ID)//
+				.timestamp(ACCESS_TOKEN_EXPIRES_AT)//
+				.build();
+
+		String mapping = schema.validate().translate().toString();
+
+		if (elastic.existsIndex(SPACEDOG_BACKEND, TOKEN_TYPE))
+			elastic.putMapping(SPACEDOG_BACKEND, TOKEN_TYPE, mapping);
+		else {
+			elastic.createIndex(SPACEDOG_BACKEND, TOKEN_TYPE, mapping, false);
+			backfillTokens(elastic);
+		}
+	}
+
+	/**
+	 * Username documents have ids derived from backend id and username. They
+	 * make username uniqueness checks and login by name real time gets and
+	 * spare credentials writes from forced index refreshes.
+	 */
+	private void initUsernames(ElasticClient elastic) {
+		Schema schema = Schema.builder(USERNAME_TYPE)//
+				.string(CREDENTIALS_ID)//
+				.string(BACKEND_ID)//
+				.string(USERNAME)//
+				.string(CREATED_AT)//
+				.build();
+
+		String mapping = schema.validate().translate().toString();
+
+		if (elastic.existsIndex(SPACEDOG_BACKEND, USERNAME_TYPE))
+			elastic.putMapping(SPACEDOG_BACKEND, USERNAME_TYPE, mapping);
+		else {
+			elastic.createIndex(SPACEDOG_BACKEND, USERNAME_TYPE, mapping, false);
+			backfillUsernames(elastic);
+		}
+	}
+
+	/**
+	 * Migration from username uniqueness checked by search. Creates a username
+	 * document for each credentials.
+	 */
+	private void backfillUsernames(ElasticClient elastic) {
+		Utils.info("[SpaceDog] Backfilling username documents from credentials ...");
+
+		elastic.refreshType(SPACEDOG_BACKEND, TYPE);
+		int count = 0;
+
+		SearchResponse response = elastic.prepareSearch(SPACEDOG_BACKEND, TYPE)//
+				.setQuery(QueryBuilders.matchAllQuery())//
+				.setScroll(TimeValue.timeValueMinutes(1))//
+				.setSize(100)//
+				.get();
+
+		while (response.getHits().getHits().length > 0) {
+			BulkRequestBuilder bulk = elastic.prepareBulk();
+
+			for (SearchHit hit : response.getHits()) {
+				Credentials credentials = toCredentials(hit);
+				bulk.add(prepareIndexUsername(credentials.backendId(), //
+						credentials.name(), credentials.id()));
+			}
+
+			BulkResponse bulkResponse = bulk.get();
+			if (bulkResponse.hasFailures())
+				throw Exceptions.runtime("username backfill failed: %s", //
+						bulkResponse.buildFailureMessage());
+			count += bulk.numberOfActions();
+
+			response = elastic.prepareSearchScroll(response.getScrollId())//
+					.setScroll(TimeValue.timeValueMinutes(1))//
+					.get();
+		}
+
+		Utils.info("[SpaceDog] [%s] username documents created", count);
+	}
+
+	/**
+	 * Migration from sessions only stored in credentials documents. Creates a
+	 * token document for each valid session.
+	 */
+	private void backfillTokens(ElasticClient elastic) {
+		Utils.info("[SpaceDog] Backfilling access token documents from credentials sessions ...");
+
+		elastic.refreshType(SPACEDOG_BACKEND, TYPE);
+		int count = 0;
+
+		SearchResponse response = elastic.prepareSearch(SPACEDOG_BACKEND, TYPE)//
+				.setQuery(QueryBuilders.existsQuery(SESSIONS_ACCESS_TOKEN))//
+				.setScroll(TimeValue.timeValueMinutes(1))//
+				.setSize(100)//
+				.get();
+
+		while (response.getHits().getHits().length > 0) {
+			BulkRequestBuilder bulk = elastic.prepareBulk();
+
+			for (SearchHit hit : response.getHits()) {
+				Credentials credentials = toCredentials(hit);
+				for (Session session : credentials.legacySessions())
+					if (session.expiresIn() > 0)
+						bulk.add(prepareIndexToken(credentials, session));
+			}
+
+			if (bulk.numberOfActions() > 0) {
+				BulkResponse bulkResponse = bulk.get();
+				if (bulkResponse.hasFailures())
+					throw Exceptions.runtime("access token backfill failed: %s", //
+							bulkResponse.buildFailureMessage());
+				count += bulk.numberOfActions();
+			}
+
+			response = elastic.prepareSearchScroll(response.getScrollId())//
+					.setScroll(TimeValue.timeValueMinutes(1))//
+					.get();
+		}
+
+		Utils.info("[SpaceDog] [%s] access token documents created", count);
 	}
 
 	//
@@ -99,8 +294,14 @@ public class CredentialsResource extends Resource {
 
 		if (credentials.isPasswordChecked()) {
 			long lifetime = getCheckSessionLifetime(context);
-			credentials.setCurrentSession(Session.newSession(lifetime));
-			credentials = update(credentials);
+			CredentialsSettings settings = SettingsResource.get().load(CredentialsSettings.class);
+
+			if (settings.signedAccessTokens && signedTokens.isPresent())
+				credentials.setCurrentSession(signedTokens.get().newSession(credentials, lifetime));
+			else {
+				credentials.setCurrentSession(Session.newSession(lifetime));
+				createCurrentSession(credentials);
+			}
 		}
 
 		return JsonPayload.json(//
@@ -117,8 +318,17 @@ public class CredentialsResource extends Resource {
 	public Payload logout(Context context) {
 		Credentials credentials = SpaceContext.checkUserCredentials();
 		if (credentials.hasCurrentSession()) {
+			Session session = credentials.currentSession;
 			credentials.deleteCurrentSession();
-			update(credentials);
+
+			if (SignedTokens.isSigned(session.accessToken()))
+				// token has been checked, signed tokens are enabled
+				signedTokens.get().revokeToken(session.accessToken(), //
+						session.accessTokenExpiresAt());
+			else {
+				deleteToken(session.accessToken());
+				tokenCache.invalidate(session.accessToken());
+			}
 		}
 		return JsonPayload.success();
 	}
@@ -129,6 +339,8 @@ public class CredentialsResource extends Resource {
 		// TODO add more settings and permissions to control this
 		// credentials check
 		SpaceContext.checkUserCredentials();
+		boolean refresh = context.query().getBoolean(SpaceParams.REFRESH, false);
+		DataStore.get().refreshType(refresh, SPACEDOG_BACKEND, TYPE);
 		return JsonPayload.json(fromCredentialsSearch(getCredentials(toQuery(context))));
 	}
 
@@ -141,11 +353,22 @@ public class CredentialsResource extends Resource {
 
 		// super admins can only be deleted when backend is deleted
 		query.mustNot(QueryBuilders.termQuery(CREDENTIALS_LEVEL, "SUPER_ADMIN"));
+
+		// credentials writes are not refreshed anymore
+		// refresh before delete by query is necessary
+		elastic.refreshType(SPACEDOG_BACKEND, TYPE);
+		releaseUsernames(query);
 		elastic.deleteByQuery(SPACEDOG_BACKEND, query, TYPE);
 
 		// allways refresh after credentials index updates
 		elastic.refreshType(SPACEDOG_BACKEND, TYPE);
 
+		String backendId = SpaceContext.target();
+		invalidations.invalidateBackend(backendId);
+		// signed tokens of deleted credentials can not be listed
+		// all signed tokens of this backend are revoked
+		revokeSignedTokens(backendId);
+
 		return JsonPayload.success();
 	}
 
@@ -172,6 +395,20 @@ public class CredentialsResource extends Resource {
 				.withHeader(SpaceHeaders.SPACEDOG_OBJECT_ID, credentials.id());
 	}
 
+	@Post("/1/credentials/_import")
+	@Post("/1/credentials/_import/")
+	public Payload postImport(Context context) throws IOException {
+		String backendId = SpaceContext.checkAdminCredentials().target();
+		int batchSize = context.query().getInteger("batchSize", 500);
+
+		if (batchSize < 1 || batchSize > 10000)
+			throw Exceptions.illegalArgument(//
+					"batch size [%s] must be between 1 and 10000", batchSize);
+
+		return new CredentialsImporter(backendId, batchSize)//
+				.run(context.request().inputStream());
+	}
+
 	@Get("/1/credentials/:id")
 	@Get("/1/credentials/:id/")
 	public Payload getById(String id, Context context) {
@@ -199,7 +436,7 @@ public class CredentialsResource extends Resource {
 							recipient.backendId());
 			}
 
-			delete(id);
+			delete(recipient);
 			return JsonPayload.success();
 		}
 
@@ -216,24 +453,38 @@ public class CredentialsResource extends Resource {
 		Credentials credentials = getById(id, true).get();
 		CredentialsSettings settings = SettingsResource.get().load(CredentialsSettings.class);
 
+		boolean revoke = false;
+		String oldUsername = null;
 		String username = data.path(USERNAME).asText();
-		if (!Strings.isNullOrEmpty(username)) {
+		if (!Strings.isNullOrEmpty(username) && !username.equals(credentials.name())) {
 			Usernames.checkValid(username, Optional.of(settings.usernameRegex()));
+			reserveUsername(credentials.backendId(), username, credentials.id());
+			oldUsername = credentials.name();
 			credentials.name(username);
+			revoke = true;
 		}
 
 		// TODO check email with minimal regex
 		String email = data.path(EMAIL).asText();
-		if (!Strings.isNullOrEmpty(email))
+		if (!Strings.isNullOrEmpty(email)) {
 			credentials.email(email);
+			revoke = true;
+		}
 
 		String password = data.path(PASSWORD).asText();
 		if (!Strings.isNullOrEmpty(password))
-			credentials.setPassword(password, Optional.of(settings.passwordRegex()));
+			setPassword(credentials, password, settings);
 
 		// TODO check if at least one field has been changed
 		// before credentials update
 		credentials = update(credentials);
+
+		if (oldUsername != null)
+			deleteUsername(credentials.backendId(), oldUsername);
+
+		if (revoke)
+			revokeSignedTokens(credentials);
+
 		return JsonPayload.saved(false, credentials.backendId(), //
 				"/1", TYPE, credentials.id(), credentials.version());
 	}
@@ -247,6 +498,8 @@ public class CredentialsResource extends Resource {
 		credentials.clearPasswordAndTokens();
 		credentials.newPasswordResetCode();
 		credentials = update(credentials);
+		deleteSessions(credentials);
+		revokeSignedTokens(credentials);
 
 		return JsonPayload.json(JsonPayload
 				.builder(false, credentials.backendId(), "/1", TYPE, //
@@ -264,9 +517,10 @@ public class CredentialsResource extends Resource {
 
 		Credentials credentials = getById(id, true).get();
 		CredentialsSettings settings = SettingsResource.get().load(CredentialsSettings.class);
-		credentials.setPassword(password, passwordResetCode, //
-				Optional.of(settings.passwordRegex()));
-		credentials = update(credentials);
+		PasswordHasher.get().run(credentials.backendId(), //
+				() -> credentials.setPassword(password, passwordResetCode, //
+						Optional.of(settings.passwordRegex())));
+		update(credentials);
 
 		return JsonPayload.saved(false, credentials.backendId(), //
 				"/1", TYPE, credentials.id(), credentials.version());
@@ -282,7 +536,7 @@ public class CredentialsResource extends Resource {
 		CredentialsSettings settings = SettingsResource.get().load(CredentialsSettings.class);
 
 		String password = context.get(PASSWORD);
-		credentials.setPassword(password, Optional.of(settings.passwordRegex()));
+		setPassword(credentials, password, settings);
 
 		credentials = update(credentials);
 		return JsonPayload.saved(false, credentials.backendId(), //
@@ -302,6 +556,9 @@ public class CredentialsResource extends Resource {
 		credentials.enabled(enabled.asBoolean());
 		credentials = update(credentials);
 
+		if (!credentials.enabled())
+			revokeSignedTokens(credentials);
+
 		return JsonPayload.saved(false, credentials.backendId(), //
 				"/1", TYPE, credentials.id(), credentials.version());
 	}
@@ -320,6 +577,7 @@ public class CredentialsResource extends Resource {
 		Credentials credentials = getById(id, true).get();
 		credentials.roles().clear();
 		credentials = update(credentials);
+		revokeSignedTokens(credentials);
 		return JsonPayload.saved(false, backendId, "/1", TYPE, //
 				credentials.id(), credentials.version());
 	}
@@ -334,6 +592,7 @@ public class CredentialsResource extends Resource {
 		if (!credentials.roles().contains(role)) {
 			credentials.roles().add(role);
 			credentials = update(credentials);
+			revokeSignedTokens(credentials);
 		}
 
 		return JsonPayload.saved(false, backendId, "/1", TYPE, //
@@ -349,6 +608,7 @@ public class CredentialsResource extends Resource {
 		if (credentials.roles().contains(role)) {
 			credentials.roles().remove(role);
 			credentials = update(credentials);
+			revokeSignedTokens(credentials);
 			return JsonPayload.saved(false, backendId, "/1", TYPE, //
 					credentials.id(), credentials.version());
 		}
@@ -391,60 +651,91 @@ public class CredentialsResource extends Resource {
 		if (Json.isNull(password))
 			credentials.newPasswordResetCode();
 		else
-			credentials.setPassword(password.asText(), Optional.of(settings.passwordRegex()));
+			setPassword(credentials, password.asText(), settings);
 
 		return create(credentials);
 	}
 
 	Credentials checkUsernamePassword(String backendId, String username, String password) {
+
+		if (passwordCache.isPresent()) {
+			Optional<Credentials> cached = passwordCache.get().get(backendId, username, password);
+			if (cached.isPresent())
+				return cached.get();
+		}
+
+		long generation = invalidations.generation();
 		Optional<Credentials> credentials = getByName(backendId, username, false);
 
 		if (credentials.isPresent() //
-				&& credentials.get().checkPassword(password))
-			return credentials.get();
+				&& PasswordHasher.get().execute(backendId, //
+						() -> credentials.get().checkPassword(password))) {
+
+			Credentials checked = credentials.get();
+
+			// passwords hashed with legacy or outdated parameters
+			// are re-hashed with current parameters
+			if (checked.passwordNeedsRehash()) {
+				PasswordHasher.get().run(backendId, () -> checked.rehashPassword(password));
+				update(checked);
+			}
+
+			if (passwordCache.isPresent())
+				passwordCache.get().put(backendId, username, password, checked, generation);
+
+			return checked;
+		}
 
 		throw Exceptions.invalidUsernamePassword(backendId);
 	}
 
 	Credentials checkToken(String backendId, String accessToken) {
 
-		SearchHits hits = Start.get().getElasticClient()//
-				.prepareSearch(SPACEDOG_BACKEND, TYPE)//
-				.setQuery(QueryBuilders.boolQuery()//
-						// I'll check backendId later in this method
-						// to let superdogs access all backends
-						// .must(QueryBuilders.termQuery(BACKEND_ID,
-						// backendId))//
-						.must(QueryBuilders.termQuery(SESSIONS_ACCESS_TOKEN, accessToken)))//
-				.get()//
-				.getHits();
+		if (SignedTokens.isSigned(accessToken)) {
+			if (!signedTokens.isPresent())
+				throw Exceptions.invalidAccessToken(backendId);
+			return checkBackend(backendId, signedTokens.get().check(backendId, accessToken));
+		}
 
-		if (hits.totalHits() == 0)
-			throw Exceptions.invalidAccessToken(backendId);
+		Optional<Credentials> cached = invalidations.check(tokenCache.getIfPresent(accessToken));
+		Credentials credentials = null;
+
+		if (cached.isPresent())
+			credentials = cached.get();
+		else {
+			// generation is read before lookup so that credentials
+			// invalidated during lookup are stale once cached
+			long generation = invalidations.generation();
+			credentials = getByToken(backendId, accessToken);
+			tokenCache.put(accessToken, invalidations.toCached(credentials, generation));
+		}
 
-		if (hits.totalHits() == 1) {
-			Credentials credentials = toCredentials(hits.getAt(0));
-			credentials.setCurrentSession(accessToken);
+		credentials = checkBackend(backendId, credentials);
 
-			if (!credentials.isSuperDog() //
-					&& !backendId.equals(credentials.backendId()))
-				throw Exceptions.invalidAccessToken(backendId);
+		if (credentials.accessTokenExpiresIn() == 0) {
+			tokenCache.invalidate(accessToken);
+			throw Exceptions.accessTokenHasExpired();
+		}
 
-			if (credentials.accessTokenExpiresIn() == 0)
-				throw Exceptions.accessTokenHasExpired();
+		return credentials;
+	}
 
-			return credentials;
-		}
+	Cache<String, Cached> tokenCache() {
+		return tokenCache;
+	}
+
+	Optional<SignedTokens> signedTokens() {
+		return signedTokens;
+	}
 
-		throw Exceptions.runtime(//
-				"access token [%s] associated with too many credentials [%s]", //
-				accessToken, hits.totalHits());
+	Optional<PasswordCache> passwordCache() {
+		return passwordCache;
 	}
 
 	Optional<Credentials> getById(String id, boolean throwNotFound) {
 		Credentials credentials = SpaceContext.getCredentials();
 
-		if (id.equals(credentials.id()))
+		if (!credentials.isDetached() && id.equals(credentials.id()))
 			return Optional.of(credentials);
 
 		GetResponse response = Start.get().getElasticClient().get(SPACEDOG_BACKEND, TYPE, id);
@@ -461,47 +752,51 @@ public class CredentialsResource extends Resource {
 	Optional<Credentials> getByName(String backendId, String username, boolean throwNotFound) {
 		Credentials credentials = SpaceContext.getCredentials();
 
-		if (username.equals(credentials.name()) //
+		if (!credentials.isDetached() //
+				&& username.equals(credentials.name()) //
 				&& backendId.equals(credentials.backendId()))
 			return Optional.of(credentials);
 
-		Optional<SearchHit> searchHit = Start.get().getElasticClient().get(//
-				SPACEDOG_BACKEND, TYPE, toQuery(backendId, username));
+		Optional<Credentials> byName = getByUsernameDocument(backendId, username);
 
-		if (!searchHit.isPresent()) {
-			if (throwNotFound)
-				throw Exceptions.notFound(backendId, TYPE, username);
-			else
-				return Optional.empty();
-		}
-		return Optional.of(toCredentials(searchHit.get()));
+		if (!byName.isPresent() && throwNotFound)
+			throw Exceptions.notFound(backendId, TYPE, username);
+
+		return byName;
 	}
 
 	Credentials create(Credentials credentials) {
 
+		// credentials id is generated before indexing
+		// since username document must refer to it
+		if (Strings.isNullOrEmpty(credentials.id()))
+			credentials.id(org.elasticsearch.common.Strings.randomBase64UUID());
+
 		// This is the only place where name uniqueness is checked
-		if (exists(credentials.backendId(), credentials.name()))
-			throw Exceptions.alreadyExists(TYPE, credentials.name());
+		reserveUsername(credentials.backendId(), credentials.name(), credentials.id());
 
 		try {
 			String now = DateTime.now().toString();
 			credentials.updatedAt(now);
 			credentials.createdAt(now);
 
-			ElasticClient elastic = Start.get().getElasticClient();
-			String json = Json.mapper().writeValueAsString(credentials);
-
-			// refresh index after each index change
-			IndexResponse response = Strings.isNullOrEmpty(credentials.id()) //
-					? elastic.index(SPACEDOG_BACKEND, TYPE, json, true) //
-					: elastic.index(SPACEDOG_BACKEND, TYPE, credentials.id(), json, true);
+			// no refresh needed since username uniqueness
+			// is checked with real time gets
+			IndexResponse response = Start.get().getElasticClient().index(//
+					SPACEDOG_BACKEND, TYPE, credentials.id(), //
+					Json.mapper().writeValueAsString(credentials));
 
-			credentials.id(response.getId());
 			credentials.version(response.getVersion());
+			createCurrentSession(credentials);
 			return credentials;
 
 		} catch (JsonProcessingException e) {
+			deleteUsername(credentials.backendId(), credentials.name());
 			throw Exceptions.runtime(e);
+
+		} catch (RuntimeException e) {
+			deleteUsername(credentials.backendId(), credentials.name());
+			throw e;
 		}
 	}
 
@@ -511,16 +806,16 @@ public class CredentialsResource extends Resource {
 					"credentials update failed: credentials id is null");
 
 		try {
-			credentials.purgeExpiredSessions();
 			credentials.updatedAt(DateTime.now().toString());
 
-			// refresh index after each index change
+			// no refresh needed since access tokens are checked
+			// with real time gets of token documents
 			IndexResponse response = Start.get().getElasticClient().index(//
 					SPACEDOG_BACKEND, TYPE, credentials.id(), //
-					Json.mapper().writeValueAsString(credentials), //
-					true);
+					Json.mapper().writeValueAsString(credentials));
 
 			credentials.version(response.getVersion());
+			invalidations.invalidateCredentials(credentials.id());
 			return credentials;
 
 		} catch (JsonProcessingException e) {
@@ -528,11 +823,44 @@ public class CredentialsResource extends Resource {
 		}
 	}
 
-	void delete(String id) {
+	void delete(Credentials credentials) {
+		String id = credentials.id();
 		ElasticClient elastic = Start.get().getElasticClient();
 		// index refresh before not necessary since delete by id
 		// index refresh after delete is necessary
 		elastic.delete(SPACEDOG_BACKEND, TYPE, id, true, true);
+		deleteUsername(credentials.backendId(), credentials.name());
+		deleteSessions(credentials);
+		revokeSignedTokens(credentials);
+	}
+
+	/**
+	 * Returns the full credentials of credentials detached from their document
+	 * since built from a signed access token. Needed before any update or stash
+	 * access.
+	 */
+	Credentials attach(Credentials credentials) {
+		if (!credentials.isDetached())
+			return credentials;
+
+		Credentials attached = getById(credentials.id(), true).get();
+		attached.setCurrentSession(credentials.currentSession);
+		attached.target(credentials.target());
+		return attached;
+	}
+
+	void createCurrentSession(Credentials credentials) {
+		if (credentials.hasCurrentSession())
+			prepareIndexToken(credentials, credentials.currentSession).get();
+	}
+
+	void deleteSessions(Credentials credentials) {
+		// token documents not yet refreshed might not be deleted
+		// but they are harmless without their credentials or are
+		// deleted by the sweeper once expired
+		Start.get().getElasticClient().deleteByQuery(SPACEDOG_BACKEND, //
+				QueryBuilders.termQuery(CREDENTIALS_ID, credentials.id()), TOKEN_TYPE);
+		invalidations.invalidateCredentials(credentials.id());
 	}
 
 	DeleteByQueryResponse deleteAll(String backendId) {
@@ -545,10 +873,20 @@ public class CredentialsResource extends Resource {
 				QueryBuilders.termQuery(BACKEND_ID, backendId), TYPE);
 
 		elastic.refreshType(SPACEDOG_BACKEND, TYPE);
+		// username documents must all be deleted since they
+		// are not reclaimed before the end of their grace period
+		elastic.refreshType(SPACEDOG_BACKEND, USERNAME_TYPE);
+		elastic.deleteByQuery(SPACEDOG_BACKEND, //
+				QueryBuilders.termQuery(BACKEND_ID, backendId), TOKEN_TYPE, USERNAME_TYPE);
+		invalidations.invalidateBackend(backendId);
+		revokeSignedTokens(backendId);
 		return response;
 	}
 
 	SearchResults<Credentials> getAllSuperAdmins(int from, int size) {
+		// superadmins are rarely listed and must include
+		// credentials just created without index refresh
+		Start.get().getElasticClient().refreshType(SPACEDOG_BACKEND, TYPE);
 		BoolQueryBuilder query = QueryBuilders.boolQuery()//
 				.filter(QueryBuilders.termQuery(CREDENTIALS_LEVEL, Level.SUPER_ADMIN.toString()));
 
@@ -556,6 +894,9 @@ public class CredentialsResource extends Resource {
 	}
 
 	SearchResults<Credentials> getBackendSuperAdmins(String backendId, int from, int size) {
+		// superadmins are rarely listed and must include
+		// credentials just created without index refresh
+		Start.get().getElasticClient().refreshType(SPACEDOG_BACKEND, TYPE);
 		BoolQueryBuilder query = QueryBuilders.boolQuery()//
 				.filter(QueryBuilders.termQuery(BACKEND_ID, backendId))//
 				.filter(QueryBuilders.termQuery(CREDENTIALS_LEVEL, Level.SUPER_ADMIN.toString()));
@@ -567,7 +908,8 @@ public class CredentialsResource extends Resource {
 		Usernames.checkValid(username);
 		Credentials credentials = new Credentials(Backends.rootApi(), username, Level.SUPERDOG);
 		credentials.email(email);
-		credentials.setPassword(password, Optional.empty());
+		PasswordHasher.get().run(credentials.backendId(), //
+				() -> credentials.setPassword(password, Optional.empty()));
 		return create(credentials);
 	}
 
@@ -575,7 +917,224 @@ public class CredentialsResource extends Resource {
 	// Implementation
 	//
 
-	private Level extractAndCheckLevel(ObjectNode fields, Level defaultLevel) {
+	private Credentials getByToken(String backendId, String accessToken) {
+
+		ElasticClient elastic = Start.get().getElasticClient();
+		GetResponse token = elastic.get(SPACEDOG_BACKEND, TOKEN_TYPE, toTokenId(accessToken));
+
+		if (!token.isExists())
+			throw Exceptions.invalidAccessToken(backendId);
+
+		// I'll check backendId later in checkToken
+		// to let superdogs access all backends
+
+		Object expiresAt = token.getSource().get(ACCESS_TOKEN_EXPIRES_AT);
+		if (expiresAt == null || DateTime.parse(expiresAt.toString()).isBeforeNow())
+			throw Exceptions.accessTokenHasExpired();
+
+		String credentialsId = token.getSource().get(CREDENTIALS_ID).toString();
+		GetResponse response = elastic.get(SPACEDOG_BACKEND, TYPE, credentialsId);
+
+		if (!response.isExists())
+			throw Exceptions.invalidAccessToken(backendId);
+
+		Credentials credentials = toCredentials(response);
+		credentials.setCurrentSession(Session.newSession(//
+				accessToken, DateTime.parse(expiresAt.toString())));
+		return credentials;
+	}
+
+	private String toTokenId(String accessToken) {
+		return Hashing.sha256().hashString(accessToken, Utils.UTF8).toString();
+	}
+
+	private IndexRequestBuilder prepareIndexToken(Credentials credentials, Session session) {
+		return Start.get().getElasticClient()//
+				.prepareIndex(SPACEDOG_BACKEND, TOKEN_TYPE, toTokenId(session.accessToken()))//
+				.setSource(Json.object(//
+						CREDENTIALS_ID, credentials.id(), //
+						BACKEND_ID, credentials.backendId(), //
+						ACCESS_TOKEN_EXPIRES_AT, session.accessTokenExpiresAt().toString())//
+						.toString());
+	}
+
+	String toUsernameId(String backendId, String username) {
+		// backend ids do not contain any '-'
+		return String.join("-", backendId, username);
+	}
+
+	IndexRequestBuilder prepareIndexUsername(String backendId, String username, String credentialsId) {
+		return Start.get().getElasticClient()//
+				.prepareIndex(SPACEDOG_BACKEND, USERNAME_TYPE, toUsernameId(backendId, username))//
+				.setSource(Json.object(//
+						CREDENTIALS_ID, credentialsId, //
+						BACKEND_ID, backendId, //
+						USERNAME, username, //
+						CREATED_AT, DateTime.now().toString())//
+						.toString());
+	}
+
+	/**
+	 * Returns true if this existing username document can be reclaimed: its
+	 * credentials do not exist or do not own this username anymore and it is
+	 * older than the reservation grace period.
+	 * 
+	 * @param owner
+	 *            the credentials this username document refers to if they
+	 *            exist
+	 */
+	boolean isUsernameReleased(String backendId, String username, //
+			GetResponse response, Optional<Credentials> owner) {
+
+		if (owner.isPresent() //
+				&& backendId.equals(owner.get().backendId()) //
+				&& username.equals(owner.get().name()))
+			return false;
+
+		// username documents backfilled or written
+		// before creation dates are old enough
+		Object createdAt = response.getSource().get(CREATED_AT);
+		return createdAt == null //
+				|| DateTime.parse(createdAt.toString()).getMillis() //
+						< DateTime.now().getMillis() - USERNAME_RESERVATION_GRACE_PERIOD;
+	}
+
+	private void reserveUsername(String backendId, String username, String credentialsId) {
+		try {
+			prepareIndexUsername(backendId, username, credentialsId)//
+					.setCreate(true).get();
+
+		} catch (DocumentAlreadyExistsException e) {
+
+			// username documents might outlive their credentials
+			// since some credentials deletions are done by query
+			GetResponse response = Start.get().getElasticClient()//
+					.get(SPACEDOG_BACKEND, USERNAME_TYPE, toUsernameId(backendId, username));
+
+			try {
+				if (!response.isExists())
+					prepareIndexUsername(backendId, username, credentialsId)//
+							.setCreate(true).get();
+
+				else if (isUsernameReleased(backendId, username, response, //
+						getCredentials(response)))
+					// version makes sure nobody took this username meanwhile
+					prepareIndexUsername(backendId, username, credentialsId)//
+							.setVersion(response.getVersion()).get();
+
+				else
+					throw Exceptions.alreadyExists(TYPE, username);
+
+			} catch (DocumentAlreadyExistsException | VersionConflictEngineException e2) {
+				// somebody took this username meanwhile
+				throw Exceptions.alreadyExists(TYPE, username);
+			}
+		}
+	}
+
+	/**
+	 * Deletes username documents of credentials matching this query. Needed
+	 * before credentials are deleted by query since deleted credentials can
+	 * not be found anymore to release their usernames.
+	 */
+	private void releaseUsernames(QueryBuilder query) {
+		ElasticClient elastic = Start.get().getElasticClient();
+
+		SearchResponse response = elastic.prepareSearch(SPACEDOG_BACKEND, TYPE)//
+				.setQuery(query)//
+				.setFetchSource(new String[] { BACKEND_ID, USERNAME }, null)//
+				.setScroll(TimeValue.timeValueMinutes(1))//
+				.setSize(1000)//
+				.get();
+
+		while (response.getHits().getHits().length > 0) {
+			BulkRequestBuilder bulk = elastic.prepareBulk();
+
+			for (SearchHit hit : response.getHits())
+				bulk.add(elastic.prepareDelete(SPACEDOG_BACKEND, USERNAME_TYPE, //
+						toUsernameId(hit.getSource().get(BACKEND_ID).toString(), //
+								hit.getSource().get(USERNAME).toString())));
+
+			bulk.get();
+			response = elastic.prepareSearchScroll(response.getScrollId())//
+					.setScroll(TimeValue.timeValueMinutes(1))//
+					.get();
+		}
+
+		elastic.prepareClearScroll(response.getScrollId()).get();
+	}
+
+	private Optional<Credentials> getByUsernameDocument(String backendId, String username) {
+		GetResponse response = Start.get().getElasticClient()//
+				.get(SPACEDOG_BACKEND, USERNAME_TYPE, toUsernameId(backendId, username));
+
+		return response.isExists() //
+				? getByUsernameDocument(backendId, username, response)//
+				: Optional.empty();
+	}
+
+	private Optional<Credentials> getByUsernameDocument(String backendId, String username, GetResponse response) {
+		Optional<Credentials> credentials = getCredentials(response);
+
+		// username document is obsolete if credentials
+		// have been renamed and old name not yet released
+		return credentials.isPresent() //
+				&& backendId.equals(credentials.get().backendId()) //
+				&& username.equals(credentials.get().name()) //
+						? credentials
+						: Optional.empty();
+	}
+
+	/**
+	 * Returns the credentials this username document refers to if they exist.
+	 */
+	private Optional<Credentials> getCredentials(GetResponse response) {
+		String credentialsId = response.getSource().get(CREDENTIALS_ID).toString();
+		GetResponse credentialsResponse = Start.get().getElasticClient()//
+				.get(SPACEDOG_BACKEND, TYPE, credentialsId);
+
+		return credentialsResponse.isExists() //
+				? Optional.of(toCredentials(credentialsResponse))//
+				: Optional.empty();
+	}
+
+	private void deleteUsername(String backendId, String username) {
+		Start.get().getElasticClient().delete(SPACEDOG_BACKEND, //
+				USERNAME_TYPE, toUsernameId(backendId, username), false, false);
+	}
+
+	private void deleteToken(String accessToken) {
+		Start.get().getElasticClient().delete(SPACEDOG_BACKEND, //
+				TOKEN_TYPE, toTokenId(accessToken), false, false);
+	}
+
+	private void setPassword(Credentials credentials, String password, CredentialsSettings settings) {
+		PasswordHasher.get().run(credentials.backendId(), //
+				() -> credentials.setPassword(password, Optional.of(settings.passwordRegex())));
+	}
+
+	private Credentials checkBackend(String backendId, Credentials credentials) {
+		if (!credentials.isSuperDog() //
+				&& !backendId.equals(credentials.backendId()))
+			throw Exceptions.invalidAccessToken(backendId);
+		return credentials;
+	}
+
+	private void revokeSignedTokens(Credentials credentials) {
+		if (signedTokens.isPresent())
+			signedTokens.get().revokeCredentials(credentials.id(), sessionMaximumLifetime());
+	}
+
+	private void revokeSignedTokens(String backendId) {
+		if (signedTokens.isPresent())
+			signedTokens.get().revokeBackend(backendId, sessionMaximumLifetime());
+	}
+
+	private long sessionMaximumLifetime() {
+		return SettingsResource.get().load(CredentialsSettings.class).sessionMaximumLifetime;
+	}
+
+	Level extractAndCheckLevel(ObjectNode fields, Level defaultLevel) {
 		String value = fields.path(CREDENTIALS_LEVEL).asText();
 		if (Strings.isNullOrEmpty(value))
 			return defaultLevel;
@@ -609,18 +1168,12 @@ public class CredentialsResource extends Resource {
 		return search;
 	}
 
-	private BoolQueryBuilder toQuery(String backendId, String username) {
-		return QueryBuilders.boolQuery()//
-				.must(QueryBuilders.termQuery(BACKEND_ID, backendId)) //
-				.must(QueryBuilders.termQuery(USERNAME, username));
-	}
-
 	private Credentials toCredentials(SearchHit hit) {
 		return toCredentials(hit.getSourceAsString(), //
 				hit.getId(), hit.getVersion());
 	}
 
-	private Credentials toCredentials(GetResponse response) {
+	Credentials toCredentials(GetResponse response) {
 		return toCredentials(response.getSourceAsString(), //
 				response.getId(), response.getVersion());
 	}
@@ -645,11 +1198,6 @@ public class CredentialsResource extends Resource {
 		return Json.object("total", response.total, "results", results);
 	}
 
-	private boolean exists(String backendId, String username) {
-		return Start.get().getElasticClient().exists(SPACEDOG_BACKEND, TYPE, //
-				toQuery(backendId, username));
-	}
-
 	private SearchResults<Credentials> getCredentials(BoolSearch query) {
 		ElasticClient elastic = Start.get().getElasticClient();
 		Check.isTrue(query.from + query.size <= 1000, "from + size is greater than 1000");
@@ -688,5 +1236,27 @@ public class CredentialsResource extends Resource {
 
 	private CredentialsResource() {
 		SettingsResource.get().registerSettingsClass(CredentialsSettings.class);
+
+		StartConfiguration configuration = Start.get().configuration();
+		long passwordCacheTtl = configuration.credentialsPasswordCacheTtl();
+		invalidations = new CredentialsInvalidations(//
+				Math.max(configuration.credentialsTokenCacheTtl(), passwordCacheTtl));
+
+		tokenCache = CacheBuilder.newBuilder()//
+				.maximumSize(configuration.credentialsTokenCacheSize())//
+				.expireAfterWrite(configuration.credentialsTokenCacheTtl(), TimeUnit.SECONDS)//
+				.recordStats()//
+				.build();
+
+		// configuration makes sure signed tokens have a secret
+		signedTokens = configuration.credentialsTokenSigned() //
+				? Optional.of(new SignedTokens(//
+						configuration.credentialsTokenSecret().get().getBytes(Utils.UTF8)))//
+				: Optional.empty();
+
+		passwordCache = passwordCacheTtl > 0 //
+				? Optional.of(new PasswordCache(configuration.credentialsPasswordCacheSize(), //
+						passwordCacheTtl, invalidations))//
+				: Optional.empty();
 	}
 }
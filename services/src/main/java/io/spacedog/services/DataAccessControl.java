@@ -6,6 +6,7 @@ package io.spacedog.services;
 import io.spacedog.utils.Credentials;
 import io.spacedog.utils.DataPermission;
 import io.spacedog.utils.Schema.SchemaAcl;
+import io.spacedog.utils.SchemaAclTable;
 import io.spacedog.utils.SchemaSettings;
 
 public class DataAccessControl {
@@ -15,13 +16,24 @@ public class DataAccessControl {
 	}
 
 	public static boolean check(Credentials credentials, String type, DataPermission... permissions) {
-		return SettingsResource.get().load(SchemaSettings.class)//
-				.check(credentials, type, permissions);
+		Debug debug = SpaceContext.currentDebug();
+		long start = debug.start();
+		boolean granted = table().check(credentials, type, permissions);
+		debug.stop(Debug.ACL, type, start);
+		return granted;
 	}
 
 	public static String[] types(DataPermission permission, Credentials credentials) {
-		return SettingsResource.get().load(SchemaSettings.class)//
-				.types(permission, credentials);
+		Debug debug = SpaceContext.currentDebug();
+		long start = debug.start();
+		String[] types = table().types(permission, credentials);
+		debug.stop(Debug.ACL, permission.toString(), start);
+		return types;
+	}
+
+	// compiled once per schema settings version
+	private static SchemaAclTable table() {
+		return SettingsResource.get().compile(SchemaSettings.class, SchemaAclTable::new);
 	}
 
 	public static void save(String type, SchemaAcl schemaAcl) {
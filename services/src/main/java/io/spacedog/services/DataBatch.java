@@ -0,0 +1,283 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import io.spacedog.services.BatchResource.BatchJsonRequestWrapper;
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.DataPermission;
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.SpaceParams;
+import net.codestory.http.payload.Payload;
+
+/**
+ * Runs consecutive batch data sub requests with as few elasticsearch calls as
+ * possible: object gets with a single multi get and object creates, updates
+ * and deletes with a single bulk. Access control is checked per sub request
+ * when the run is executed. Writes only granted to object owners are run on
+ * their own between bulks so that writes keep their order. Responses are the
+ * same as if sub requests were run one by one.
+ */
+public class DataBatch {
+
+	public enum Kind {
+		read, write
+	}
+
+	public static class Item {
+		private Kind kind;
+		private String method;
+		private String type;
+		private String id;
+		private boolean ownerOnly;
+		private BatchJsonRequestWrapper request;
+
+		public Kind kind() {
+			return kind;
+		}
+
+		public BatchJsonRequestWrapper request() {
+			return request;
+		}
+	}
+
+	private static final String TYPE_ROUTE = "/1/data/:type";
+	private static final String OBJECT_ROUTE = "/1/data/:type/:id";
+
+	private static final RouteTemplates routes = new RouteTemplates(DataResource.get());
+
+	/**
+	 * Returns the batch item of this sub request if it is a data object get,
+	 * create, update or delete, null otherwise. Sub requests with their own
+	 * headers are not batched since they might change authentication.
+	 */
+	public static Item toItem(BatchJsonRequestWrapper request) {
+		ObjectNode json = request.unwrap(ObjectNode.class);
+		String method = json.path("method").asText().toUpperCase();
+		String path = json.path("path").asText();
+
+		if (json.has("headers") || path.indexOf('?') >= 0 || path.indexOf('%') >= 0)
+			return null;
+
+		String template = routes.resolve(method, path).template;
+		String[] segments = path.split("/");
+
+		Item item = new Item();
+		item.request = request;
+		item.method = method;
+
+		if (method.equals("GET") && template.equals(OBJECT_ROUTE))
+			item.kind = Kind.read;
+		else if (method.equals("POST") && template.equals(TYPE_ROUTE))
+			item.kind = Kind.write;
+		else if ((method.equals("PUT") || method.equals("DELETE")) //
+				&& template.equals(OBJECT_ROUTE))
+			item.kind = Kind.write;
+		else
+			return null;
+
+		item.type = segments[3];
+		item.id = segments.length > 4 ? segments[4] : null;
+		return item;
+	}
+
+	/**
+	 * Returns the payloads of these items in the same order. Items must all
+	 * be of the same kind. Sub requests not allowed to be batched are run by
+	 * the specified function.
+	 */
+	public static List<Payload> execute(List<Item> items, Function<BatchJsonRequestWrapper, Payload> single) {
+		Payload[] payloads = new Payload[items.size()];
+
+		if (items.get(0).kind == Kind.read)
+			read(items, payloads, single);
+		else
+			write(items, payloads, single);
+
+		return Arrays.asList(payloads);
+	}
+
+	//
+	// Implementation
+	//
+
+	private static void read(List<Item> items, Payload[] payloads, //
+			Function<BatchJsonRequestWrapper, Payload> single) {
+
+		Credentials credentials = SpaceContext.getCredentials();
+		ElasticClient elastic = Start.get().getElasticClient();
+		MultiGetRequestBuilder multiGet = elastic.prepareMultiGet();
+		List<Integer> positions = Lists.newArrayList();
+
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+
+			if (DataAccessControl.check(credentials, item.type, //
+					DataPermission.read_all, DataPermission.search))
+				item.ownerOnly = false;
+			else if (DataAccessControl.check(credentials, item.type, DataPermission.read))
+				item.ownerOnly = true;
+			else {
+				// returns the usual forbidden error
+				payloads[i] = single.apply(item.request);
+				continue;
+			}
+
+			multiGet.add(elastic.toAlias(credentials.target(), item.type), item.type, item.id);
+			positions.add(i);
+		}
+
+		if (positions.isEmpty())
+			return;
+
+		try {
+			MultiGetItemResponse[] responses = multiGet.get().getResponses();
+			for (int j = 0; j < responses.length; j++) {
+				int i = positions.get(j);
+				payloads[i] = toPayload(items.get(i), responses[j], credentials);
+			}
+		} catch (Throwable t) {
+			for (int i : positions)
+				payloads[i] = JsonPayload.error(t);
+		}
+	}
+
+	private static Payload toPayload(Item item, MultiGetItemResponse response, Credentials credentials) {
+		try {
+			if (response.isFailed())
+				return JsonPayload.error(response.getFailure().getFailure());
+
+			ObjectNode object = DataStore.get().toObject(response.getResponse());
+
+			if (item.ownerOnly //
+					&& !credentials.name().equals(Json.get(object, "meta.createdBy").asText()))
+				throw Exceptions.forbidden("not the owner of [%s][%s] object", item.type, item.id);
+
+			return JsonPayload.json(object);
+
+		} catch (Throwable t) {
+			return JsonPayload.error(t);
+		}
+	}
+
+	private static void write(List<Item> items, Payload[] payloads, //
+			Function<BatchJsonRequestWrapper, Payload> single) {
+
+		Credentials credentials = SpaceContext.getCredentials();
+		Bulk bulk = new Bulk(credentials);
+
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+
+			if (isBulkGranted(item, credentials)) {
+				try {
+					bulk.add(i, item);
+				} catch (Throwable t) {
+					payloads[i] = JsonPayload.error(t);
+				}
+			} else {
+				// previous writes must be done before this one
+				bulk.execute(items, payloads);
+				payloads[i] = single.apply(item.request);
+			}
+		}
+
+		bulk.execute(items, payloads);
+	}
+
+	private static boolean isBulkGranted(Item item, Credentials credentials) {
+		switch (item.method) {
+		case "POST":
+			return DataAccessControl.check(credentials, item.type, DataPermission.create);
+		case "PUT":
+			return DataAccessControl.check(credentials, item.type, DataPermission.update_all);
+		default:
+			return DataAccessControl.check(credentials, item.type, DataPermission.delete_all);
+		}
+	}
+
+	private static class Bulk {
+
+		private Credentials credentials;
+		private ElasticClient elastic = Start.get().getElasticClient();
+		private BulkRequestBuilder builder;
+		private List<Integer> positions = Lists.newArrayList();
+
+		private Bulk(Credentials credentials) {
+			this.credentials = credentials;
+			this.builder = elastic.prepareBulk();
+		}
+
+		private void add(int position, Item item) throws Exception {
+			String backendId = credentials.target();
+
+			if (item.method.equals("POST"))
+				builder.add(DataResource.get().prepareCreate(credentials, item.type, //
+						item.request.content(), item.request.query().get("id")));
+
+			else if (item.method.equals("PUT")) {
+				ObjectNode object = Json.readObject(item.request.content());
+				DataResource.get().checkIdPath(credentials, item.type, item.id, object);
+				long version = item.request.query().getLong(SpaceParams.VERSION, 0l);
+
+				if (item.request.query().getBoolean(SpaceParams.STRICT, false))
+					builder.add(DataStore.get().prepareUpdateObject(backendId, //
+							item.type, item.id, version, object, credentials.name()));
+				else
+					builder.add(DataStore.get().preparePatchObject(backendId, //
+							item.type, item.id, version, object, credentials.name()));
+
+			} else
+				builder.add(elastic.prepareDelete(backendId, item.type, item.id));
+
+			positions.add(position);
+		}
+
+		private void execute(List<Item> items, Payload[] payloads) {
+			if (positions.isEmpty())
+				return;
+
+			try {
+				BulkItemResponse[] responses = builder.get().getItems();
+				for (int j = 0; j < responses.length; j++) {
+					int i = positions.get(j);
+					payloads[i] = toPayload(items.get(i), responses[j]);
+				}
+			} catch (Throwable t) {
+				for (int i : positions)
+					payloads[i] = JsonPayload.error(t);
+			}
+
+			builder = elastic.prepareBulk();
+			positions.clear();
+		}
+
+		private Payload toPayload(Item item, BulkItemResponse response) {
+			if (response.isFailed())
+				return JsonPayload.error(response.getFailure().getCause());
+
+			if (item.method.equals("DELETE"))
+				return ((DeleteResponse) response.getResponse()).isFound() //
+						? JsonPayload.success() //
+						: JsonPayload.error(Exceptions.notFound(//
+								credentials.target(), item.type, item.id));
+
+			return JsonPayload.saved(item.method.equals("POST"), credentials.target(), "/1/data", //
+					response.getType(), response.getId(), response.getVersion());
+		}
+	}
+}
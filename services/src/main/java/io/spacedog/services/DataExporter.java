@@ -0,0 +1,95 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Strings;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Json;
+
+/**
+ * Exports objects of a type as NDJSON, one object per line, with their id,
+ * type and version in meta like search results. Objects are read with a
+ * scroll and written straight from their source bytes. Each page is written
+ * and flushed as soon as elasticsearch returns it, so that only one page of
+ * objects is in memory at a time whatever the number of objects exported.
+ * The first page is searched at construction so that search errors are still
+ * returned as regular error payloads.
+ */
+public class DataExporter {
+
+	public static final String NDJSON_CONTENT = "application/x-ndjson";
+	public static final String GZIP_CONTENT = "application/gzip";
+
+	private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+	private ElasticClient elastic;
+	private SearchResponse response;
+
+	public DataExporter(Credentials credentials, String type, String queryText, int pageSize) {
+		this.elastic = Start.get().getElasticClient();
+
+		QueryBuilder query = Strings.isNullOrEmpty(queryText) //
+				? QueryBuilders.matchAllQuery() //
+				: QueryBuilders.simpleQueryStringQuery(queryText);
+
+		// sorted on _doc since this is the cheapest scroll order
+		this.response = elastic.prepareSearch(credentials.target(), type)//
+				.setTypes(type)//
+				.setQuery(query)//
+				.addSort("_doc", SortOrder.ASC)//
+				.setVersion(true)//
+				.setSize(pageSize)//
+				.setScroll(KEEP_ALIVE)//
+				.get();
+	}
+
+	public long total() {
+		return response.getHits().getTotalHits();
+	}
+
+	public void write(OutputStream output, boolean gzip) throws IOException {
+		String scrollId = response.getScrollId();
+
+		try {
+			OutputStream stream = gzip ? new GZIPOutputStream(output) : output;
+			JsonGenerator generator = Json.mapper().getFactory().createGenerator(stream);
+			// lines are separated by new lines instead of spaces
+			generator.setRootValueSeparator(null);
+
+			while (response.getHits().getHits().length > 0) {
+				for (SearchHit hit : response.getHits().getHits()) {
+					SearchHitWriter.writeObject(generator, hit);
+					generator.writeRaw('\n');
+				}
+
+				generator.flush();
+
+				response = elastic.prepareSearchScroll(scrollId)//
+						.setScroll(KEEP_ALIVE)//
+						.get();
+
+				scrollId = response.getScrollId();
+			}
+
+			if (gzip)
+				((GZIPOutputStream) stream).finish();
+
+		} finally {
+			elastic.prepareClearScroll(scrollId).get();
+		}
+	}
+}
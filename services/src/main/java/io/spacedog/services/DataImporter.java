@@ -0,0 +1,140 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.JsonBuilder;
+import io.spacedog.utils.Schema;
+import io.spacedog.utils.Utils;
+import net.codestory.http.payload.Payload;
+
+/**
+ * Imports a stream of NDJSON objects of the same type, one object per line,
+ * in bulks. Lines are read, given their meta and id and added to the current
+ * bulk one by one so that only one bulk of objects is in memory at a time.
+ * The create permission and the schema are checked once for all objects.
+ * Only failed lines get their own result.
+ */
+public class DataImporter {
+
+	private Credentials credentials;
+	private String type;
+	private int batchSize;
+	private Schema schema;
+	private ElasticClient elastic;
+
+	private BulkRequestBuilder bulk;
+	private List<Integer> lines = Lists.newArrayList();
+	private ObjectNode meta;
+
+	private ArrayNode failures = Json.array();
+	private int created;
+	private int failed;
+
+	public DataImporter(Credentials credentials, String type, int batchSize) {
+		this.credentials = credentials;
+		this.type = type;
+		this.batchSize = batchSize;
+		this.elastic = Start.get().getElasticClient();
+		this.schema = elastic.getSchema(credentials.target(), type);
+	}
+
+	public Payload run(InputStream input) throws IOException {
+		long start = System.currentTimeMillis();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, Utils.UTF8));
+		int number = 0;
+		String text = null;
+
+		while ((text = reader.readLine()) != null) {
+			number++;
+
+			if (text.trim().isEmpty())
+				continue;
+
+			try {
+				add(number, text);
+			} catch (Exception e) {
+				addFailure(number, e);
+			}
+
+			if (lines.size() == batchSize)
+				flush();
+		}
+
+		flush();
+
+		long took = System.currentTimeMillis() - start;
+
+		JsonBuilder<ObjectNode> builder = JsonPayload.builder()//
+				.put("took", took)//
+				.put("total", created + failed)//
+				.put("created", created)//
+				.put("failed", failed)//
+				.put("objectsPerSecond", took == 0 ? created : created * 1000 / took);
+
+		return JsonPayload.json(builder.node("failures", failures));
+	}
+
+	//
+	// Implementation
+	//
+
+	private void add(int number, String text) {
+		ObjectNode object = Json.readObject(text);
+
+		if (bulk == null) {
+			bulk = elastic.prepareBulk();
+			// all objects of a bulk share the same meta
+			meta = DataStore.get().newMeta(credentials.name());
+		}
+
+		bulk.add(DataStore.get().prepareCreateObject(credentials.target(), type, //
+				DataResource.get().toId(schema, object, null), object, meta));
+		lines.add(number);
+	}
+
+	private void flush() {
+		if (lines.isEmpty())
+			return;
+
+		try {
+			BulkItemResponse[] items = bulk.get().getItems();
+			for (int i = 0; i < items.length; i++) {
+				if (items[i].isFailed())
+					addFailure(lines.get(i), items[i].getFailure().getCause());
+				else
+					created++;
+			}
+		} catch (Throwable t) {
+			for (int line : lines)
+				addFailure(line, t);
+		}
+
+		bulk = null;
+		lines.clear();
+	}
+
+	private void addFailure(int line, Throwable error) {
+		failed++;
+		failures.addObject()//
+				.put("line", line)//
+				.put("success", false)//
+				.put("status", JsonPayload.status(error))//
+				.set("error", JsonPayload.toJson(error, false));
+	}
+}
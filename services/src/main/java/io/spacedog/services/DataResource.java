@@ -3,8 +3,10 @@
  */
 package io.spacedog.services;
 
+import java.io.IOException;
 import java.util.Optional;
 
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.common.Strings;
@@ -18,6 +20,7 @@ import io.spacedog.utils.DataPermission;
 import io.spacedog.utils.Exceptions;
 import io.spacedog.utils.Json;
 import io.spacedog.utils.Schema;
+import io.spacedog.utils.SpaceHeaders;
 import io.spacedog.utils.SpaceParams;
 import net.codestory.http.Context;
 import net.codestory.http.annotations.Delete;
@@ -26,6 +29,7 @@ import net.codestory.http.annotations.Post;
 import net.codestory.http.annotations.Prefix;
 import net.codestory.http.annotations.Put;
 import net.codestory.http.payload.Payload;
+import net.codestory.http.payload.StreamingOutput;
 
 @Prefix("/1/data")
 public class DataResource extends Resource {
@@ -53,40 +57,35 @@ public class DataResource extends Resource {
 		Credentials credentials = SpaceContext.getCredentials();
 		if (DataAccessControl.check(credentials, type, DataPermission.create)) {
 
-			Check.notNullOrEmpty(body, "JSON body");
-			ObjectNode object = Json.readObject(body);
+			IndexResponse response = prepareCreate(credentials, type, body, context.get("id")).get();
 
-			/*
-			 * 3 cases: (1) id is not provided and generated by ES when object
-			 * is indexed, (2) id is a property of the object and the _id schema
-			 * field contains the property path, (3) id is provided with the
-			 * 'id' query parameter
-			 */
-			Schema schema = Start.get().getElasticClient()//
-					.getSchema(credentials.target(), type);
+			return JsonPayload.saved(true, credentials.target(), "/1/data", response.getType(), response.getId(),
+					response.getVersion());
+		}
+		throw Exceptions.forbidden("forbidden to create [%s] objects", type);
+	}
 
-			Optional<String> id = Optional.empty();
+	@Post("/:type/_import")
+	@Post("/:type/_import/")
+	public Payload postImport(String type, Context context) throws IOException {
 
-			if (schema.hasIdPath()) {
-				JsonNode idPropertyValue = Json.get(object, schema.idPath());
+		Credentials credentials = SpaceContext.getCredentials();
+		if (!DataAccessControl.check(credentials, type, DataPermission.create))
+			throw Exceptions.forbidden("forbidden to create [%s] objects", type);
 
-				if (idPropertyValue == null)
-					throw Exceptions.illegalArgument(//
-							"id path [%s] of type [%s] is null or missing", //
-							schema.idPath(), type);
+		int batchSize = context.query().getInteger("batchSize", 500);
 
-				id = Optional.of(idPropertyValue.asText());
+		if (batchSize < 1 || batchSize > 10000)
+			throw Exceptions.illegalArgument(//
+					"batch size [%s] must be between 1 and 10000", batchSize);
 
-			} else if (!Strings.isNullOrEmpty(context.get("id")))
-				id = Optional.of(context.get("id"));
+		Payload payload = new DataImporter(credentials, type, batchSize)//
+				.run(context.request().inputStream());
 
-			IndexResponse response = DataStore.get().createObject(//
-					credentials.target(), type, id, object, credentials.name());
+		DataStore.get().refreshType(context.query().getBoolean(SpaceParams.REFRESH, false), //
+				credentials.target(), type);
 
-			return JsonPayload.saved(true, credentials.target(), "/1/data", response.getType(), response.getId(),
-					response.getVersion());
-		}
-		throw Exceptions.forbidden("forbidden to create [%s] objects", type);
+		return payload;
 	}
 
 	@Delete("/:type")
@@ -95,6 +94,50 @@ public class DataResource extends Resource {
 		return SearchResource.get().deleteSearchForType(type, null, context);
 	}
 
+	@Get("/:type/_export")
+	@Get("/:type/_export/")
+	public Payload getExport(String type, Context context) {
+
+		Credentials credentials = SpaceContext.getCredentials();
+		if (!DataAccessControl.check(credentials, type, DataPermission.search))
+			throw Exceptions.forbidden("forbidden to search [%s] objects", type);
+
+		int size = context.query().getInteger("size", 1000);
+
+		if (size < 1 || size > 10000)
+			throw Exceptions.illegalArgument(//
+					"size [%s] must be between 1 and 10000", size);
+
+		boolean refresh = context.query().getBoolean(SpaceParams.REFRESH, false);
+		DataStore.get().refreshType(refresh, credentials.target(), type);
+
+		boolean gzip = context.query().getBoolean("gzip", false);
+		DataExporter exporter = new DataExporter(credentials, type, context.get("q"), size);
+
+		// objects are written once this request
+		// space context is removed from this thread
+		SpaceContext spaceContext = SpaceContext.get();
+
+		Payload payload = new Payload(gzip ? DataExporter.GZIP_CONTENT : DataExporter.NDJSON_CONTENT, //
+				(StreamingOutput) output -> {
+					try {
+						SpaceContext.call(spaceContext, () -> {
+							exporter.write(output, gzip);
+							return null;
+						});
+					} catch (IOException | RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						throw Exceptions.runtime(e);
+					}
+				});
+
+		return gzip //
+				? payload.withHeader(SpaceHeaders.CONTENT_DISPOSITION, //
+						"attachment; filename=\"" + type + ".ndjson.gz\"")
+				: payload;
+	}
+
 	@Get("/:type/:id")
 	@Get("/:type/:id/")
 	public Payload getById(String type, String id, Context context) {
@@ -123,17 +166,7 @@ public class DataResource extends Resource {
 		checkPutPermissions(type, id, credentials);
 
 		ObjectNode object = Json.readObject(body);
-		Schema schema = Start.get().getElasticClient()//
-				.getSchema(credentials.target(), type);
-
-		// TODO add a test on this idPath feature
-		if (schema.hasIdPath()) {
-			JsonNode idValue = Json.get(object, schema.idPath());
-			if (!Json.isNull(idValue) && !id.equals(idValue.asText()))
-				throw Exceptions.illegalArgument(//
-						"field [%s][%s][%s] is the object id and can not be updated to [%s]", //
-						type, id, schema.idPath(), idValue.asText());
-		}
+		checkIdPath(credentials, type, id, object);
 
 		boolean strict = context.query().getBoolean(SpaceParams.STRICT, false);
 		// TODO return better exception-message in case of invalid version
@@ -183,6 +216,56 @@ public class DataResource extends Resource {
 	// Implementation
 	//
 
+	IndexRequestBuilder prepareCreate(Credentials credentials, String type, String body, String idParam) {
+
+		Check.notNullOrEmpty(body, "JSON body");
+		ObjectNode object = Json.readObject(body);
+
+		/*
+		 * 3 cases: (1) id is not provided and generated by ES when object is
+		 * indexed, (2) id is a property of the object and the _id schema field
+		 * contains the property path, (3) id is provided with the 'id' query
+		 * parameter
+		 */
+		Schema schema = Start.get().getElasticClient()//
+				.getSchema(credentials.target(), type);
+
+		return DataStore.get().prepareCreateObject(credentials.target(), type, //
+				toId(schema, object, idParam), object, credentials.name());
+	}
+
+	Optional<String> toId(Schema schema, ObjectNode object, String idParam) {
+		if (schema.hasIdPath()) {
+			JsonNode idPropertyValue = Json.get(object, schema.idPath());
+
+			if (idPropertyValue == null)
+				throw Exceptions.illegalArgument(//
+						"id path [%s] of type [%s] is null or missing", //
+						schema.idPath(), schema.name());
+
+			return Optional.of(idPropertyValue.asText());
+		}
+
+		if (!Strings.isNullOrEmpty(idParam))
+			return Optional.of(idParam);
+
+		return Optional.empty();
+	}
+
+	void checkIdPath(Credentials credentials, String type, String id, ObjectNode object) {
+		Schema schema = Start.get().getElasticClient()//
+				.getSchema(credentials.target(), type);
+
+		// TODO add a test on this idPath feature
+		if (schema.hasIdPath()) {
+			JsonNode idValue = Json.get(object, schema.idPath());
+			if (!Json.isNull(idValue) && !id.equals(idValue.asText()))
+				throw Exceptions.illegalArgument(//
+						"field [%s][%s][%s] is the object id and can not be updated to [%s]", //
+						type, id, schema.idPath(), idValue.asText());
+		}
+	}
+
 	private void checkPutPermissions(String type, String id, Credentials credentials) {
 
 		if (DataAccessControl.check(credentials, type, DataPermission.update_all))
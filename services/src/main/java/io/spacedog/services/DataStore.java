@@ -39,10 +39,13 @@ public class DataStore {
 	}
 
 	public ObjectNode getObject(String backendId, String type, String id) {
-		GetResponse response = Start.get().getElasticClient().get(backendId, type, id);
+		return toObject(Start.get().getElasticClient().get(backendId, type, id));
+	}
+
+	public ObjectNode toObject(GetResponse response) {
 
 		if (!response.isExists())
-			throw NotFoundException.object(type, id);
+			throw NotFoundException.object(response.getType(), response.getId());
 
 		ObjectNode object = Json.readObject(response.getSourceAsString());
 
@@ -64,29 +67,42 @@ public class DataStore {
 
 	IndexResponse createObject(String backendId, String type, Optional<String> id, ObjectNode object,
 			String createdBy) {
+		return prepareCreateObject(backendId, type, id, object, createdBy).get();
+	}
 
-		object = setMetaBeforeCreate(object, createdBy);
-		ElasticClient elasticClient = Start.get().getElasticClient();
+	IndexRequestBuilder prepareCreateObject(String backendId, String type, Optional<String> id, ObjectNode object,
+			String createdBy) {
 
-		return id.isPresent() //
-				? elasticClient.index(backendId, type, id.get(), object.toString())//
-				: elasticClient.index(backendId, type, object.toString());
+		return prepareCreateObject(backendId, type, id, object, newMeta(createdBy));
 	}
 
-	private ObjectNode setMetaBeforeCreate(ObjectNode object, String createdBy) {
-		String now = DateTime.now().toString();
+	/**
+	 * Same as above but with the specified meta. Imports share the same meta
+	 * between all objects of a bulk.
+	 */
+	IndexRequestBuilder prepareCreateObject(String backendId, String type, Optional<String> id, ObjectNode object,
+			ObjectNode meta) {
 
 		// replace meta to avoid developers to
 		// set any meta fields directly
-		object.set("meta",
-				Json.objectBuilder()//
-						.put("createdBy", createdBy)//
-						.put("updatedBy", createdBy)//
-						.put("createdAt", now)//
-						.put("updatedAt", now)//
-						.build());
+		object.set("meta", meta);
+		ElasticClient elasticClient = Start.get().getElasticClient();
 
-		return object;
+		return (id.isPresent() //
+				? elasticClient.prepareIndex(backendId, type, id.get())//
+				: elasticClient.prepareIndex(backendId, type))//
+						.setSource(object.toString());
+	}
+
+	ObjectNode newMeta(String createdBy) {
+		String now = DateTime.now().toString();
+
+		return Json.objectBuilder()//
+				.put("createdBy", createdBy)//
+				.put("updatedBy", createdBy)//
+				.put("createdAt", now)//
+				.put("updatedAt", now)//
+				.build();
 	}
 
 	/**
@@ -94,6 +110,11 @@ public class DataStore {
 	 */
 	public IndexResponse updateObject(String backendId, String type, String id, long version, ObjectNode object,
 			String updatedBy) {
+		return prepareUpdateObject(backendId, type, id, version, object, updatedBy).get();
+	}
+
+	IndexRequestBuilder prepareUpdateObject(String backendId, String type, String id, long version,
+			ObjectNode object, String updatedBy) {
 
 		object.with("meta").remove("id");
 		object.with("meta").remove("version");
@@ -109,7 +130,7 @@ public class DataStore {
 				.setSource(object.toString());
 		if (version > 0)
 			builder.setVersion(version);
-		return builder.get();
+		return builder;
 	}
 
 	public IndexResponse updateObject(String backendId, ObjectNode object, String updatedBy) {
@@ -138,6 +159,11 @@ public class DataStore {
 
 	public UpdateResponse patchObject(String backendId, String type, String id, long version, ObjectNode object,
 			String updatedBy) {
+		return preparePatchObject(backendId, type, id, version, object, updatedBy).get();
+	}
+
+	UpdateRequestBuilder preparePatchObject(String backendId, String type, String id, long version,
+			ObjectNode object, String updatedBy) {
 
 		object.with("meta").removeAll()//
 				.put("updatedBy", updatedBy)//
@@ -149,7 +175,7 @@ public class DataStore {
 		if (version > 0)
 			update.setVersion(version);
 
-		return update.get();
+		return update;
 	}
 
 	// public DeleteByQueryResponse delete(String index, String query, String...
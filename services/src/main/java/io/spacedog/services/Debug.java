@@ -1,13 +1,58 @@
 package io.spacedog.services;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import io.spacedog.utils.Json;
+import io.spacedog.utils.JsonBuilder;
+import io.spacedog.utils.Utils;
 
+/**
+ * Request debug information. When debug is on, it also records how long the
+ * request spends in authentication, settings loads, acl checks,
+ * elasticsearch and aws calls and json serialization. Timings are returned
+ * in the debug json and in the Server-Timing response header. Json
+ * serialization happens once the debug json is built and is only timed in the
+ * header. When debug is off, timing methods do nothing.
+ */
 public class Debug {
 
+	public static final String SERVER_TIMING = "Server-Timing";
+
+	public static final String AUTH = "auth";
+	public static final String SETTINGS = "settings";
+	public static final String ACL = "acl";
+	public static final String ELASTIC = "elastic";
+	public static final String AWS = "aws";
+	public static final String JSON = "json";
+	public static final String COMPILED = "compiled";
+
+	// for code running outside of any request
+	static final Debug NONE = new Debug(false);
+
 	private boolean debug = false;
-	private int batchCredentialChecks = 0;
+	private AtomicInteger batchCredentialChecks = new AtomicInteger();
+	// per check, number of times a check or load already done
+	// in this request has been reused instead
+	private Map<String, AtomicInteger> saved;
+	private long start = System.nanoTime();
+	private List<Timing> timings;
+
+	private static class Timing {
+		private String category;
+		private String detail;
+		private long start;
+		private long nanos;
+	}
 
 	public Debug(boolean debug) {
 		this.debug = debug;
@@ -18,10 +63,159 @@ public class Debug {
 	}
 
 	public void credentialCheck() {
-		batchCredentialChecks++;
+		batchCredentialChecks.incrementAndGet();
+	}
+
+	/**
+	 * Counts a check or load not done again since already done in this
+	 * request, for example by batch sub requests.
+	 */
+	public void saved(String check) {
+		if (debug)
+			savedCounters().computeIfAbsent(check, key -> new AtomicInteger()).incrementAndGet();
+	}
+
+	/**
+	 * Returns the start time to give back to {@link #stop}, 0 if debug is off
+	 * to avoid any clock call.
+	 */
+	public long start() {
+		return debug ? System.nanoTime() : 0;
+	}
+
+	public void stop(String category, String detail, long start) {
+		if (debug)
+			add(category, detail, start, System.nanoTime() - start);
 	}
 
 	public ObjectNode toNode() {
-		return Json.object("batchCredentialChecks", batchCredentialChecks);
+		ObjectNode node = Json.object("batchCredentialChecks", batchCredentialChecks.get());
+
+		if (debug) {
+			JsonBuilder<ObjectNode> builder = Json.objectBuilder()//
+					.put("totalMillis", toMillis(System.nanoTime() - start))//
+					.put(JSON, "only timed in the " + SERVER_TIMING + " header")//
+					.object("categories");
+
+			totals().forEach((category, total) -> builder.object(category)//
+					.put("count", total[0]).put("millis", toMillis(total[1])).end());
+
+			builder.end().array("calls");
+
+			// timings are nested when calls are, acl checks
+			// might for example include settings loads
+			List<Timing> timings = timings();
+			timings.sort((left, right) -> Long.compare(left.start, right.start));
+
+			for (Timing timing : timings)
+				builder.object()//
+						.put("category", timing.category)//
+						.put("detail", timing.detail)//
+						.put("startMillis", toMillis(timing.start - start))//
+						.put("millis", toMillis(timing.nanos))//
+						.end();
+
+			node.set("timings", builder.build());
+
+			ObjectNode checksSaved = node.putObject("checksSaved");
+			savedCounters().forEach((check, count) -> checksSaved.put(check, count.get()));
+		}
+		return node;
+	}
+
+	/**
+	 * Returns timings totals per category in the Server-Timing header format.
+	 */
+	public String toServerTiming() {
+		StringBuilder builder = new StringBuilder();
+
+		totals().forEach((category, total) -> builder.append(category)//
+				.append(";dur=").append(toMillis(total[1]))//
+				.append(";desc=\"").append(total[0]).append(" calls\", "));
+
+		return builder.append("total;dur=")//
+				.append(toMillis(System.nanoTime() - start)).toString();
+	}
+
+	/**
+	 * Returns an aws client request handler timing aws calls in the debug of
+	 * the request they are made from.
+	 */
+	public static RequestHandler2 awsRequestHandler() {
+		return new AwsRequestHandler();
+	}
+
+	//
+	// Implementation
+	//
+
+	private synchronized Map<String, AtomicInteger> savedCounters() {
+		if (saved == null)
+			saved = Maps.newConcurrentMap();
+		return saved;
+	}
+
+	private synchronized void add(String category, String detail, long start, long nanos) {
+		if (timings == null)
+			timings = Lists.newArrayList();
+
+		Timing timing = new Timing();
+		timing.category = category;
+		timing.detail = detail;
+		timing.start = start;
+		timing.nanos = nanos;
+		timings.add(timing);
+	}
+
+	private synchronized List<Timing> timings() {
+		return timings == null ? Lists.newArrayList() : Lists.newArrayList(timings);
+	}
+
+	// per category, count and total nanos
+	private Map<String, long[]> totals() {
+		Map<String, long[]> totals = Maps.newLinkedHashMap();
+		for (Timing timing : timings()) {
+			long[] total = totals.computeIfAbsent(timing.category, key -> new long[2]);
+			total[0]++;
+			total[1] += timing.nanos;
+		}
+		return totals;
+	}
+
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 1000d) / 1000d;
+	}
+
+	private static class AwsRequestHandler extends RequestHandler2 {
+
+		private static final HandlerContextKey<Debug> DEBUG = new HandlerContextKey<>("spacedog-debug");
+		private static final HandlerContextKey<Long> START = new HandlerContextKey<>("spacedog-start");
+
+		@Override
+		public void beforeRequest(Request<?> request) {
+			Debug debug = SpaceContext.currentDebug();
+			if (debug.isTrue()) {
+				request.addHandlerContext(DEBUG, debug);
+				request.addHandlerContext(START, debug.start());
+			}
+		}
+
+		@Override
+		public void afterResponse(Request<?> request, Response<?> response) {
+			stop(request);
+		}
+
+		@Override
+		public void afterError(Request<?> request, Response<?> response, Exception e) {
+			stop(request);
+		}
+
+		private void stop(Request<?> request) {
+			Debug debug = request.getHandlerContext(DEBUG);
+			if (debug != null)
+				debug.stop(AWS, request.getServiceName() + ' ' //
+						+ Utils.removeSuffix(request.getOriginalRequest().getClass().getSimpleName(), "Request"), //
+						request.getHandlerContext(START));
+		}
 	}
 }
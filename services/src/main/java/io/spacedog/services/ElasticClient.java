@@ -1,6 +1,7 @@
 package io.spacedog.services;
 
 import java.util.Arrays;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -8,9 +9,11 @@ import java.util.stream.Stream;
 
 import org.elasticsearch.action.Action;
 import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.IndicesRequest;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
 import org.elasticsearch.action.admin.indices.alias.Alias;
 import org.elasticsearch.action.admin.indices.close.CloseIndexResponse;
@@ -19,20 +22,24 @@ import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.deletebyquery.DeleteByQueryAction;
 import org.elasticsearch.action.deletebyquery.DeleteByQueryRequest;
 import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.ClearScrollRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchScrollRequestBuilder;
 import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.action.support.QuerySourceBuilder;
 import org.elasticsearch.action.update.UpdateRequestBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
 import org.elasticsearch.client.ClusterAdminClient;
 import org.elasticsearch.client.Requests;
 import org.elasticsearch.cluster.health.ClusterHealthStatus;
@@ -46,8 +53,8 @@ import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 
 import io.spacedog.utils.Check;
 import io.spacedog.utils.Exceptions;
@@ -59,15 +66,66 @@ import io.spacedog.utils.Utils;
 public class ElasticClient {
 
 	private Client internalClient;
+	private IndexRegistry registry;
 
 	public ElasticClient(Client client) {
-		this.internalClient = client;
+		this.internalClient = new TimedClient(client);
+		this.registry = new IndexRegistry(() -> internalClient.admin().cluster()//
+				.prepareState().clear().setMetaData(true).get().getState());
 	}
 
 	public void close() {
 		internalClient.close();
 	}
 
+	/**
+	 * Records the latency of every elasticsearch action in metrics, whether
+	 * it is executed from this class or from request builders.
+	 */
+	private static class TimedClient extends FilterClient {
+
+		private TimedClient(Client client) {
+			super(client);
+		}
+
+		@Override
+		protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+				Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+
+			// listeners might be called from elasticsearch threads,
+			// debug is the debug of the request executing this action
+			Debug debug = SpaceContext.currentDebug();
+			long start = System.nanoTime();
+
+			super.doExecute(action, request, new ActionListener<Response>() {
+
+				@Override
+				public void onResponse(Response response) {
+					stop();
+					listener.onResponse(response);
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					stop();
+					listener.onFailure(e);
+				}
+
+				private void stop() {
+					Metrics.get().elastic(action.name(), System.nanoTime() - start);
+					if (debug.isTrue())
+						debug.stop(Debug.ELASTIC, toDetail(action, request), start);
+				}
+			});
+		}
+
+		private static String toDetail(Action<?, ?, ?> action, ActionRequest<?> request) {
+			return request instanceof IndicesRequest //
+					? action.name() + ' ' + Arrays.toString(((IndicesRequest) request).indices()) //
+					: action.name();
+		}
+	}
+
 	//
 	// prepare methods
 	//
@@ -80,10 +138,22 @@ public class ElasticClient {
 		return internalClient.prepareIndex(toAlias(backend, type), type, id);
 	}
 
+	/**
+	 * Indexes in the specified concrete index, for types with more than one
+	 * index behind their alias.
+	 */
+	public IndexRequestBuilder prepareIndexIn(String index, String type) {
+		return internalClient.prepareIndex(index, type);
+	}
+
 	public UpdateRequestBuilder prepareUpdate(String backendId, String type, String id) {
 		return internalClient.prepareUpdate(toAlias(backendId, type), type, id);
 	}
 
+	public DeleteRequestBuilder prepareDelete(String backendId, String type, String id) {
+		return internalClient.prepareDelete(toAlias(backendId, type), type, id);
+	}
+
 	public SearchRequestBuilder prepareSearch() {
 		// forbid any non very specific index list
 		// to avoid the risk of mixing indices from different backend
@@ -104,6 +174,10 @@ public class ElasticClient {
 		return internalClient.prepareSearchScroll(scrollId);
 	}
 
+	public ClearScrollRequestBuilder prepareClearScroll(String scrollId) {
+		return internalClient.prepareClearScroll().addScrollId(scrollId);
+	}
+
 	//
 	// shortcut methods
 	//
@@ -227,6 +301,10 @@ public class ElasticClient {
 		}
 	}
 
+	public MultiGetRequestBuilder prepareMultiGet() {
+		return internalClient.prepareMultiGet();
+	}
+
 	public MultiGetResponse multiGet(String backend, String type, Set<String> ids) {
 		return internalClient.prepareMultiGet().add(toAlias(backend, type), type, ids).get();
 	}
@@ -246,6 +324,11 @@ public class ElasticClient {
 	}
 
 	public void createIndex(String backendId, String type, String mapping, boolean async, int shards, int replicas) {
+		createIndex(toIndex0(backendId, type), toAlias(backendId, type), type, mapping, async, shards, replicas);
+	}
+
+	public void createIndex(String index, String alias, String type, String mapping, boolean async, int shards,
+			int replicas) {
 
 		Settings settings = Settings.builder()//
 				.put("number_of_shards", shards)//
@@ -253,19 +336,21 @@ public class ElasticClient {
 				.build();
 
 		CreateIndexResponse createIndexResponse = internalClient.admin().indices()//
-				.prepareCreate(toIndex0(backendId, type))//
+				.prepareCreate(index)//
 				.addMapping(type, mapping)//
-				.addAlias(new Alias(toAlias(backendId, type)))//
+				.addAlias(new Alias(alias))//
 				.setSettings(settings)//
 				.get();
 
+		registry.invalidate();
+
 		if (!createIndexResponse.isAcknowledged())
 			throw Exceptions.runtime(//
 					"index [%s] creation not acknowledged by the whole cluster", //
-					toIndex0(backendId, type));
+					index);
 
 		if (!async)
-			ensureGreen(backendId, type);
+			ensureGreen(index);
 	}
 
 	public void ensureAllIndicesGreen() {
@@ -313,6 +398,7 @@ public class ElasticClient {
 
 		if (indices != null && indices.length > 0) {
 			DeleteIndexResponse deleteIndexResponse = internalClient.admin().indices().prepareDelete(indices).get();
+			registry.invalidate();
 
 			if (!deleteIndexResponse.isAcknowledged())
 				throw Exceptions.runtime(//
@@ -323,6 +409,20 @@ public class ElasticClient {
 
 	public void deleteIndex(String backendId, String type) {
 		internalClient.admin().indices().prepareDelete(toAlias(backendId, type)).get();
+		registry.invalidate();
+	}
+
+	public void deleteIndices(String... indices) {
+		if (indices.length == 0)
+			return;
+
+		DeleteIndexResponse response = internalClient.admin().indices().prepareDelete(indices).get();
+		registry.invalidate();
+
+		if (!response.isAcknowledged())
+			throw Exceptions.runtime(//
+					"indices %s deletion not acknowledged by the whole cluster", //
+					Arrays.toString(indices));
 	}
 
 	public ImmutableOpenMap<String, ImmutableOpenMap<String, MappingMetaData>> getMappings(String backendId) {
@@ -349,26 +449,23 @@ public class ElasticClient {
 	}
 
 	public Schema getSchema(String backendId, String type) {
+		String alias = toAlias(backendId, type);
+
+		if (!registry.exists(alias, type))
+			throw new IndexNotFoundException(alias);
 
-		// TODO what if this type is unknown?
+		return new Schema(type, registry.schema(alias, type).orElse(null));
+	}
 
-		String source = getMappings(backendId, type).getMappings()//
-				.iterator().next().value.get(type).source().toString();
-		return new Schema(type, //
-				(ObjectNode) Json.readObject(source).get(type).get("_meta"));
+	public Map<String, Schema> getSchemas(String backendId) {
+		Map<String, Schema> schemas = Maps.newTreeMap();
+		registry.schemas(backendId).forEach(//
+				(type, schema) -> schemas.put(type, new Schema(type, schema)));
+		return schemas;
 	}
 
 	public boolean existsIndex(String backendId, String type) {
-		try {
-			return internalClient.admin().indices()//
-					.prepareTypesExists(toAlias(backendId, type))//
-					.setTypes(type)//
-					.get()//
-					.isExists();
-
-		} catch (IndexNotFoundException e) {
-			return false;
-		}
+		return registry.exists(toAlias(backendId, type), type);
 	}
 
 	public void putMapping(String backendId, String type, String mapping) {
@@ -379,6 +476,8 @@ public class ElasticClient {
 				.setUpdateAllTypes(true)//
 				.get();
 
+		registry.invalidate();
+
 		if (!putMappingResponse.isAcknowledged())
 			throw Exceptions.runtime(//
 					"mapping [%s] update not acknowledged by the whole cluster", //
@@ -390,6 +489,8 @@ public class ElasticClient {
 				.setIndicesOptions(IndicesOptions.fromOptions(false, true, true, true))//
 				.get();
 
+		registry.invalidate();
+
 		if (!response.isAcknowledged())
 			throw Exceptions.runtime(//
 					"delete all indices not acknowledged by the cluster");
@@ -409,14 +510,16 @@ public class ElasticClient {
 		return internalClient.admin().cluster();
 	}
 
+	public IndexRegistry registry() {
+		return registry;
+	}
+
 	//
 	// to index help methods
 	//
 
 	public Stream<String> indices() {
-		// TODO if too many customers, my cluster might have too many indices
-		// for this to work correctly
-		return Arrays.stream(internalClient.admin().indices().prepareGetIndex().get().indices());
+		return Arrays.stream(registry.indices());
 	}
 
 	public static class Index {
@@ -448,13 +551,11 @@ public class ElasticClient {
 	}
 
 	public Stream<String> toIndicesStream(String backendId) {
-		String prefix = backendId + "-";
-		return indices()//
-				.filter(indexName -> indexName.startsWith(prefix));
+		return Arrays.stream(registry.indices(backendId));
 	}
 
 	public String[] toIndices(String backendId) {
-		return toIndicesStream(backendId).toArray(String[]::new);
+		return registry.indices(backendId);
 	}
 
 	/**
@@ -0,0 +1,180 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Maps;
+
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+
+/**
+ * In memory registry of cluster indices, aliases and schemas grouped by
+ * backend. It is built from the cluster state metadata and rebuilt when this
+ * metadata changes or when this server creates, updates or deletes indices.
+ * Schemas are parsed once per metadata version.
+ */
+public class IndexRegistry {
+
+	private Supplier<ClusterState> loader;
+	private volatile Snapshot snapshot;
+
+	public IndexRegistry(Supplier<ClusterState> loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Keeps this registry up to date with local node cluster state updates,
+	 * including index changes made by other servers.
+	 */
+	public void listen(ClusterService clusterService) {
+		this.loader = () -> clusterService.state();
+		clusterService.add(event -> {
+			if (event.metaDataChanged())
+				update(event.state().metaData());
+		});
+	}
+
+	public void invalidate() {
+		snapshot = null;
+	}
+
+	public String[] indices() {
+		return snapshot().indices.clone();
+	}
+
+	public String[] indices(String backendId) {
+		Backend backend = snapshot().backends.get(backendId);
+		return backend == null ? new String[0] : backend.indices.clone();
+	}
+
+	public boolean existsIndex(String index) {
+		return Arrays.binarySearch(snapshot().indices, index) >= 0;
+	}
+
+	public boolean exists(String alias, String type) {
+		Map<String, MappingMetaData> mappings = snapshot().aliases.get(alias);
+		return mappings != null && mappings.containsKey(type);
+	}
+
+	public Optional<ObjectNode> schema(String alias, String type) {
+		return snapshot().schema(alias, type);
+	}
+
+	public Map<String, ObjectNode> schemas(String backendId) {
+		Snapshot current = snapshot();
+		Backend backend = current.backends.get(backendId);
+		if (backend == null)
+			return Collections.emptyMap();
+
+		Map<String, ObjectNode> schemas = Maps.newTreeMap();
+		for (String alias : backend.aliases)
+			for (String type : current.aliases.get(alias).keySet())
+				current.schema(alias, type)//
+						.ifPresent(schema -> schemas.put(type, schema));
+		return schemas;
+	}
+
+	//
+	// Implementation
+	//
+
+	private Snapshot snapshot() {
+		Snapshot current = snapshot;
+		return current == null ? update(loader.get().metaData()) : current;
+	}
+
+	private synchronized Snapshot update(MetaData metaData) {
+		Snapshot current = snapshot;
+		if (current == null || current.version < metaData.version()) {
+			current = new Snapshot(metaData);
+			snapshot = current;
+		}
+		return current;
+	}
+
+	private static class Backend {
+		private String[] indices = new String[0];
+		private String[] aliases = new String[0];
+	}
+
+	private static class Snapshot {
+
+		private long version;
+		private String[] indices;
+		private Map<String, Backend> backends = Maps.newHashMap();
+		private Map<String, Map<String, MappingMetaData>> aliases = Maps.newHashMap();
+		private ConcurrentMap<String, Optional<ObjectNode>> schemas = Maps.newConcurrentMap();
+
+		private Snapshot(MetaData metaData) {
+			this.version = metaData.version();
+			this.indices = new String[metaData.indices().size()];
+
+			int i = 0;
+			for (ObjectCursor<IndexMetaData> cursor : metaData.indices().values()) {
+				IndexMetaData index = cursor.value;
+				indices[i++] = index.getIndex();
+
+				Map<String, MappingMetaData> mappings = Maps.newHashMap();
+				for (ObjectCursor<MappingMetaData> mapping : index.getMappings().values())
+					mappings.put(mapping.value.type(), mapping.value);
+
+				Backend backend = backends.computeIfAbsent(//
+						index.getIndex().split("-", 2)[0], id -> new Backend());
+				backend.indices = append(backend.indices, index.getIndex());
+
+				for (ObjectCursor<String> alias : index.getAliases().keys()) {
+					aliases.put(alias.value, mappings);
+					backend.aliases = append(backend.aliases, alias.value);
+				}
+			}
+
+			Arrays.sort(indices);
+		}
+
+		private Optional<ObjectNode> schema(String alias, String type) {
+			Map<String, MappingMetaData> mappings = aliases.get(alias);
+			if (mappings == null || !mappings.containsKey(type))
+				return Optional.empty();
+
+			// schemas are cached for this metadata version
+			// and copied since callers might modify them
+			Optional<ObjectNode> schema = schemas.computeIfAbsent(alias + '/' + type, //
+					key -> toSchema(mappings.get(type)));
+			return schema.map(ObjectNode::deepCopy);
+		}
+
+		private static Optional<ObjectNode> toSchema(MappingMetaData mapping) {
+			try {
+				JsonNode meta = Json.readObject(mapping.source().string())//
+						.get(mapping.type()).get("_meta");
+				return meta == null || meta.isNull() ? Optional.empty() //
+						: Optional.of((ObjectNode) meta);
+			} catch (Exception e) {
+				throw Exceptions.runtime(e, "invalid [%s] mapping", mapping.type());
+			}
+		}
+
+		private static String[] append(String[] array, String value) {
+			String[] result = Arrays.copyOf(array, array.length + 1);
+			result[array.length] = value;
+			return result;
+		}
+	}
+}
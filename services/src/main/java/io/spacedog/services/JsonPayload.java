@@ -3,11 +3,16 @@
  */
 package io.spacedog.services;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ShardOperationFailedException;
 import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
 
 import com.amazonaws.AmazonServiceException;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -21,6 +26,7 @@ import io.spacedog.utils.SpaceHeaders;
 import io.spacedog.utils.Utils;
 import net.codestory.http.constants.HttpStatus;
 import net.codestory.http.payload.Payload;
+import net.codestory.http.payload.StreamingOutput;
 
 public class JsonPayload {
 
@@ -29,6 +35,37 @@ public class JsonPayload {
 	public static final String JSON_CONTENT = "application/json";
 	public static final String JSON_CONTENT_UTF8 = JSON_CONTENT + ";charset=UTF-8";
 
+	/**
+	 * Streamed output reading the request input stream while it is written.
+	 * The request content must not be read before.
+	 */
+	public interface InputStreamingOutput extends StreamingOutput {
+	}
+
+	/**
+	 * Streamed json output with a summary of its content known before it is
+	 * written, like search took and total, for request logs.
+	 */
+	public static class SummarizedOutput implements StreamingOutput {
+
+		private ObjectNode summary;
+		private StreamingOutput output;
+
+		public SummarizedOutput(ObjectNode summary, StreamingOutput output) {
+			this.summary = summary;
+			this.output = output;
+		}
+
+		public ObjectNode summary() {
+			return summary;
+		}
+
+		@Override
+		public void write(OutputStream output) throws IOException {
+			this.output.write(output);
+		}
+	}
+
 	public static Payload success() {
 		return json(HttpStatus.OK);
 	}
@@ -187,6 +224,29 @@ public class JsonPayload {
 		return new Payload(JSON_CONTENT_UTF8, content, httpStatus);
 	}
 
+	/**
+	 * Returns a copy of this json payload with its content serialized to
+	 * bytes to time the serialization sent to the client. Only called on debug
+	 * requests once filters are done reading the json content.
+	 */
+	static Payload serialize(Payload payload, Debug debug) {
+		if (!(payload.rawContent() instanceof JsonNode))
+			return payload;
+
+		long start = debug.start();
+		byte[] bytes = null;
+		try {
+			bytes = Json.mapper().writeValueAsBytes(payload.rawContent());
+		} catch (JsonProcessingException e) {
+			throw Exceptions.runtime(e);
+		}
+		debug.stop(Debug.JSON, bytes.length + " bytes", start);
+
+		return new Payload(payload.rawContentType(), bytes, payload.code())//
+				.withHeaders(payload.headers())//
+				.withCookies(payload.cookies());
+	}
+
 	public static Payload json(String content, int httpStatus) {
 		return new Payload(JSON_CONTENT_UTF8, content, httpStatus);
 	}
@@ -259,6 +319,18 @@ public class JsonPayload {
 		if (rawContent instanceof String)
 			return Json.readNode((String) rawContent);
 
+		// streamed json payloads like search results
+		// are buffered for batch sub requests
+		if (rawContent instanceof StreamingOutput && isJson(payload)) {
+			try {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				((StreamingOutput) rawContent).write(output);
+				return Json.mapper().readTree(output.toByteArray());
+			} catch (IOException e) {
+				throw Exceptions.runtime(e);
+			}
+		}
+
 		return JsonPayload.builder(payload.code()).build();
 		// throw Exceptions.illegalArgument("non json payload: [%s]",
 		// rawContent);
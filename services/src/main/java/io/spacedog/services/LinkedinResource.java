@@ -214,8 +214,10 @@ public class LinkedinResource extends Resource {
 				throw Exceptions.forbidden("guest sign up is disabled");
 
 			credentials = credentialsResource.create(credentials);
-		} else
+		} else {
 			credentials = credentialsResource.update(credentials);
+			credentialsResource.createCurrentSession(credentials);
+		}
 
 		return credentials;
 	}
@@ -0,0 +1,225 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Sets;
+import com.google.common.io.Resources;
+
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.JsonBuilder;
+import io.spacedog.utils.LogSettings;
+import io.spacedog.utils.SpaceParams;
+import io.spacedog.utils.Utils;
+
+/**
+ * Request logs are written in daily or weekly indices named after the UTC
+ * start of their period, all behind the log alias used to read them. Logs
+ * older than the retention are purged by dropping whole indices. Backends
+ * with a shorter retention get their logs deleted by query.
+ */
+public class LogIndices {
+
+	public enum Period {
+		day, week
+	}
+
+	private static final Pattern PARTITION = Pattern.compile("spacedog-log-\\d{8}");
+	private static final DateTimeFormatter FORMAT = DateTimeFormat.forPattern("yyyyMMdd").withZoneUTC();
+
+	private Period period;
+	private int retention;
+	private Set<String> created = Sets.newConcurrentHashSet();
+	private String mapping;
+
+	public LogIndices(Period period, int retention) {
+		this.period = period;
+		this.retention = retention;
+	}
+
+	public String toIndex(DateTime time) {
+		return Resource.SPACEDOG_BACKEND + '-' + LogResource.TYPE //
+				+ '-' + FORMAT.print(start(time));
+	}
+
+	public boolean isPartition(String index) {
+		return PARTITION.matcher(index).matches();
+	}
+
+	/**
+	 * A partition is obsolete when its period ended before the retention
+	 * cutoff, meaning all its logs are older than the retention.
+	 */
+	public boolean isObsolete(String index, DateTime now) {
+		DateTime start = FORMAT.parseDateTime(index.substring(index.lastIndexOf('-') + 1));
+		DateTime end = period == Period.week ? start.plusWeeks(1) : start.plusDays(1);
+		return !end.isAfter(cutoff(now, retention));
+	}
+
+	/**
+	 * Returns the index logs received at the specified time are written to.
+	 * Creates it if it does not exist yet.
+	 */
+	public String ensure(DateTime receivedAt) {
+		String index = toIndex(receivedAt);
+		if (created.contains(index))
+			return index;
+
+		ElasticClient elastic = Start.get().getElasticClient();
+
+		if (!elastic.registry().existsIndex(index))
+			try {
+				elastic.createIndex(index, elastic.toAlias(Resource.SPACEDOG_BACKEND, LogResource.TYPE), //
+						LogResource.TYPE, mapping(), false, //
+						SpaceParams.SHARDS_DEFAULT, SpaceParams.REPLICAS_DEFAULT);
+
+			} catch (IndexAlreadyExistsException ignore) {
+				// created in the meantime by another server
+			}
+
+		created.add(index);
+		return index;
+	}
+
+	public ObjectNode purge() {
+		DateTime now = DateTime.now();
+		ElasticClient elastic = Start.get().getElasticClient();
+		JsonBuilder<ObjectNode> builder = Json.objectBuilder()//
+				.put("retention", retention).array("dropped");
+
+		String[] obsolete = Arrays.stream(elastic.toIndices(Resource.SPACEDOG_BACKEND))//
+				.filter(index -> isPartition(index) && isObsolete(index, now))//
+				.toArray(String[]::new);
+
+		// the index logs were written to before partitioning
+		// is dropped once its most recent log is obsolete
+		String legacy = elastic.toIndex0(Resource.SPACEDOG_BACKEND, LogResource.TYPE);
+		if (elastic.registry().existsIndex(legacy) && isLegacyObsolete(legacy, now)) {
+			obsolete = Arrays.copyOf(obsolete, obsolete.length + 1);
+			obsolete[obsolete.length - 1] = legacy;
+		}
+
+		elastic.deleteIndices(obsolete);
+		created.removeAll(Arrays.asList(obsolete));
+
+		for (String index : obsolete)
+			builder.add(index);
+
+		builder.end().object("deleted");
+
+		for (ElasticClient.Index index : elastic.toIndicesForSchema(SettingsResource.TYPE)) {
+			LogSettings settings = SettingsResource.get().load(index.backendId, LogSettings.class);
+
+			if (settings.retentionDays > 0 && settings.retentionDays < retention) {
+				QueryBuilder query = QueryBuilders.boolQuery()//
+						.filter(QueryBuilders.termQuery("credentials.backendId", index.backendId))//
+						.filter(QueryBuilders.rangeQuery("receivedAt")//
+								.lt(cutoff(now, settings.retentionDays).toString()));
+
+				DeleteByQueryResponse response = elastic.deleteByQuery(//
+						Resource.SPACEDOG_BACKEND, query, LogResource.TYPE);
+
+				builder.put(index.backendId, response.getTotalDeleted());
+			}
+		}
+
+		ObjectNode result = builder.build();
+		Utils.info("[SpaceDog] Purged logs %s", result);
+		return result;
+	}
+
+	/**
+	 * Updates the mapping of existing log indices. Mapping changes existing
+	 * indices do not accept, like disabling the _all field, only apply to
+	 * indices created from now on, the next partition at the latest.
+	 */
+	public void updateMappings() {
+		ElasticClient elastic = Start.get().getElasticClient();
+		if (!elastic.existsIndex(Resource.SPACEDOG_BACKEND, LogResource.TYPE))
+			return;
+
+		try {
+			elastic.putMapping(Resource.SPACEDOG_BACKEND, LogResource.TYPE, mapping());
+
+		} catch (IllegalArgumentException e) {
+			Utils.info("[SpaceDog] Log mapping partially updated [%s], "//
+					+ "full mapping applies from next log index", e.getMessage());
+
+			ObjectNode mapping = Json.readObject(mapping());
+			mapping.with(LogResource.TYPE).remove("_all");
+			elastic.putMapping(Resource.SPACEDOG_BACKEND, LogResource.TYPE, mapping.toString());
+		}
+	}
+
+	String mapping() {
+		if (mapping == null)
+			try {
+				mapping = Resources.toString(Resources.getResource(//
+						"io/spacedog/services/log-mapping.json"), Utils.UTF8);
+			} catch (IOException e) {
+				throw Exceptions.runtime(e, "error loading log mapping");
+			}
+		return mapping;
+	}
+
+	//
+	// Implementation
+	//
+
+	private DateTime start(DateTime time) {
+		DateTime start = time.withZone(DateTimeZone.UTC).withTimeAtStartOfDay();
+		return period == Period.week //
+				? start.withDayOfWeek(DateTimeConstants.MONDAY) : start;
+	}
+
+	private static DateTime cutoff(DateTime now, int days) {
+		return now.withZone(DateTimeZone.UTC).minusDays(days);
+	}
+
+	private boolean isLegacyObsolete(String legacy, DateTime now) {
+		SearchHit[] hits = Start.get().getElasticClient().prepareSearch()//
+				.setIndices(legacy)//
+				.setTypes(LogResource.TYPE)//
+				.addSort("receivedAt", SortOrder.DESC)//
+				.setSize(1)//
+				.get().getHits().getHits();
+
+		return hits.length == 0 || DateTime.parse(//
+				Json.readObject(hits[0].sourceAsString()).get("receivedAt").asText())//
+				.isBefore(cutoff(now, retention));
+	}
+
+	//
+	// Singleton
+	//
+
+	private static LogIndices singleton;
+
+	static LogIndices get() {
+		if (singleton == null) {
+			StartConfiguration configuration = Start.get().configuration();
+			singleton = new LogIndices(configuration.logIndexPeriod(), //
+					configuration.logRetention());
+		}
+		return singleton;
+	}
+}
@@ -1,11 +1,11 @@
 package io.spacedog.services;
 
-import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
 import org.elasticsearch.action.search.SearchResponse;
@@ -22,13 +22,15 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import com.google.common.io.Resources;
 
+import io.spacedog.services.JsonPayload.InputStreamingOutput;
+import io.spacedog.services.JsonPayload.SummarizedOutput;
 import io.spacedog.utils.Check;
 import io.spacedog.utils.Credentials;
 import io.spacedog.utils.Credentials.Level;
 import io.spacedog.utils.Json;
 import io.spacedog.utils.JsonBuilder;
+import io.spacedog.utils.LogSettings;
 import io.spacedog.utils.SpaceHeaders;
 import io.spacedog.utils.SpaceParams;
 import io.spacedog.utils.Utils;
@@ -49,17 +51,11 @@ public class LogResource extends Resource {
 	// init
 	//
 
-	void init() throws IOException {
+	void init() {
 
-		ElasticClient client = Start.get().getElasticClient();
-
-		String mapping = Resources.toString(Resources.getResource(//
-				"io/spacedog/services/log-mapping.json"), Utils.UTF8);
-
-		if (client.existsIndex(SPACEDOG_BACKEND, TYPE))
-			client.putMapping(SPACEDOG_BACKEND, TYPE, mapping);
-		else
-			client.createIndex(SPACEDOG_BACKEND, TYPE, mapping, false);
+		LogIndices.get().updateMappings();
+		LogIndices.get().ensure(DateTime.now());
+		LogWriter.get().start();
 	}
 
 	//
@@ -98,6 +94,7 @@ public class LogResource extends Resource {
 		Credentials credentials = SpaceContext.checkAdminCredentials();
 
 		QueryBuilder query = QueryBuilders.wrapperQuery(body);
+		LogWriter.get().flush();
 
 		if (!credentials.isTargetingRootApi())
 			query = QueryBuilders.boolQuery()//
@@ -125,6 +122,11 @@ public class LogResource extends Resource {
 
 		Credentials credentials = SpaceContext.checkSuperDogCredentials();
 
+		// root api purge drops obsolete log indices
+		// and applies shorter backend retentions
+		if (credentials.isTargetingRootApi())
+			return JsonPayload.json(LogIndices.get().purge());
+
 		Optional<DeleteByQueryResponse> response = doPurgeBackend(credentials.target(), //
 				context.request().query().getInteger("from", 1000));
 
@@ -224,6 +226,9 @@ public class LogResource extends Resource {
 			query.filter(QueryBuilders.termsQuery("credentials.type", //
 					Lists.newArrayList(type.get().lowerOrEqual())));
 
+		// logs of previous requests might still be queued
+		LogWriter.get().flush();
+
 		DataStore.get().refreshType(true, SPACEDOG_BACKEND, TYPE);
 
 		return Start.get().getElasticClient()//
@@ -248,31 +253,41 @@ public class LogResource extends Resource {
 		return JsonPayload.json(builder);
 	}
 
-	private String log(String uri, Context context, DateTime receivedAt, Payload payload) {
+	private void log(String uri, Context context, DateTime receivedAt, Payload payload) {
+
+		int status = payload == null ? 500 : payload.code();
+		LogSettings settings = SettingsResource.get().load(LogSettings.class);
+
+		if (isSampledOut(settings, context.method(), status))
+			return;
 
 		ObjectNode log = Json.object(//
 				"method", context.method(), //
 				"path", uri, //
 				"receivedAt", receivedAt.toString(), //
 				"processedIn", DateTime.now().getMillis() - receivedAt.getMillis(), //
-				"status", payload == null ? 500 : payload.code());
+				"status", status);
 
 		addCredentials(log);
 		addQuery(log, context);
-		addHeaders(log, context.request().headers().entrySet());
-		addRequestPayload(log, context);
-		addResponsePayload(log, payload, context);
+		addHeaders(log, context.request().headers().entrySet(), settings);
+		addRequestPayload(log, context, payload, settings);
+		addResponsePayload(log, payload, settings);
 
-		return Start.get().getElasticClient()//
-				.index(SPACEDOG_BACKEND, TYPE, log.toString())//
-				.getId();
+		LogWriter.get().log(log);
 	}
 
-	private void addResponsePayload(ObjectNode log, Payload payload, Context context) {
+	private boolean isSampledOut(LogSettings settings, String method, int status) {
+		return settings.successfulGetSampleRate > 1 //
+				&& status < 400 && "GET".equals(method) //
+				&& ThreadLocalRandom.current().nextInt(settings.successfulGetSampleRate) != 0;
+	}
+
+	private void addResponsePayload(ObjectNode log, Payload payload, LogSettings settings) {
 		if (payload != null) {
 			if (payload.rawContent() instanceof ObjectNode) {
 				ObjectNode node = (ObjectNode) payload.rawContent();
-				ObjectNode response = log.putObject("response");
+				ObjectNode response = Json.object();
 				// log the whole json payload but 'results'
 				Iterator<Entry<String, JsonNode>> fields = node.fields();
 				while (fields.hasNext()) {
@@ -280,11 +295,20 @@ public class LogResource extends Resource {
 					if (!field.getKey().equals("results"))
 						response.set(field.getKey(), field.getValue());
 				}
-			}
+				log.set("response", truncate(response, settings));
+
+			} else if (payload.rawContent() instanceof SummarizedOutput)
+				log.set("response", truncate(//
+						((SummarizedOutput) payload.rawContent()).summary(), settings));
 		}
 	}
 
-	private void addRequestPayload(ObjectNode log, Context context) {
+	private void addRequestPayload(ObjectNode log, Context context, Payload payload, LogSettings settings) {
+
+		// streamed batches read the request content themselves
+		// once this log is written
+		if (payload != null && payload.rawContent() instanceof InputStreamingOutput)
+			return;
 
 		try {
 			String content = context.request().content();
@@ -303,7 +327,7 @@ public class LogResource extends Resource {
 					JsonNode securedContent = Json.fullReplaceTextualFields(//
 							Json.readNode(content), "password", "******");
 
-					log.set("jsonContent", securedContent);
+					log.set("jsonContent", truncate(securedContent, settings));
 				}
 			}
 		} catch (Exception e) {
@@ -311,6 +335,23 @@ public class LogResource extends Resource {
 		}
 	}
 
+	/**
+	 * Contents longer than the backend maximum are replaced by a truncation
+	 * marker with their original length and their first characters. Secrets
+	 * are removed before truncation.
+	 */
+	private JsonNode truncate(JsonNode content, LogSettings settings) {
+		if (settings.maxContentLength <= 0)
+			return content;
+
+		String string = content.toString();
+		if (string.length() <= settings.maxContentLength)
+			return content;
+
+		return Json.object("truncated", true, "length", string.length(), //
+				"content", string.substring(0, settings.maxContentLength));
+	}
+
 	private void addQuery(ObjectNode log, Context context) {
 		if (context.query().keys().isEmpty())
 			return;
@@ -332,14 +373,14 @@ public class LogResource extends Resource {
 			logCredentials.put("name", credentials.name());
 	}
 
-	private void addHeaders(ObjectNode log, Set<Entry<String, List<String>>> headers) {
+	private void addHeaders(ObjectNode log, Set<Entry<String, List<String>>> headers, LogSettings settings) {
 
 		for (Entry<String, List<String>> header : headers) {
 
 			String key = header.getKey();
 			List<String> values = header.getValue();
 
-			if (key.equalsIgnoreCase(SpaceHeaders.AUTHORIZATION))
+			if (!settings.isLogged(key))
 				continue;
 
 			if (Utils.isNullOrEmpty(values))
@@ -348,7 +389,7 @@ public class LogResource extends Resource {
 			if (key.equalsIgnoreCase(SpaceHeaders.USER_AGENT)) {
 				log.with("headers").put(key, values.toString()//
 						.substring(1, values.toString().length() - 1));
-				return;
+				continue;
 			}
 
 			if (values.size() == 1)
@@ -372,5 +413,6 @@ public class LogResource extends Resource {
 	}
 
 	private LogResource() {
+		SettingsResource.get().registerSettingsClass(LogSettings.class);
 	}
 }
@@ -0,0 +1,283 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.joda.time.DateTime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Utils;
+
+/**
+ * Writes request logs in the background. Logs are queued by request threads
+ * and indexed by a single writer thread with bulk requests, as soon as a bulk
+ * is full or the flush period has elapsed. When the queue is full, logs are
+ * dropped, or request threads wait for room a second at most, depending on
+ * the overflow policy. With the sample policy, only one log out of sample
+ * rate is queued once the queue is half full. Logs are written to the log
+ * index of the period they were received in.
+ */
+public class LogWriter {
+
+	public enum Overflow {
+		block, drop, sample
+	}
+
+	public interface Bulk {
+		// returns the number of logs that failed to be written
+		int write(List<ObjectNode> logs);
+	}
+
+	private static final long BLOCK_TIMEOUT = 1000;
+
+	private BlockingQueue<Item> queue;
+	private int bulkSize;
+	private long flushPeriod;
+	private Overflow overflow;
+	private int sampleRate;
+	private Bulk bulk;
+	private Thread thread;
+	private volatile boolean running;
+
+	private AtomicLong queued = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong sampledOut = new AtomicLong();
+	private AtomicLong flushed = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong bulks = new AtomicLong();
+	private AtomicLong bulkMillis = new AtomicLong();
+	private AtomicLong maxBulkMillis = new AtomicLong();
+	private AtomicLong sampleCounter = new AtomicLong();
+
+	private static class Item {
+		private ObjectNode log;
+		private CountDownLatch flushed;
+	}
+
+	public LogWriter(Bulk bulk, int queueSize, int bulkSize, long flushPeriod, //
+			Overflow overflow, int sampleRate) {
+		this.bulk = bulk;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.bulkSize = bulkSize;
+		this.flushPeriod = flushPeriod;
+		this.overflow = overflow;
+		this.sampleRate = sampleRate;
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+
+		running = true;
+		thread = new Thread(this::run, "log-writer");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "log-writer-shutdown"));
+	}
+
+	/**
+	 * Stops the writer thread once all queued logs are written.
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+
+		running = false;
+		try {
+			// wakes the writer thread up if waiting for logs
+			Item item = new Item();
+			item.flushed = new CountDownLatch(1);
+			queue.offer(item);
+			thread.join(BLOCK_TIMEOUT * 10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void log(ObjectNode log) {
+		Item item = new Item();
+		item.log = log;
+
+		if (overflow == Overflow.sample //
+				&& queue.size() > queue.remainingCapacity() //
+				&& sampleCounter.incrementAndGet() % sampleRate != 0) {
+			sampledOut.incrementAndGet();
+			return;
+		}
+
+		boolean accepted = false;
+		try {
+			accepted = overflow == Overflow.block //
+					? queue.offer(item, BLOCK_TIMEOUT, TimeUnit.MILLISECONDS) //
+					: queue.offer(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (accepted)
+			queued.incrementAndGet();
+		else
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * Returns when all logs queued before this call are written.
+	 */
+	public void flush() {
+		if (!running) {
+			write(drain());
+			return;
+		}
+
+		Item item = new Item();
+		item.flushed = new CountDownLatch(1);
+
+		try {
+			if (queue.offer(item, BLOCK_TIMEOUT, TimeUnit.MILLISECONDS))
+				item.flushed.await(BLOCK_TIMEOUT * 10, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public ObjectNode toJson() {
+		long count = bulks.get();
+		return Json.object(//
+				"overflow", overflow.toString(), //
+				"queueSize", queue.size(), //
+				"queueCapacity", queue.size() + queue.remainingCapacity(), //
+				"queued", queued.get(), //
+				"dropped", dropped.get(), //
+				"sampledOut", sampledOut.get(), //
+				"flushed", flushed.get(), //
+				"failed", failed.get(), //
+				"bulks", count, //
+				"bulkAverageMillis", count == 0 ? 0 : bulkMillis.get() / count, //
+				"bulkMaxMillis", maxBulkMillis.get());
+	}
+
+	//
+	// Implementation
+	//
+
+	private void run() {
+		List<Item> batch = Lists.newArrayListWithCapacity(bulkSize);
+
+		while (running)
+			try {
+				Item next = queue.poll(flushPeriod, TimeUnit.MILLISECONDS);
+				long deadline = System.currentTimeMillis() + flushPeriod;
+
+				// collects logs until bulk is full, flush period has elapsed
+				// or somebody is waiting for a flush
+				while (next != null) {
+					batch.add(next);
+					if (next.flushed != null || batch.size() >= bulkSize)
+						break;
+
+					long timeout = deadline - System.currentTimeMillis();
+					next = timeout > 0 ? queue.poll(timeout, TimeUnit.MILLISECONDS) : null;
+				}
+
+				write(batch);
+				batch.clear();
+
+			} catch (InterruptedException e) {
+				break;
+			}
+
+		// writes logs queued before stop
+		batch.addAll(drain());
+		write(batch);
+	}
+
+	private List<Item> drain() {
+		List<Item> items = Lists.newArrayList();
+		queue.drainTo(items);
+		return items;
+	}
+
+	private void write(List<Item> items) {
+		List<ObjectNode> logs = Lists.newArrayListWithCapacity(items.size());
+		for (Item item : items)
+			if (item.log != null)
+				logs.add(item.log);
+
+		for (int from = 0; from < logs.size(); from += bulkSize)
+			writeBulk(logs.subList(from, Math.min(from + bulkSize, logs.size())));
+
+		for (Item item : items)
+			if (item.flushed != null)
+				item.flushed.countDown();
+	}
+
+	private void writeBulk(List<ObjectNode> logs) {
+		long start = System.currentTimeMillis();
+		int failures = 0;
+
+		try {
+			failures = bulk.write(logs);
+		} catch (Throwable t) {
+			failures = logs.size();
+			Utils.warn("[SpaceDog] Failed to write request logs", t);
+		}
+
+		long millis = System.currentTimeMillis() - start;
+		bulks.incrementAndGet();
+		bulkMillis.addAndGet(millis);
+		maxBulkMillis.accumulateAndGet(millis, Math::max);
+		flushed.addAndGet(logs.size() - failures);
+		failed.addAndGet(failures);
+	}
+
+	private static int writeToElastic(List<ObjectNode> logs) {
+		ElasticClient elastic = Start.get().getElasticClient();
+		BulkRequestBuilder bulk = elastic.prepareBulk();
+
+		for (ObjectNode log : logs) {
+			JsonNode receivedAt = log.get("receivedAt");
+			String index = LogIndices.get().ensure(receivedAt == null //
+					? DateTime.now() : DateTime.parse(receivedAt.asText()));
+			bulk.add(elastic.prepareIndexIn(index, LogResource.TYPE)//
+					.setSource(log.toString()));
+		}
+
+		int failures = 0;
+		for (BulkItemResponse item : bulk.get().getItems())
+			if (item.isFailed())
+				failures++;
+		return failures;
+	}
+
+	//
+	// Singleton
+	//
+
+	private static LogWriter singleton;
+
+	static LogWriter get() {
+		if (singleton == null) {
+			StartConfiguration configuration = Start.get().configuration();
+			singleton = new LogWriter(LogWriter::writeToElastic, //
+					configuration.logQueueSize(), //
+					configuration.logBulkSize(), //
+					configuration.logFlushPeriod(), //
+					configuration.logOverflow(), //
+					configuration.logSampleRate());
+		}
+		return singleton;
+	}
+}
@@ -0,0 +1,293 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.joda.time.DateTime;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Maps;
+
+import io.spacedog.services.RouteTemplates.Route;
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.JsonBuilder;
+import net.codestory.http.Context;
+import net.codestory.http.filters.PayloadSupplier;
+import net.codestory.http.payload.Payload;
+
+/**
+ * In memory latency histograms of requests per backend, route template,
+ * method and status class, and of elasticsearch actions. Histograms have
+ * fixed buckets so that recording only increments counters. Requests are
+ * only recorded under their backend id once this backend is known to exist,
+ * otherwise under a shared unknown backend, so that requests to random
+ * backend ids can't grow this registry without bounds.
+ */
+public class Metrics {
+
+	public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+	public static final String UNKNOWN_BACKEND = "unknown";
+	public static final int MAX_BACKENDS = 1000;
+
+	private DateTime since = DateTime.now();
+	// per backend, per route, histograms indexed by status class
+	private ConcurrentMap<String, ConcurrentMap<Route, AtomicReferenceArray<Histogram>>> requests = Maps.newConcurrentMap();
+	private ConcurrentMap<String, Histogram> elastic = Maps.newConcurrentMap();
+
+	public void request(String backendId, Route route, int status, long nanos) {
+		ConcurrentMap<Route, AtomicReferenceArray<Histogram>> routes = requests.get(backendId);
+		if (routes == null) {
+			// the size check is racy but only a few extra backends could slip
+			// in
+			if (requests.size() >= MAX_BACKENDS)
+				backendId = UNKNOWN_BACKEND;
+			routes = requests.computeIfAbsent(backendId, key -> Maps.newConcurrentMap());
+		}
+
+		AtomicReferenceArray<Histogram> histograms = routes.get(route);
+		if (histograms == null)
+			histograms = routes.computeIfAbsent(route, key -> new AtomicReferenceArray<>(6));
+
+		int statusClass = Math.min(Math.max(status / 100, 0), 5);
+		Histogram histogram = histograms.get(statusClass);
+		if (histogram == null) {
+			histograms.compareAndSet(statusClass, null, new Histogram());
+			histogram = histograms.get(statusClass);
+		}
+
+		histogram.record(nanos);
+	}
+
+	public void elastic(String action, long nanos) {
+		Histogram histogram = elastic.get(action);
+		if (histogram == null)
+			histogram = elastic.computeIfAbsent(action, key -> new Histogram());
+		histogram.record(nanos);
+	}
+
+	public ObjectNode toJson() {
+		long uptime = Math.max(1, (DateTime.now().getMillis() - since.getMillis()) / 1000);
+		JsonBuilder<ObjectNode> builder = Json.objectBuilder()//
+				.put("since", since.toString())//
+				.put("uptimeSeconds", uptime)//
+				.array("requests");
+
+		long total = 0;
+		for (Map.Entry<String, ConcurrentMap<Route, AtomicReferenceArray<Histogram>>> backend : requests.entrySet())
+			for (Map.Entry<Route, AtomicReferenceArray<Histogram>> route : backend.getValue().entrySet())
+				for (int i = 0; i < route.getValue().length(); i++) {
+					Histogram histogram = route.getValue().get(i);
+					if (histogram == null)
+						continue;
+
+					ObjectNode node = histogram.toJson();
+					total += histogram.count();
+					builder.node(Json.object("backendId", backend.getKey(), //
+							"method", route.getKey().method, //
+							"route", route.getKey().template, //
+							"status", i + "xx").setAll(node));
+				}
+
+		builder.end().array("elastic");
+
+		for (Map.Entry<String, Histogram> action : elastic.entrySet())
+			builder.node(Json.object("action", action.getKey())//
+					.setAll(action.getValue().toJson()));
+
+		return builder.end()//
+				.put("requestCount", total)//
+				.put("requestsPerSecond", (double) total / uptime)//
+				.build();
+	}
+
+	public String toPrometheus() {
+		StringBuilder builder = new StringBuilder();
+
+		builder.append("# HELP spacedog_request_duration_seconds Request latency per route\n")//
+				.append("# TYPE spacedog_request_duration_seconds histogram\n");
+
+		for (Map.Entry<String, ConcurrentMap<Route, AtomicReferenceArray<Histogram>>> backend : requests.entrySet())
+			for (Map.Entry<Route, AtomicReferenceArray<Histogram>> route : backend.getValue().entrySet())
+				for (int i = 0; i < route.getValue().length(); i++)
+					if (route.getValue().get(i) != null)
+						route.getValue().get(i).toPrometheus(builder, "spacedog_request_duration_seconds", //
+								"backend=\"" + backend.getKey() //
+										+ "\",method=\"" + route.getKey().method //
+										+ "\",route=\"" + route.getKey().template //
+										+ "\",status=\"" + i + "xx\"");
+
+		builder.append("# HELP spacedog_elastic_duration_seconds Elasticsearch action latency\n")//
+				.append("# TYPE spacedog_elastic_duration_seconds histogram\n");
+
+		for (Map.Entry<String, Histogram> action : elastic.entrySet())
+			action.getValue().toPrometheus(builder, "spacedog_elastic_duration_seconds", //
+					"action=\"" + action.getKey() + '"');
+
+		return builder.toString();
+	}
+
+	public static SpaceFilter filter(RouteTemplates templates) {
+
+		return new SpaceFilter() {
+
+			private static final long serialVersionUID = -2904591526485282045L;
+
+			@Override
+			public Payload apply(String uri, Context context, PayloadSupplier nextFilter) throws Exception {
+				long start = System.nanoTime();
+				Payload payload = nextFilter.get();
+
+				get().request(backendId(), //
+						templates.resolve(context.method(), uri), //
+						payload == null ? 500 : payload.code(), //
+						System.nanoTime() - start);
+
+				return payload;
+			}
+		};
+	}
+
+	/**
+	 * Returns the request target backend id if it is known to exist, i.e. if
+	 * request credentials have been authenticated or if the backend has
+	 * indices. Both checks are in memory.
+	 */
+	static String backendId() {
+		Credentials credentials = SpaceContext.getCredentials();
+		String backendId = credentials.target();
+
+		if (credentials.isAtLeastUser() //
+				|| credentials.isTargetingRootApi() //
+				|| Start.get().getElasticClient().registry().indices(backendId).length > 0)
+			return backendId;
+
+		return UNKNOWN_BACKEND;
+	}
+
+	//
+	// Histogram
+	//
+
+	public static class Histogram {
+
+		// bucket upper bounds in microseconds
+		private static final long[] BOUNDS = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, //
+				100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000 };
+
+		// bucket upper bounds in seconds for prometheus
+		private static final String[] LE = new String[BOUNDS.length];
+
+		static {
+			for (int i = 0; i < BOUNDS.length; i++)
+				LE[i] = BigDecimal.valueOf(BOUNDS[i], 6).stripTrailingZeros().toPlainString();
+		}
+
+		private AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+		private LongAdder sum = new LongAdder();
+		private AtomicLong max = new AtomicLong();
+
+		public void record(long nanos) {
+			long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+			int i = 0;
+			while (i < BOUNDS.length && micros > BOUNDS[i])
+				i++;
+
+			buckets.incrementAndGet(i);
+			sum.add(micros);
+			max.accumulateAndGet(micros, Math::max);
+		}
+
+		public long count() {
+			long count = 0;
+			for (int i = 0; i < buckets.length(); i++)
+				count += buckets.get(i);
+			return count;
+		}
+
+		/**
+		 * Returns the specified percentile in milliseconds, interpolated
+		 * within the bucket it falls into.
+		 */
+		public double percentile(double percentile) {
+			long[] counts = snapshot();
+			long total = 0;
+			for (long count : counts)
+				total += count;
+			if (total == 0)
+				return 0;
+
+			double rank = percentile / 100 * total;
+			long cumulated = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] > 0 && cumulated + counts[i] >= rank) {
+					long lower = i == 0 ? 0 : BOUNDS[i - 1];
+					// the max is a better upper bound than the bucket's
+					long upper = Math.max(lower, i < BOUNDS.length ? Math.min(BOUNDS[i], max.get()) : max.get());
+					double ratio = (rank - cumulated) / counts[i];
+					return round((lower + ratio * (upper - lower)) / 1000);
+				}
+				cumulated += counts[i];
+			}
+			return max.get() / 1000d;
+		}
+
+		public ObjectNode toJson() {
+			long count = count();
+			return Json.object("count", count, //
+					"meanMillis", count == 0 ? 0 : round(sum.sum() / 1000d / count), //
+					"p50Millis", percentile(50), //
+					"p90Millis", percentile(90), //
+					"p99Millis", percentile(99), //
+					"maxMillis", max.get() / 1000d);
+		}
+
+		private static double round(double millis) {
+			return Math.round(millis * 1000) / 1000d;
+		}
+
+		private long[] snapshot() {
+			long[] counts = new long[buckets.length()];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = buckets.get(i);
+			return counts;
+		}
+
+		private void toPrometheus(StringBuilder builder, String name, String labels) {
+			long[] counts = snapshot();
+			long cumulated = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+				cumulated += counts[i];
+				builder.append(name).append("_bucket{").append(labels).append(",le=\"")//
+						.append(i < BOUNDS.length ? LE[i] : "+Inf")//
+						.append("\"} ").append(cumulated).append('\n');
+			}
+
+			builder.append(name).append("_sum{").append(labels).append("} ")//
+					.append(sum.sum() / 1000000d).append('\n')//
+					.append(name).append("_count{").append(labels).append("} ")//
+					.append(cumulated).append('\n');
+		}
+	}
+
+	//
+	// Singleton
+	//
+
+	private static Metrics singleton = new Metrics();
+
+	static Metrics get() {
+		return singleton;
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.security.SecureRandom;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import io.spacedog.services.CredentialsInvalidations.Cached;
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Utils;
+
+/**
+ * Short lived cache of recently verified passwords. It spares basic
+ * authenticated requests a password hash and a credentials lookup. Passwords
+ * are never stored, keys are digests salted with a random salt generated at
+ * startup. Cached credentials are checked against credentials invalidations
+ * when read.
+ */
+public class PasswordCache {
+
+	private byte[] salt;
+	private Cache<String, Cached> cache;
+	private CredentialsInvalidations invalidations;
+
+	public PasswordCache(long maximumSize, long ttl, CredentialsInvalidations invalidations) {
+		this.invalidations = invalidations;
+		this.salt = new byte[32];
+		new SecureRandom().nextBytes(salt);
+		this.cache = CacheBuilder.newBuilder()//
+				.maximumSize(maximumSize)//
+				.expireAfterWrite(ttl, TimeUnit.SECONDS)//
+				.recordStats()//
+				.build();
+	}
+
+	public Optional<Credentials> get(String backendId, String username, String password) {
+		return invalidations.check(cache.getIfPresent(toKey(backendId, username, password)));
+	}
+
+	/**
+	 * @param generation
+	 *            the invalidations generation read before these credentials
+	 *            were loaded
+	 */
+	public void put(String backendId, String username, String password, //
+			Credentials credentials, long generation) {
+		cache.put(toKey(backendId, username, password), //
+				invalidations.toCached(credentials, generation));
+	}
+
+	public Cache<String, Cached> cache() {
+		return cache;
+	}
+
+	//
+	// Implementation
+	//
+
+	private String toKey(String backendId, String username, String password) {
+		return Hashing.sha256().newHasher()//
+				.putBytes(salt)//
+				.putString(backendId, Utils.UTF8).putByte((byte) 0)//
+				.putString(username, Utils.UTF8).putByte((byte) 0)//
+				.putString(password, Utils.UTF8)//
+				.hash().toString();
+	}
+}
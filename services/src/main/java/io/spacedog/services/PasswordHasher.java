@@ -0,0 +1,216 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+
+/**
+ * Runs password hashings on a dedicated bounded pool of threads. Each backend
+ * can only have a limited number of hashings running or waiting, so a burst of
+ * logins or signups from one backend is rejected before it starves others.
+ */
+public class PasswordHasher {
+
+	private ThreadPoolExecutor executor;
+	private int backendQueueSize;
+	private ConcurrentMap<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+	private ConcurrentMap<String, AtomicLong> rejected = new ConcurrentHashMap<>();
+	private AtomicLong executed = new AtomicLong();
+
+	public PasswordHasher(int threads, int queueSize, int backendQueueSize) {
+		this.backendQueueSize = backendQueueSize;
+		this.executor = new ThreadPoolExecutor(threads, threads, //
+				0, TimeUnit.MILLISECONDS, //
+				new ArrayBlockingQueue<>(queueSize), //
+				new HasherThreadFactory());
+	}
+
+	public <T> T execute(String backendId, Supplier<T> hashing) {
+
+		AtomicInteger counter = pending.computeIfAbsent(backendId, id -> new AtomicInteger());
+
+		try {
+			if (counter.incrementAndGet() > backendQueueSize)
+				throw reject(backendId);
+
+			Future<T> future = executor.submit(hashing::get);
+			T result = future.get();
+			executed.incrementAndGet();
+			return result;
+
+		} catch (RejectedExecutionException e) {
+			throw reject(backendId);
+
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw Exceptions.runtime(e.getCause());
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Exceptions.runtime(e, "password hashing interrupted");
+
+		} finally {
+			counter.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Runs these hashings in parallel and returns their results in the same
+	 * order. Hashings are submitted as this backend frees room in the pool, so
+	 * large batches do not exceed the backend queue size. A rejected hashing
+	 * is submitted again once the oldest hashing of this batch is done. If
+	 * none of them is left to wait for, it is not run and its result is the
+	 * rejected function result, so that the other hashings keep going.
+	 */
+	public <T> List<T> executeAll(String backendId, List<Supplier<T>> hashings, //
+			Function<RuntimeException, T> rejected) {
+
+		AtomicInteger counter = pending.computeIfAbsent(backendId, id -> new AtomicInteger());
+		List<Future<T>> futures = new ArrayList<>(hashings.size());
+		int waited = 0;
+
+		try {
+			for (Supplier<T> hashing : hashings) {
+
+				// waits for my oldest hashings to free room
+				while (counter.get() >= backendQueueSize && waited < futures.size())
+					futures.get(waited++).get();
+
+				Future<T> future = submit(counter, hashing);
+
+				while (future == null && waited < futures.size()) {
+					futures.get(waited++).get();
+					future = submit(counter, hashing);
+				}
+
+				if (future == null)
+					future = CompletableFuture.completedFuture(//
+							rejected.apply(reject(backendId)));
+
+				futures.add(future);
+			}
+
+			List<T> results = new ArrayList<>(futures.size());
+			for (Future<T> future : futures)
+				results.add(future.get());
+
+			return results;
+
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw Exceptions.runtime(e.getCause());
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Exceptions.runtime(e, "password hashing interrupted");
+		}
+	}
+
+	public void run(String backendId, Runnable hashing) {
+		execute(backendId, () -> {
+			hashing.run();
+			return null;
+		});
+	}
+
+	public ObjectNode toJson() {
+		ObjectNode backends = Json.object();
+		rejected.forEach((backendId, count) -> backends.put(backendId, count.get()));
+
+		return Json.object(//
+				"threads", executor.getMaximumPoolSize(), //
+				"active", executor.getActiveCount(), //
+				"queued", executor.getQueue().size(), //
+				"executed", executed.get(), //
+				"rejected", rejected.values().stream().mapToLong(AtomicLong::get).sum(), //
+				"rejectedByBackend", backends);
+	}
+
+	//
+	// Implementation
+	//
+
+	/**
+	 * Returns null if this hashing is rejected by the backend queue size or
+	 * the pool.
+	 */
+	private <T> Future<T> submit(AtomicInteger counter, Supplier<T> hashing) {
+		if (counter.incrementAndGet() > backendQueueSize) {
+			counter.decrementAndGet();
+			return null;
+		}
+
+		try {
+			return executor.submit(() -> {
+				try {
+					T result = hashing.get();
+					executed.incrementAndGet();
+					return result;
+				} finally {
+					counter.decrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			counter.decrementAndGet();
+			return null;
+		}
+	}
+
+	private RuntimeException reject(String backendId) {
+		rejected.computeIfAbsent(backendId, id -> new AtomicLong()).incrementAndGet();
+		return Exceptions.tooManyRequests(//
+				"too many password hashings in progress for backend [%s]", backendId);
+	}
+
+	private static class HasherThreadFactory implements ThreadFactory {
+
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "password-hasher-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	//
+	// Singleton
+	//
+
+	private static PasswordHasher singleton;
+
+	static PasswordHasher get() {
+		if (singleton == null) {
+			StartConfiguration configuration = Start.get().configuration();
+			singleton = new PasswordHasher(//
+					configuration.passwordHashThreads(), //
+					configuration.passwordHashQueueSize(), //
+					configuration.passwordHashBackendQueueSize());
+		}
+		return singleton;
+	}
+}
@@ -573,6 +573,7 @@ public class PushResource2 extends Resource {
 	AmazonSNSClient getSnsClient() {
 		if (snsClient == null) {
 			snsClient = new AmazonSNSClient();
+			snsClient.addRequestHandler(Debug.awsRequestHandler());
 			snsClient.setRegion(Region.getRegion(Regions.EU_WEST_1));
 		}
 		return snsClient;
@@ -0,0 +1,176 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import net.codestory.http.annotations.Delete;
+import net.codestory.http.annotations.Get;
+import net.codestory.http.annotations.Post;
+import net.codestory.http.annotations.Prefix;
+import net.codestory.http.annotations.Put;
+
+/**
+ * Resolves request uris to the route templates of resources, for example
+ * [/1/data/car/123] to [/1/data/:type/:id], to record metrics per route and
+ * not per uri. Templates are grouped by method and number of segments and
+ * static segments are preferred to parameters. Resolution does not allocate.
+ */
+public class RouteTemplates {
+
+	public static final Route OTHER = new Route("*", "other");
+
+	public static class Route {
+		public final String method;
+		public final String template;
+		private final String[] segments;
+
+		private Route(String method, String template) {
+			this.method = method;
+			this.template = template;
+			this.segments = split(template);
+		}
+
+		@Override
+		public String toString() {
+			return method + ' ' + template;
+		}
+	}
+
+	private static final Route[] NO_ROUTES = new Route[0];
+
+	// per method, routes indexed by their number of segments
+	private Map<String, Route[][]> routes = Maps.newHashMap();
+
+	public RouteTemplates(Object... resources) {
+		Map<String, Map<String, Route>> templates = Maps.newHashMap();
+
+		for (Object resource : resources) {
+			Prefix prefix = resource.getClass().getAnnotation(Prefix.class);
+
+			for (Method method : resource.getClass().getMethods()) {
+				add(templates, "GET", prefix, method, Get.class, Get::value);
+				add(templates, "POST", prefix, method, Post.class, Post::value);
+				add(templates, "PUT", prefix, method, Put.class, Put::value);
+				add(templates, "DELETE", prefix, method, Delete.class, Delete::value);
+			}
+		}
+
+		templates.forEach((method, byTemplate) -> {
+			int maxSegments = byTemplate.values().stream()//
+					.mapToInt(route -> route.segments.length).max().orElse(0);
+
+			Route[][] bySegments = new Route[maxSegments + 1][];
+			for (int i = 0; i <= maxSegments; i++) {
+				int count = i;
+				bySegments[i] = byTemplate.values().stream()//
+						.filter(route -> route.segments.length == count)//
+						.sorted(STATIC_FIRST)//
+						.toArray(Route[]::new);
+			}
+			routes.put(method, bySegments);
+		});
+	}
+
+	public Route resolve(String method, String uri) {
+		Route[][] bySegments = routes.get(method);
+		if (bySegments == null)
+			return OTHER;
+
+		int count = countSegments(uri);
+		Route[] candidates = count < bySegments.length ? bySegments[count] : NO_ROUTES;
+
+		for (Route route : candidates)
+			if (matches(route, uri))
+				return route;
+
+		return OTHER;
+	}
+
+	public List<Route> routes() {
+		List<Route> all = Lists.newArrayList();
+		for (Route[][] bySegments : routes.values())
+			for (Route[] candidates : bySegments)
+				all.addAll(Arrays.asList(candidates));
+		return all;
+	}
+
+	//
+	// Implementation
+	//
+
+	private static final Comparator<Route> STATIC_FIRST = (left, right) -> {
+		for (int i = 0; i < left.segments.length; i++) {
+			boolean leftParam = isParam(left.segments[i]);
+			boolean rightParam = isParam(right.segments[i]);
+			if (leftParam != rightParam)
+				return leftParam ? 1 : -1;
+		}
+		return left.template.compareTo(right.template);
+	};
+
+	private static <A extends Annotation> void add(Map<String, Map<String, Route>> templates, //
+			String httpMethod, Prefix prefix, Method method, Class<A> annotationClass, //
+			Function<A, String> value) {
+
+		for (A annotation : method.getAnnotationsByType(annotationClass)) {
+			String template = normalize((prefix == null ? "" : prefix.value()) + value.apply(annotation));
+			templates.computeIfAbsent(httpMethod, key -> Maps.newHashMap())//
+					.computeIfAbsent(template, key -> new Route(httpMethod, key));
+		}
+	}
+
+	private static String normalize(String template) {
+		int end = template.length();
+		while (end > 1 && template.charAt(end - 1) == '/')
+			end--;
+		return template.isEmpty() ? "/" : template.substring(0, end);
+	}
+
+	private static String[] split(String template) {
+		String trimmed = normalize(template);
+		return trimmed.equals("/") ? new String[0] : trimmed.substring(1).split("/");
+	}
+
+	private static boolean isParam(String segment) {
+		return segment.startsWith(":");
+	}
+
+	private static int countSegments(String uri) {
+		int count = 0;
+		int length = uri.length();
+		for (int i = 0; i < length; i++)
+			if (uri.charAt(i) == '/' && i + 1 < length && uri.charAt(i + 1) != '/')
+				count++;
+		return count;
+	}
+
+	private static boolean matches(Route route, String uri) {
+		int start = 1;
+		for (String segment : route.segments) {
+			int end = uri.indexOf('/', start);
+			if (end < 0)
+				end = uri.length();
+
+			if (isParam(segment)) {
+				if (end == start)
+					return false;
+			} else if (end - start != segment.length() //
+					|| !uri.regionMatches(start, segment, 0, segment.length()))
+				return false;
+
+			start = end + 1;
+		}
+		return true;
+	}
+}
@@ -41,6 +41,7 @@ public class S3Resource extends Resource {
 	private static MimetypesFileTypeMap typeMap = new MimetypesFileTypeMap();
 
 	static {
+		s3.addRequestHandler(Debug.awsRequestHandler());
 		s3.setRegion(Region.getRegion(Regions.fromName(Start.get().configuration().awsRegion())));
 	}
 
@@ -3,14 +3,9 @@
  */
 package io.spacedog.services;
 
-import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.Strings;
-import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.indices.TypeMissingException;
 
-import com.carrotsearch.hppc.cursors.ObjectCursor;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-
 import io.spacedog.utils.Credentials;
 import io.spacedog.utils.Exceptions;
 import io.spacedog.utils.Json;
@@ -36,23 +31,11 @@ public class SchemaResource extends Resource {
 	@Get("")
 	@Get("/")
 	public Payload getAll(Context context) {
-		ElasticClient elastic = Start.get().getElasticClient();
-		ImmutableOpenMap<String, ImmutableOpenMap<String, MappingMetaData>> mappings;
-		mappings = elastic.getMappings(SpaceContext.target());
 		JsonMerger jsonMerger = Json.merger();
 
-		for (ObjectCursor<ImmutableOpenMap<String, MappingMetaData>> indexMappings : mappings.values()) {
-			for (ObjectCursor<MappingMetaData> mapping : indexMappings.value.values()) {
-				try {
-					ObjectNode source = (ObjectNode) Json.readObject(mapping.value.source().string())//
-							.get(mapping.value.type());
-					if (source.hasNonNull("_meta"))
-						jsonMerger.merge((ObjectNode) source.get("_meta"));
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
-			}
-		}
+		for (Schema schema : Start.get().getElasticClient()//
+				.getSchemas(SpaceContext.target()).values())
+			jsonMerger.merge(schema.node());
 
 		return JsonPayload.json(jsonMerger.get());
 	}
@@ -0,0 +1,140 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Utils;
+
+/**
+ * Opaque search cursor returned in the next field of search results when
+ * requested with the cursor query param. It holds the elasticsearch scroll
+ * of the search and how many objects have already been returned. Since
+ * elasticsearch 2 has no search after, next pages are read from this scroll
+ * so that each page costs the same whatever its depth. Cursors are signed
+ * and checked before their scroll is used, so that forged cursors can't read
+ * or clear the scroll of somebody else. Next pages are also only returned if
+ * all their objects belong to the backend and types of the cursor.
+ */
+public class SearchCursor {
+
+	public static final String CURSOR_PARAM = "cursor";
+	public static final String NEXT_PARAM = "next";
+
+	private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+	// access token signatures never sign texts with this prefix
+	private static final String SIGNATURE_PREFIX = "cursor:";
+
+	// payload field names are short to keep cursors compact
+	private static final String P_BACKEND_ID = "b";
+	private static final String P_TYPES = "t";
+	private static final String P_SCROLL_ID = "s";
+	private static final String P_COUNT = "c";
+
+	private String backendId;
+	private List<String> types;
+	private String scrollId;
+	private long count;
+
+	public SearchCursor(String backendId, String... types) {
+		this.backendId = backendId;
+		this.types = Arrays.asList(types);
+	}
+
+	public static TimeValue keepAlive() {
+		return KEEP_ALIVE;
+	}
+
+	public String scrollId() {
+		return scrollId;
+	}
+
+	public static SearchCursor decode(String cursor, SignedTokens signer) {
+		int dot = cursor.lastIndexOf('.');
+
+		if (dot < 1 || !signer.verify(SIGNATURE_PREFIX + cursor.substring(0, dot), //
+				cursor.substring(dot + 1)))
+			throw Exceptions.illegalArgument("search cursor [%s] is invalid", cursor);
+
+		try {
+			JsonNode payload = Json.readNode(new String(//
+					Base64.getUrlDecoder().decode(cursor.substring(0, dot)), Utils.UTF8));
+
+			List<String> types = Lists.newArrayList();
+			payload.get(P_TYPES).forEach(type -> types.add(type.asText()));
+
+			SearchCursor decoded = new SearchCursor(payload.get(P_BACKEND_ID).asText(), //
+					types.toArray(new String[types.size()]));
+			decoded.scrollId = payload.get(P_SCROLL_ID).asText();
+			decoded.count = payload.get(P_COUNT).asLong();
+			return decoded;
+
+		} catch (Exception e) {
+			throw Exceptions.illegalArgument(e, "search cursor [%s] is invalid", cursor);
+		}
+	}
+
+	public String encode(SignedTokens signer) {
+		ObjectNode payload = Json.object(P_BACKEND_ID, backendId, //
+				P_TYPES, types, P_SCROLL_ID, scrollId, P_COUNT, count);
+
+		String encoded = Base64.getUrlEncoder().withoutPadding()//
+				.encodeToString(payload.toString().getBytes(Utils.UTF8));
+
+		return encoded + '.' + signer.sign(SIGNATURE_PREFIX + encoded);
+	}
+
+	/**
+	 * Checks this cursor is one of this backend and only of these types.
+	 */
+	public void check(String backendId, String... types) {
+		if (!this.backendId.equals(backendId) //
+				|| !Arrays.asList(types).containsAll(this.types))
+			throw Exceptions.forbidden("forbidden to use this search cursor");
+	}
+
+	/**
+	 * Checks all objects of this page belong to the backend and types of this
+	 * cursor, since scroll ids alone could be forged to read other backends.
+	 */
+	public void check(SearchResponse response) {
+		for (SearchHit hit : response.getHits().getHits())
+			if (!types.contains(hit.type()) //
+					|| !isIndexOf(hit.index(), hit.type()))
+				throw Exceptions.forbidden("forbidden to use this search cursor");
+	}
+
+	/**
+	 * Moves this cursor after this page. Returns true if there are more
+	 * pages to read.
+	 */
+	public boolean next(SearchResponse response) {
+		int length = response.getHits().getHits().length;
+		scrollId = response.getScrollId();
+		count += length;
+		return length > 0 && count < response.getHits().getTotalHits();
+	}
+
+	//
+	// Implementation
+	//
+
+	private boolean isIndexOf(String index, String type) {
+		String prefix = Start.get().getElasticClient().toAlias(backendId, type) + '-';
+		return index.startsWith(prefix) //
+				&& index.substring(prefix.length()).matches("[0-9]+");
+	}
+}
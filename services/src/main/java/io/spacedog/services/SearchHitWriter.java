@@ -0,0 +1,134 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.SearchHit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Utils;
+
+/**
+ * Writes search hits as data objects straight from their source bytes. Source
+ * tokens are copied to the generator one by one without building any json
+ * tree and meta id, type and version, and score and sort for search results,
+ * are injected in meta on the fly. Other meta fields of the source are kept.
+ */
+public class SearchHitWriter {
+
+	/**
+	 * Writes this hit as a data object with its id, type and version.
+	 */
+	public static void writeObject(JsonGenerator generator, SearchHit hit) throws IOException {
+		write(generator, hit, false);
+	}
+
+	/**
+	 * Writes this hit as a search result with its id, type and version, and
+	 * its score and sort values if any.
+	 */
+	public static void writeResult(JsonGenerator generator, SearchHit hit) throws IOException {
+		write(generator, hit, true);
+	}
+
+	//
+	// Implementation
+	//
+
+	private static void write(JsonGenerator generator, SearchHit hit, boolean result) throws IOException {
+		generator.writeStartObject();
+		boolean metaWritten = false;
+
+		// source is null when not requested
+		// fetch-contents = false for GET requests
+		// or _source = false for POST requests
+		if (!hit.isSourceEmpty()) {
+			try (JsonParser parser = createParser(hit.sourceRef())) {
+
+				if (parser.nextToken() != JsonToken.START_OBJECT)
+					throw Exceptions.runtime("source of [%s][%s] is not a json object", //
+							hit.type(), hit.id());
+
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					JsonToken token = parser.nextToken();
+
+					if (!name.equals("meta")) {
+						generator.writeFieldName(name);
+						generator.copyCurrentStructure(parser);
+
+					} else if (token == JsonToken.START_OBJECT) {
+						writeMeta(generator, hit, parser, result);
+						metaWritten = true;
+
+					} else
+						// invalid meta is replaced
+						parser.skipChildren();
+				}
+			}
+		}
+
+		if (!metaWritten)
+			writeMeta(generator, hit, null, result);
+
+		generator.writeEndObject();
+	}
+
+	private static void writeMeta(JsonGenerator generator, SearchHit hit, //
+			JsonParser parser, boolean result) throws IOException {
+
+		generator.writeObjectFieldStart("meta");
+
+		if (parser != null)
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+
+				if (isInjected(name, result))
+					parser.skipChildren();
+				else {
+					generator.writeFieldName(name);
+					generator.copyCurrentStructure(parser);
+				}
+			}
+
+		generator.writeStringField("id", hit.id());
+		generator.writeStringField("type", hit.type());
+		generator.writeNumberField("version", hit.version());
+
+		if (result) {
+			if (Float.isFinite(hit.score()))
+				generator.writeNumberField("score", hit.score());
+
+			if (!Utils.isNullOrEmpty(hit.sortValues())) {
+				generator.writeArrayFieldStart("sort");
+				for (Object value : hit.sortValues())
+					generator.writeTree(Json.toValueNode(value));
+				generator.writeEndArray();
+			}
+		}
+
+		generator.writeEndObject();
+	}
+
+	private static boolean isInjected(String name, boolean result) {
+		return name.equals("id") || name.equals("type") || name.equals("version") //
+				|| (result && (name.equals("score") || name.equals("sort")));
+	}
+
+	private static JsonParser createParser(BytesReference source) throws IOException {
+		JsonFactory factory = Json.mapper().getFactory();
+		return source.hasArray() //
+				? factory.createParser(source.array(), source.arrayOffset(), source.length()) //
+				: factory.createParser(source.streamInput());
+	}
+}
@@ -4,6 +4,7 @@
 package io.spacedog.services;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -11,7 +12,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.xcontent.ToXContent;
@@ -21,12 +27,15 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.InternalAggregations;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
 
+import io.spacedog.services.JsonPayload.SummarizedOutput;
 import io.spacedog.utils.Check;
 import io.spacedog.utils.Credentials;
 import io.spacedog.utils.DataPermission;
@@ -45,6 +54,13 @@ import net.codestory.http.payload.Payload;
 @Prefix("/1/search")
 public class SearchResource extends Resource {
 
+	// comma separated paths of object references to replace
+	// by referenced objects and fields of referenced objects
+	public static final String FETCH_REFERENCES_PARAM = "fetch-references";
+	public static final String REFERENCE_FIELDS_PARAM = "reference-fields";
+
+	private SignedTokens cursorSigner;
+
 	//
 	// Routes
 	//
@@ -62,8 +78,7 @@ public class SearchResource extends Resource {
 		String[] types = DataAccessControl.types(DataPermission.search, credentials);
 		boolean refresh = context.query().getBoolean(SpaceParams.REFRESH, false);
 		DataStore.get().refreshBackend(refresh, credentials.target());
-		ObjectNode result = searchInternal(body, credentials, context, types);
-		return JsonPayload.json(result);
+		return searchInternal(body, credentials, context, types);
 	}
 
 	@Delete("")
@@ -93,8 +108,7 @@ public class SearchResource extends Resource {
 		if (DataAccessControl.check(credentials, type, DataPermission.search)) {
 			boolean refresh = context.query().getBoolean(SpaceParams.REFRESH, false);
 			DataStore.get().refreshType(refresh, credentials.target(), type);
-			ObjectNode result = searchInternal(body, credentials, context, type);
-			return JsonPayload.json(result);
+			return searchInternal(body, credentials, context, type);
 		}
 		throw Exceptions.forbidden("forbidden to search [%s] objects", type);
 	}
@@ -139,22 +153,36 @@ public class SearchResource extends Resource {
 	// implementation
 	//
 
-	ObjectNode searchInternal(String jsonQuery, Credentials credentials, Context context, String... types) {
+	Payload searchInternal(String jsonQuery, Credentials credentials, Context context, String... types) {
+
+		String next = context.get(SearchCursor.NEXT_PARAM);
+		if (!Strings.isNullOrEmpty(next))
+			return searchNext(SearchCursor.decode(next, cursorSigner()), credentials, context, types);
 
 		SearchRequestBuilder search = null;
 		ElasticClient elastic = Start.get().getElasticClient();
 		String[] aliases = elastic.toAliases(credentials.target(), types);
 
 		if (aliases.length == 0)
-			return Json.object("took", 0, "total", 0, "results", Json.array());
+			return JsonPayload.json(Json.object("took", 0, "total", 0, "results", Json.array()));
 
 		search = elastic.prepareSearch().setIndices(aliases).setTypes(types);
+		boolean cursor = context.query().getBoolean(SearchCursor.CURSOR_PARAM, false);
+
+		if (cursor)
+			search.setScroll(SearchCursor.keepAlive());
 
 		if (Strings.isNullOrEmpty(jsonQuery)) {
 
 			int from = context.query().getInteger("from", 0);
 			int size = context.query().getInteger("size", 10);
-			Check.isTrue(from + size <= 1000, "from + size must be less than or equal to 1000");
+
+			if (cursor)
+				// next pages are read with the cursor
+				Check.isTrue(from == 0 && size <= 1000, //
+						"from must be 0 and size less than or equal to 1000 with cursor");
+			else
+				Check.isTrue(from + size <= 1000, "from + size must be less than or equal to 1000");
 
 			search.setFrom(from)//
 					.setSize(size)//
@@ -171,16 +199,109 @@ public class SearchResource extends Resource {
 			search.setSource(jsonQuery);
 		}
 
-		return extractResults(search.get(), context, credentials);
+		SearchResponse response = search.get();
+
+		return toPayload(response, cursor //
+				? next(new SearchCursor(credentials.target(), types), response) //
+				: null, context, credentials);
+	}
+
+	private Payload searchNext(SearchCursor cursor, Credentials credentials, Context context, String... types) {
+		cursor.check(credentials.target(), types);
+		ElasticClient elastic = Start.get().getElasticClient();
+
+		SearchResponse response = elastic.prepareSearchScroll(cursor.scrollId())//
+				.setScroll(SearchCursor.keepAlive())//
+				.get();
+
+		try {
+			cursor.check(response);
+		} catch (RuntimeException e) {
+			elastic.prepareClearScroll(response.getScrollId()).get();
+			throw e;
+		}
+
+		return toPayload(response, next(cursor, response), context, credentials);
+	}
+
+	/**
+	 * Returns the cursor to the next page if any. Otherwise, the scroll is
+	 * cleared without waiting for its keep alive to expire.
+	 */
+	private String next(SearchCursor cursor, SearchResponse response) {
+		if (cursor.next(response))
+			return cursor.encode(cursorSigner());
+
+		Start.get().getElasticClient()//
+				.prepareClearScroll(cursor.scrollId()).get();
+		return null;
+	}
+
+	/**
+	 * Cursors are signed with the configured token secret if any, so that all
+	 * servers accept them. Otherwise, they are signed with a secret of this
+	 * server and only accepted by this server.
+	 */
+	private synchronized SignedTokens cursorSigner() {
+		if (cursorSigner == null)
+			cursorSigner = new SignedTokens(Start.get().configuration().credentialsTokenSecret()//
+					.map(secret -> secret.getBytes(Utils.UTF8))//
+					.orElseGet(SignedTokens::newSecret));
+		return cursorSigner;
+	}
+
+	/**
+	 * Results are written straight from hit sources to the response output
+	 * stream, without any json tree. Results with references or debug need to
+	 * be modified and are still built as json trees.
+	 */
+	private Payload toPayload(SearchResponse response, String next, Context context, Credentials credentials) {
+
+		String[] referencePaths = toArray(context.get(FETCH_REFERENCES_PARAM));
+
+		if (referencePaths.length == 0 && !SpaceContext.isDebug())
+			return new Payload(JsonPayload.JSON_CONTENT_UTF8, new SummarizedOutput(//
+					Json.object("took", response.getTookInMillis(), //
+							"total", response.getHits().getTotalHits()), //
+					output -> writeResults(response, next, output)));
+
+		ObjectNode results = extractResults(response, referencePaths, credentials, context);
+		if (next != null)
+			results.put(SearchCursor.NEXT_PARAM, next);
+		return JsonPayload.json(results);
+	}
+
+	private void writeResults(SearchResponse response, String next, OutputStream output) throws IOException {
+		JsonGenerator generator = Json.mapper().getFactory().createGenerator(output);
+
+		generator.writeStartObject();
+		generator.writeNumberField("took", response.getTookInMillis());
+		generator.writeNumberField("total", response.getHits().getTotalHits());
+		generator.writeArrayFieldStart("results");
+
+		for (SearchHit hit : response.getHits().getHits())
+			SearchHitWriter.writeResult(generator, hit);
+
+		generator.writeEndArray();
+
+		String aggregations = toAggregations(response);
+		if (aggregations != null) {
+			generator.writeFieldName("aggregations");
+			generator.writeRawValue(aggregations);
+		}
+
+		if (next != null)
+			generator.writeStringField(SearchCursor.NEXT_PARAM, next);
+
+		generator.writeEndObject();
+		// output is closed by fluent
+		generator.flush();
 	}
 
-	private ObjectNode extractResults(SearchResponse response, Context context, Credentials credentials) {
+	private ObjectNode extractResults(SearchResponse response, String[] referencePaths, //
+			Credentials credentials, Context context) {
 
-		String propertyPath = context.request().query().get("fetch-references");
-		boolean fetchReferences = !Strings.isNullOrEmpty(propertyPath);
-		List<String> references = null;
-		if (fetchReferences)
-			references = new ArrayList<>();
+		Set<String> references = new HashSet<>();
 
 		List<JsonNode> objects = new ArrayList<>();
 		for (SearchHit hit : response.getHits().getHits()) {
@@ -207,18 +328,23 @@ public class SearchResource extends Resource {
 
 			objects.add(object);
 
-			if (fetchReferences)
-				references.add(Json.get(object, propertyPath).asText());
+			for (String path : referencePaths) {
+				String reference = toReference(object, path);
+				if (reference != null)
+					references.add(reference);
+			}
 		}
 
-		if (fetchReferences) {
-			Map<String, ObjectNode> referencedObjects = getReferences(references, credentials);
+		if (!references.isEmpty()) {
+			Map<String, ObjectNode> referencedObjects = getReferences(references, //
+					toArray(context.get(REFERENCE_FIELDS_PARAM)), credentials);
 
-			for (int i = 0; i < objects.size(); i++) {
-				String reference = references.get(i);
-				if (!Strings.isNullOrEmpty(reference))
-					Json.set(objects.get(i), propertyPath, referencedObjects.get(reference));
-			}
+			for (JsonNode object : objects)
+				for (String path : referencePaths) {
+					String reference = toReference(object, path);
+					if (reference != null)
+						Json.set(object, path, referencedObjects.get(reference));
+				}
 		}
 
 		JsonBuilder<ObjectNode> builder = Json.objectBuilder()//
@@ -229,44 +355,100 @@ public class SearchResource extends Resource {
 		objects.forEach(object -> builder.node(object));
 		builder.end();
 
-		if (response.getAggregations() != null) {
-			// TODO find a safe and efficient solution to add aggregations to
-			// payload.
-			// Direct json serialization from response.getAggregations().asMap()
-			// results in errors because of getters like:
-			// InternalTerms$Bucket.getDocCountError(InternalTerms.java:83) that
-			// can throw state exceptions.
-			// The following solution is safer but inefficient. It fixes issue
-			// #1.
-			try {
-				InternalAggregations aggs = (InternalAggregations) response.getAggregations();
-				XContentBuilder jsonXBuilder = JsonXContent.contentBuilder();
-				jsonXBuilder.startObject();
-				aggs.toXContentInternal(jsonXBuilder, ToXContent.EMPTY_PARAMS);
-				jsonXBuilder.endObject();
-				// TODO this is so inefficient
-				// SearchResponse -> Json String -> JsonNode -> Payload
-				builder.node("aggregations", jsonXBuilder.string());
-			} catch (IOException e) {
-				throw Exceptions.runtime("failed to convert aggregations into json", e);
-			}
-		}
+		String aggregations = toAggregations(response);
+		if (aggregations != null)
+			builder.node("aggregations", aggregations);
 
 		return builder.build();
 	}
 
-	private Map<String, ObjectNode> getReferences(List<String> references, Credentials credentials) {
-		Set<String> set = new HashSet<>(references);
-		set.remove(null);
-		Map<String, ObjectNode> results = new HashMap<>();
-		set.forEach(reference -> {
-			ObjectNode object = DataStore.get().getObject(credentials.target(), //
-					getReferenceType(reference), getReferenceId(reference));
-			results.put(reference, object);
+	private String toAggregations(SearchResponse response) {
+		if (response.getAggregations() == null)
+			return null;
+
+		// TODO find a safe and efficient solution to add aggregations to
+		// payload.
+		// Direct json serialization from response.getAggregations().asMap()
+		// results in errors because of getters like:
+		// InternalTerms$Bucket.getDocCountError(InternalTerms.java:83) that
+		// can throw state exceptions.
+		// The following solution is safer but inefficient. It fixes issue
+		// #1.
+		try {
+			InternalAggregations aggs = (InternalAggregations) response.getAggregations();
+			XContentBuilder jsonXBuilder = JsonXContent.contentBuilder();
+			jsonXBuilder.startObject();
+			aggs.toXContentInternal(jsonXBuilder, ToXContent.EMPTY_PARAMS);
+			jsonXBuilder.endObject();
+			return jsonXBuilder.string();
+		} catch (IOException e) {
+			throw Exceptions.runtime("failed to convert aggregations into json", e);
+		}
+	}
+
+	/**
+	 * Returns referenced objects per reference. References are grouped by
+	 * type and each type is fetched with a single multi get. Multi gets of
+	 * all types are sent before waiting for any response so that types are
+	 * fetched in parallel. If fields are specified, only these fields of
+	 * referenced objects are fetched.
+	 */
+	Map<String, ObjectNode> getReferences(Set<String> references, String[] fields, Credentials credentials) {
+
+		Map<String, Set<String>> idsByType = new HashMap<>();
+		for (String reference : references)
+			idsByType.computeIfAbsent(getReferenceType(reference), type -> new HashSet<>())//
+					.add(getReferenceId(reference));
+
+		ElasticClient elastic = Start.get().getElasticClient();
+		FetchSourceContext source = fields.length == 0 ? null : new FetchSourceContext(fields);
+		Map<String, ListenableActionFuture<MultiGetResponse>> futures = new HashMap<>();
+
+		idsByType.forEach((type, ids) -> {
+			String alias = elastic.toAlias(credentials.target(), type);
+			MultiGetRequestBuilder multiGet = elastic.prepareMultiGet();
+			for (String id : ids)
+				multiGet.add(new MultiGetRequest.Item(alias, type, id).fetchSourceContext(source));
+			futures.put(type, multiGet.execute());
+		});
+
+		Map<String, ObjectNode> objects = new HashMap<>();
+
+		futures.forEach((type, future) -> {
+			for (MultiGetItemResponse item : future.actionGet().getResponses()) {
+				if (item.isFailed()) {
+					Throwable failure = item.getFailure().getFailure();
+					throw failure instanceof RuntimeException //
+							? (RuntimeException) failure : Exceptions.runtime(failure);
+				}
+				// missing referenced objects are not found errors
+				objects.put(toReference(type, item.getId()), //
+						DataStore.get().toObject(item.getResponse()));
+			}
 		});
+
+		Map<String, ObjectNode> results = new HashMap<>();
+		for (String reference : references)
+			results.put(reference, objects.get(toReference(//
+					getReferenceType(reference), getReferenceId(reference))));
 		return results;
 	}
 
+	private static String toReference(JsonNode object, String path) {
+		JsonNode reference = Json.get(object, path);
+		return Json.isNull(reference) || reference.asText().isEmpty() //
+				? null : reference.asText();
+	}
+
+	private static String toReference(String type, String id) {
+		return Utils.toUri(new String[] { type, id });
+	}
+
+	private static String[] toArray(String commaSeparatedValues) {
+		return Strings.isNullOrEmpty(commaSeparatedValues) ? new String[0] //
+				: commaSeparatedValues.trim().split("\\s*,\\s*");
+	}
+
 	//
 	// singleton
 	//
@@ -0,0 +1,139 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.sort.SortOrder;
+import org.joda.time.DateTime;
+
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.SpaceFieldNames;
+import io.spacedog.utils.Utils;
+
+/**
+ * Periodically deletes expired sessions and the oldest sessions of
+ * credentials with more sessions than allowed. Also purges obsolete signed
+ * access token revocations. Login is a single session
+ * document insert, so session cap is enforced here and not at login time.
+ * Deleted sessions might still be valid for a few seconds in the access token
+ * cache of this or other servers.
+ */
+public class SessionSweeper implements SpaceFieldNames {
+
+	private static final String CREDENTIALS_AGGREGATION = "credentials";
+
+	private int maxSessions;
+	private long period;
+	private ScheduledExecutorService scheduler;
+
+	public void start() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "session-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.SECONDS);
+	}
+
+	public void sweep() {
+		try {
+			ElasticClient elastic = Start.get().getElasticClient();
+			elastic.refreshType(Resource.SPACEDOG_BACKEND, CredentialsResource.TOKEN_TYPE);
+			long expired = deleteExpiredSessions(elastic);
+			long capped = deleteSessionsOverMax(elastic);
+			Optional<SignedTokens> signedTokens = CredentialsResource.get().signedTokens();
+			long revocations = signedTokens.isPresent() ? signedTokens.get().purge(elastic) : 0;
+			Utils.info("[SpaceDog] Sessions swept: [%s] expired, [%s] over maximum, "
+					+ "[%s] obsolete revocations", expired, capped, revocations);
+
+		} catch (Throwable t) {
+			// catch everything to keep on sweeping next time
+			Utils.warn("[SpaceDog] Sessions sweep failed", t);
+		}
+	}
+
+	//
+	// Implementation
+	//
+
+	private long deleteExpiredSessions(ElasticClient elastic) {
+		DeleteByQueryResponse response = elastic.deleteByQuery(Resource.SPACEDOG_BACKEND, //
+				QueryBuilders.rangeQuery(ACCESS_TOKEN_EXPIRES_AT).lt(DateTime.now().toString()), //
+				CredentialsResource.TOKEN_TYPE);
+		return response.getTotalDeleted();
+	}
+
+	private long deleteSessionsOverMax(ElasticClient elastic) {
+		SearchResponse response = elastic.prepareSearch(//
+				Resource.SPACEDOG_BACKEND, CredentialsResource.TOKEN_TYPE)//
+				.setSize(0)//
+				.addAggregation(AggregationBuilders.terms(CREDENTIALS_AGGREGATION)//
+						.field(CREDENTIALS_ID)//
+						.minDocCount(maxSessions + 1)//
+						.size(100))//
+				.get();
+
+		Terms terms = response.getAggregations().get(CREDENTIALS_AGGREGATION);
+		long deleted = 0;
+
+		for (Terms.Bucket bucket : terms.getBuckets())
+			deleted += deleteOldestSessions(elastic, bucket.getKeyAsString(), //
+					(int) bucket.getDocCount() - maxSessions);
+
+		return deleted;
+	}
+
+	private long deleteOldestSessions(ElasticClient elastic, String credentialsId, int count) {
+		SearchResponse response = elastic.prepareSearch(//
+				Resource.SPACEDOG_BACKEND, CredentialsResource.TOKEN_TYPE)//
+				.setQuery(QueryBuilders.termQuery(CREDENTIALS_ID, credentialsId))//
+				.addSort(ACCESS_TOKEN_EXPIRES_AT, SortOrder.ASC)//
+				.setFetchSource(false)//
+				.setSize(count)//
+				.get();
+
+		BulkRequestBuilder bulk = elastic.prepareBulk();
+		for (SearchHit hit : response.getHits())
+			bulk.add(elastic.prepareDelete(Resource.SPACEDOG_BACKEND, //
+					CredentialsResource.TOKEN_TYPE, hit.getId()));
+
+		if (bulk.numberOfActions() == 0)
+			return 0;
+
+		BulkResponse bulkResponse = bulk.get();
+		if (bulkResponse.hasFailures())
+			throw Exceptions.runtime("failed to delete sessions of credentials [%s]: %s", //
+					credentialsId, bulkResponse.buildFailureMessage());
+
+		return bulk.numberOfActions();
+	}
+
+	//
+	// Singleton
+	//
+
+	private static SessionSweeper singleton = new SessionSweeper();
+
+	static SessionSweeper get() {
+		return singleton;
+	}
+
+	private SessionSweeper() {
+		StartConfiguration configuration = Start.get().configuration();
+		maxSessions = configuration.credentialsSessionMax();
+		period = configuration.credentialsSessionSweepPeriod();
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Process wide cache of backend settings sources keyed by backend and settings
+ * id. Missing settings are cached too. Each entry holds the version of its
+ * settings document and a loaded entry only replaces an older one, so a slow
+ * read never overrides a more recent save or delete made by this server.
+ * Settings updated by another server are visible here after ttl seconds at
+ * most.
+ */
+public class SettingsCache {
+
+	private Cache<String, Entry> cache;
+
+	public static class Entry {
+		private String source;
+		private long version;
+		private volatile Object compiled;
+
+		private Entry(String source, long version) {
+			this.source = source;
+			this.version = version;
+		}
+
+		public Optional<String> source() {
+			return Optional.ofNullable(source);
+		}
+
+		public long version() {
+			return version;
+		}
+
+		/**
+		 * Returns what the specified compiler computes from this entry source.
+		 * It is computed once per entry, so only when settings change.
+		 */
+		@SuppressWarnings("unchecked")
+		public <T> T compiled(Function<Optional<String>, T> compiler) {
+			Object result = compiled;
+			if (result == null) {
+				result = compiler.apply(source());
+				compiled = result;
+			}
+			return (T) result;
+		}
+	}
+
+	public static Entry found(String source, long version) {
+		return new Entry(source, version);
+	}
+
+	public static Entry missing(long version) {
+		return new Entry(null, version);
+	}
+
+	public SettingsCache(long maximumSize, long ttl) {
+		this.cache = CacheBuilder.newBuilder()//
+				.maximumSize(maximumSize)//
+				.expireAfterWrite(ttl, TimeUnit.SECONDS)//
+				.recordStats()//
+				.build();
+	}
+
+	public Entry get(String backendId, String id, Supplier<Entry> loader) {
+		String key = toKey(backendId, id);
+		Entry entry = cache.getIfPresent(key);
+		if (entry == null)
+			entry = putIfNewer(key, loader.get());
+		return entry;
+	}
+
+	// saved or deleted settings always replace the cached entry since
+	// versions restart from scratch when deleted settings are saved again
+	public void put(String backendId, String id, Entry entry) {
+		cache.put(toKey(backendId, id), entry);
+	}
+
+	public void invalidate(String backendId) {
+		String prefix = toKey(backendId, "");
+		cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public Cache<String, Entry> cache() {
+		return cache;
+	}
+
+	//
+	// Implementation
+	//
+
+	private Entry putIfNewer(String key, Entry entry) {
+		ConcurrentMap<String, Entry> map = cache.asMap();
+
+		while (true) {
+			Entry previous = map.putIfAbsent(key, entry);
+			if (previous == null)
+				return entry;
+			if (previous.version > entry.version)
+				return previous;
+			if (map.replace(key, previous, entry))
+				return entry;
+		}
+	}
+
+	private String toKey(String backendId, String id) {
+		return backendId + '/' + id;
+	}
+}
@@ -2,7 +2,10 @@ package io.spacedog.services;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 
+import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
@@ -46,6 +49,7 @@ public class SettingsResource {
 	//
 
 	private Map<String, Class<? extends Settings>> registeredSettingsClasses;
+	private SettingsCache cache;
 
 	//
 	// Routes
@@ -90,6 +94,7 @@ public class SettingsResource {
 		String backendId = SpaceContext.checkSuperAdminCredentials().target();
 		ElasticClient elastic = Start.get().getElasticClient();
 		elastic.deleteIndex(backendId, TYPE);
+		cache.invalidate(backendId);
 		return JsonPayload.success();
 	}
 
@@ -159,8 +164,16 @@ public class SettingsResource {
 		if (!credentials.isAtLeastSuperAdmin())
 			credentials.checkRoles(getSettingsAcl(id).update());
 
-		ElasticClient elastic = Start.get().getElasticClient();
-		elastic.delete(credentials.backendId(), TYPE, id, false, true);
+		DeleteResponse response = Start.get().getElasticClient()//
+				.prepareDelete(credentials.backendId(), TYPE, id).get();
+
+		cache.put(credentials.backendId(), id, //
+				SettingsCache.missing(response.getVersion()));
+		SpaceContext.removeSettings(id);
+
+		if (!response.isFound())
+			throw Exceptions.notFound(credentials.backendId(), TYPE, id);
+
 		return JsonPayload.success();
 	}
 
@@ -171,30 +184,41 @@ public class SettingsResource {
 	public <K extends Settings> K load(Class<K> settingsClass) {
 		K settings = SpaceContext.getSettings(settingsClass);
 		if (settings == null) {
-			String id = Settings.id(settingsClass);
-
-			try {
-				String json = load(id);
-				settings = Json.mapper().readValue(json, settingsClass);
-				SpaceContext.setSettings(settings);
-
-			} catch (NotFoundException nfe) {
-				// settings not set yet, return a default instance
-				try {
-					settings = settingsClass.newInstance();
-
-				} catch (InstantiationException | IllegalAccessException e) {
-					throw Exceptions.runtime(e, "error instanciating [%s] settings class", //
-							settingsClass.getSimpleName());
-				}
-			} catch (IOException e) {
-				throw Exceptions.runtime(e, "error mapping [%s] settings to [%s] class", //
-						id, settingsClass.getSimpleName());
-			}
-		}
+			Optional<String> source = loadEntry(Settings.id(settingsClass)).source();
+			settings = toSettings(settingsClass, source);
+			// default settings are kept too so that batch
+			// sub requests do not look for them again
+			SpaceContext.setSettings(settings);
+		} else
+			SpaceContext.debug().saved(Debug.SETTINGS);
 		return settings;
 	}
 
+	<K extends Settings> K load(String backendId, Class<K> settingsClass) {
+		String id = Settings.id(settingsClass);
+		return toSettings(settingsClass, //
+				cache.get(backendId, id, () -> fetch(backendId, id)).source());
+	}
+
+	/**
+	 * Returns what the specified compiler computes from these settings. It is
+	 * cached with settings and only computed again when settings change.
+	 */
+	public <K extends Settings, T> T compile(Class<K> settingsClass, Function<K, T> compiler) {
+		String id = Settings.id(settingsClass);
+		T compiled = SpaceContext.getCompiled(id);
+
+		if (compiled == null) {
+			compiled = loadEntry(id).compiled(//
+					source -> compiler.apply(toSettings(settingsClass, source)));
+			if (compiled != null)
+				SpaceContext.setCompiled(id, compiled);
+		} else
+			SpaceContext.debug().saved(Debug.COMPILED);
+
+		return compiled;
+	}
+
 	public IndexResponse save(Settings settings) {
 		try {
 			String settingsAsString = Json.mapper().writeValueAsString(settings);
@@ -213,6 +237,18 @@ public class SettingsResource {
 		registeredSettingsClasses.put(Settings.id(settingsClass), settingsClass);
 	}
 
+	void invalidateCache(String backendId) {
+		cache.invalidate(backendId);
+	}
+
+	void invalidateCache() {
+		cache.invalidateAll();
+	}
+
+	SettingsCache cache() {
+		return cache;
+	}
+
 	//
 	// implementation
 	//
@@ -228,24 +264,64 @@ public class SettingsResource {
 	}
 
 	private String load(String id) {
+		Optional<String> source = loadEntry(id).source();
+
+		if (source.isPresent())
+			return source.get();
+
+		throw Exceptions.notFound(SpaceContext.target(), TYPE, id);
+	}
+
+	private SettingsCache.Entry loadEntry(String id) {
 		String backendId = SpaceContext.target();
+		Debug debug = SpaceContext.debug();
+		long start = debug.start();
+		SettingsCache.Entry entry = cache.get(backendId, id, () -> fetch(backendId, id));
+		debug.stop(Debug.SETTINGS, id, start);
+		return entry;
+	}
+
+	private <K extends Settings> K toSettings(Class<K> settingsClass, Optional<String> source) {
+		try {
+			// settings not set yet, return a default instance
+			return source.isPresent() //
+					? Json.mapper().readValue(source.get(), settingsClass)//
+					: settingsClass.newInstance();
+
+		} catch (InstantiationException | IllegalAccessException e) {
+			throw Exceptions.runtime(e, "error instanciating [%s] settings class", //
+					settingsClass.getSimpleName());
+
+		} catch (IOException e) {
+			throw Exceptions.runtime(e, "error mapping [%s] settings to [%s] class", //
+					Settings.id(settingsClass), settingsClass.getSimpleName());
+		}
+	}
+
+	private SettingsCache.Entry fetch(String backendId, String id) {
 		ElasticClient elastic = Start.get().getElasticClient();
 
 		if (elastic.existsIndex(backendId, TYPE)) {
 			GetResponse response = elastic.get(backendId, TYPE, id);
 			if (response.isExists())
-				return response.getSourceAsString();
+				return SettingsCache.found(response.getSourceAsString(), //
+						response.getVersion());
 		}
-		throw Exceptions.notFound(backendId, TYPE, id);
+		return SettingsCache.missing(-1);
 	}
 
 	private IndexResponse save(String id, String body) {
 		// Make sure index is created before to save anything
 		makeSureIndexIsCreated();
 
-		return Start.get().getElasticClient()//
-				.prepareIndex(SpaceContext.target(), TYPE, id)//
+		String backendId = SpaceContext.target();
+		IndexResponse response = Start.get().getElasticClient()//
+				.prepareIndex(backendId, TYPE, id)//
 				.setSource(body).get();
+
+		cache.put(backendId, id, SettingsCache.found(body, response.getVersion()));
+		SpaceContext.removeSettings(id);
+		return response;
 	}
 
 	private void makeSureIndexIsCreated() {
@@ -275,5 +351,8 @@ public class SettingsResource {
 	}
 
 	private SettingsResource() {
+		StartConfiguration configuration = Start.get().configuration();
+		cache = new SettingsCache(configuration.settingsCacheSize(), //
+				configuration.settingsCacheTtl());
 	}
 }
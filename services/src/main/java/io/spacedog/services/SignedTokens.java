@@ -0,0 +1,366 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.joda.time.DateTime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Credentials.Level;
+import io.spacedog.utils.Credentials.Session;
+import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Schema;
+import io.spacedog.utils.SpaceFieldNames;
+import io.spacedog.utils.Utils;
+
+/**
+ * Stateless access tokens. A signed token is a compact payload holding
+ * credentials id, backend, name, email, level, roles, issue and expiry dates,
+ * followed by its HMAC signature. They are checked in memory without any
+ * database access.
+ * <p>
+ * Since they can not be deleted, tokens of logged out sessions and tokens
+ * issued before credentials or backends were disabled or deleted are revoked.
+ * Revocations are checked in memory and each of them is persisted once. They
+ * are all loaded at startup and revocations of other servers are reloaded
+ * periodically, so that a token revoked by a server is rejected by all others
+ * after at most one reload period. They are purged once all the tokens they
+ * revoke have expired.
+ * <p>
+ * Tokens must be checked by all servers with the same secret, signed tokens
+ * are only enabled on servers with a configured secret.
+ */
+public class SignedTokens implements SpaceFieldNames {
+
+	public static final String TYPE = "revocation";
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final String REVOKED_AT = "revokedAt";
+	private static final String EXPIRES_AT = "expiresAt";
+
+	// covers index refresh delay and clock skew between servers
+	private static final long RELOAD_MARGIN = 30 * 1000;
+
+	// payload field names are short to keep tokens compact
+	private static final String P_ID = "i";
+	private static final String P_BACKEND_ID = "b";
+	private static final String P_USERNAME = "n";
+	private static final String P_EMAIL = "m";
+	private static final String P_LEVEL = "l";
+	private static final String P_ROLES = "r";
+	private static final String P_ISSUED_AT = "t";
+	private static final String P_EXPIRES_AT = "x";
+
+	private SecretKeySpec key;
+	private ThreadLocal<Mac> macs;
+	private ConcurrentMap<String, Revocation> revocations = new ConcurrentHashMap<>();
+	private volatile long lastLoadedAt;
+	private ScheduledExecutorService scheduler;
+
+	private static class Revocation {
+		private long revokedAt;
+		private long expiresAt;
+
+		private Revocation(long revokedAt, long expiresAt) {
+			this.revokedAt = revokedAt;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public SignedTokens(byte[] secret) {
+		this.key = new SecretKeySpec(secret, ALGORITHM);
+		this.macs = ThreadLocal.withInitial(this::newMac);
+	}
+
+	public static boolean isSigned(String accessToken) {
+		// stored session access tokens are base 64 encoded
+		// and never contain any '.'
+		return accessToken.indexOf('.') > 0;
+	}
+
+	public static byte[] newSecret() {
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		return secret;
+	}
+
+	//
+	// Sign and check
+	//
+
+	public Session newSession(Credentials credentials, long lifetime) {
+		DateTime expiresAt = DateTime.now().plus(lifetime * 1000);
+
+		ObjectNode payload = Json.object(//
+				P_ID, credentials.id(), //
+				P_BACKEND_ID, credentials.backendId(), //
+				P_USERNAME, credentials.name(), //
+				P_LEVEL, credentials.level().name(), //
+				P_ROLES, credentials.roles(), //
+				P_ISSUED_AT, DateTime.now().getMillis(), //
+				P_EXPIRES_AT, expiresAt.getMillis());
+
+		if (credentials.email().isPresent())
+			payload.put(P_EMAIL, credentials.email().get());
+
+		String encoded = encode(payload.toString().getBytes(Utils.UTF8));
+		return Session.newSession(encoded + '.' + sign(encoded), expiresAt);
+	}
+
+	public Credentials check(String backendId, String accessToken) {
+		int dot = accessToken.lastIndexOf('.');
+		if (dot < 1)
+			throw Exceptions.invalidAccessToken(backendId);
+
+		String encoded = accessToken.substring(0, dot);
+		String signature = accessToken.substring(dot + 1);
+
+		if (!verify(encoded, signature))
+			throw Exceptions.invalidAccessToken(backendId);
+
+		JsonNode payload = decode(backendId, encoded);
+		long expiresAt = payload.get(P_EXPIRES_AT).asLong();
+
+		if (expiresAt <= System.currentTimeMillis())
+			throw Exceptions.accessTokenHasExpired();
+
+		String credentialsId = payload.get(P_ID).asText();
+		String credentialsBackendId = payload.get(P_BACKEND_ID).asText();
+		long issuedAt = payload.get(P_ISSUED_AT).asLong();
+
+		if (revocations.containsKey(toTokenKey(signature)) //
+				|| isRevoked(toCredentialsKey(credentialsId), issuedAt) //
+				|| isRevoked(toBackendKey(credentialsBackendId), issuedAt))
+			throw Exceptions.invalidAccessToken(backendId);
+
+		Credentials credentials = new Credentials(credentialsBackendId, //
+				payload.get(P_USERNAME).asText(), //
+				Level.valueOf(payload.get(P_LEVEL).asText()));
+
+		credentials.id(credentialsId);
+		credentials.detached(true);
+
+		if (payload.has(P_EMAIL))
+			credentials.email(payload.get(P_EMAIL).asText());
+
+		for (JsonNode role : payload.get(P_ROLES))
+			credentials.roles().add(role.asText());
+
+		credentials.setCurrentSession(Session.newSession(accessToken, new DateTime(expiresAt)));
+		return credentials;
+	}
+
+	/**
+	 * Returns the url safe HMAC signature of this text. Other opaque payloads
+	 * like search cursors are signed with it too, prefixed so that their
+	 * signatures are never valid access token signatures.
+	 */
+	public String sign(String text) {
+		return encode(macs.get().doFinal(text.getBytes(Utils.UTF8)));
+	}
+
+	/**
+	 * Checks this signature of this text in constant time.
+	 */
+	public boolean verify(String text, String signature) {
+		return MessageDigest.isEqual(sign(text).getBytes(Utils.UTF8), //
+				signature.getBytes(Utils.UTF8));
+	}
+
+	//
+	// Revocations
+	//
+
+	public void revokeToken(String accessToken, DateTime expiresAt) {
+		int dot = accessToken.lastIndexOf('.');
+		revoke(toTokenKey(accessToken.substring(dot + 1)), //
+				System.currentTimeMillis(), expiresAt.getMillis());
+	}
+
+	/**
+	 * Revokes all tokens of these credentials issued until now. Lifetime in
+	 * seconds is the maximum lifetime of these tokens.
+	 */
+	public void revokeCredentials(String credentialsId, long lifetime) {
+		long now = System.currentTimeMillis();
+		revoke(toCredentialsKey(credentialsId), now, now + lifetime * 1000);
+	}
+
+	/**
+	 * Revokes all tokens of this backend issued until now. Lifetime in seconds
+	 * is the maximum lifetime of these tokens.
+	 */
+	public void revokeBackend(String backendId, long lifetime) {
+		long now = System.currentTimeMillis();
+		revoke(toBackendKey(backendId), now, now + lifetime * 1000);
+	}
+
+	void init(ElasticClient elastic) {
+		Schema schema = Schema.builder(TYPE)//
+				.timestamp(REVOKED_AT)//
+				.timestamp(EXPIRES_AT)//
+				.build();
+
+		String mapping = schema.validate().translate().toString();
+
+		if (elastic.existsIndex(Resource.SPACEDOG_BACKEND, TYPE)) {
+			elastic.putMapping(Resource.SPACEDOG_BACKEND, TYPE, mapping);
+			elastic.refreshType(Resource.SPACEDOG_BACKEND, TYPE);
+			long loadedAt = System.currentTimeMillis();
+			int count = load(elastic, QueryBuilders.rangeQuery(EXPIRES_AT)//
+					.gt(new DateTime(loadedAt).toString()));
+			lastLoadedAt = loadedAt;
+			Utils.info("[SpaceDog] [%s] access token revocations loaded", count);
+		} else {
+			elastic.createIndex(Resource.SPACEDOG_BACKEND, TYPE, mapping, false);
+			lastLoadedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Reloads revocations of other servers every period in seconds.
+	 */
+	void start(long period) {
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "revocation-reloader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::reload, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Loads revocations persisted since last load, minus a margin since
+	 * revocations of other servers might not be searchable yet.
+	 */
+	void reload() {
+		try {
+			long loadedAt = System.currentTimeMillis();
+			load(Start.get().getElasticClient(), QueryBuilders.rangeQuery(REVOKED_AT)//
+					.gte(new DateTime(lastLoadedAt - RELOAD_MARGIN).toString()));
+			lastLoadedAt = loadedAt;
+
+		} catch (Throwable t) {
+			// catch everything to keep on reloading next time
+			Utils.warn("[SpaceDog] Access token revocations reload failed", t);
+		}
+	}
+
+	/**
+	 * Deletes revocations when all the tokens they revoke have expired.
+	 */
+	long purge(ElasticClient elastic) {
+		long now = System.currentTimeMillis();
+		revocations.values().removeIf(revocation -> revocation.expiresAt <= now);
+
+		return elastic.deleteByQuery(Resource.SPACEDOG_BACKEND, //
+				QueryBuilders.rangeQuery(EXPIRES_AT).lte(new DateTime(now).toString()), //
+				TYPE).getTotalDeleted();
+	}
+
+	//
+	// Implementation
+	//
+
+	private void revoke(String key, long revokedAt, long expiresAt) {
+		put(key, new Revocation(revokedAt, expiresAt));
+
+		Start.get().getElasticClient().index(Resource.SPACEDOG_BACKEND, TYPE, key, //
+				Json.object(REVOKED_AT, new DateTime(revokedAt).toString(), //
+						EXPIRES_AT, new DateTime(expiresAt).toString()).toString());
+	}
+
+	private boolean isRevoked(String key, long issuedAt) {
+		Revocation revocation = revocations.get(key);
+		return revocation != null && issuedAt <= revocation.revokedAt;
+	}
+
+	private void put(String key, Revocation revocation) {
+		// the latest revocation of credentials or backends
+		// revokes all the tokens of previous revocations
+		revocations.merge(key, revocation, //
+				(previous, next) -> previous.revokedAt >= next.revokedAt ? previous : next);
+	}
+
+	private int load(ElasticClient elastic, QueryBuilder query) {
+		int count = 0;
+
+		SearchResponse response = elastic.prepareSearch(Resource.SPACEDOG_BACKEND, TYPE)//
+				.setQuery(query)//
+				.setScroll(TimeValue.timeValueMinutes(1))//
+				.setSize(1000)//
+				.get();
+
+		while (response.getHits().getHits().length > 0) {
+			for (SearchHit hit : response.getHits()) {
+				put(hit.getId(), new Revocation(//
+						DateTime.parse(hit.getSource().get(REVOKED_AT).toString()).getMillis(), //
+						DateTime.parse(hit.getSource().get(EXPIRES_AT).toString()).getMillis()));
+				count++;
+			}
+
+			response = elastic.prepareSearchScroll(response.getScrollId())//
+					.setScroll(TimeValue.timeValueMinutes(1))//
+					.get();
+		}
+
+		elastic.prepareClearScroll(response.getScrollId()).get();
+		return count;
+	}
+
+	private static String encode(byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	private static JsonNode decode(String backendId, String encoded) {
+		try {
+			return Json.mapper().readTree(Base64.getUrlDecoder().decode(encoded));
+		} catch (IllegalArgumentException | IOException e) {
+			throw Exceptions.invalidAccessToken(backendId);
+		}
+	}
+
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch (Exception e) {
+			throw Exceptions.runtime(e, "failed to initialize access token signature");
+		}
+	}
+
+	private static String toTokenKey(String signature) {
+		return "token-" + signature;
+	}
+
+	private static String toCredentialsKey(String credentialsId) {
+		return "credentials-" + credentialsId;
+	}
+
+	private static String toBackendKey(String backendId) {
+		return "backend-" + backendId;
+	}
+}
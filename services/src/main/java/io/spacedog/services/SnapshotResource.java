@@ -187,6 +187,9 @@ public class SnapshotResource extends Resource {
 				.get()//
 				.getRestoreInfo();
 
+		Start.get().getElasticClient().registry().invalidate();
+		SettingsResource.get().invalidateCache();
+
 		if (restore == null)
 			return JsonPayload.error(400, //
 					"restore of snapshot [%s] failed: retry later", snapshot.id());
@@ -1,6 +1,7 @@
 package io.spacedog.services;
 
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import com.google.common.collect.Maps;
 import com.google.common.net.HttpHeaders;
@@ -12,6 +13,7 @@ import io.spacedog.utils.Exceptions;
 import io.spacedog.utils.Settings;
 import io.spacedog.utils.SpaceHeaders;
 import net.codestory.http.Context;
+import net.codestory.http.payload.Payload;
 
 /**
  * Context credentials should only be accessed from public static check methods
@@ -27,7 +29,10 @@ public class SpaceContext {
 	private Credentials credentials;
 	private boolean authorizationChecked;
 	private boolean isForced;
-	private Map<String, Settings> settings;
+	private String authorization;
+	// concurrent since shared with batch sub requests
+	private Map<String, Settings> settings = Maps.newConcurrentMap();
+	private Map<String, Object> compiled = Maps.newConcurrentMap();
 	private boolean www;
 
 	private SpaceContext(Context context) {
@@ -35,6 +40,7 @@ public class SpaceContext {
 		this.isTest = Boolean.parseBoolean(context().header(SpaceHeaders.SPACEDOG_TEST));
 		String[] host = extractSubdomain(context);
 		this.credentials = new Credentials(host[0]);
+		this.authorization = context.header(SpaceHeaders.AUTHORIZATION);
 		www = host.length > 2 && "www".equals(host[1]);
 		this.debug = new Debug(//
 				Boolean.parseBoolean(context().header(SpaceHeaders.SPACEDOG_DEBUG)));
@@ -47,6 +53,19 @@ public class SpaceContext {
 		this.debug = new Debug(debug);
 	}
 
+	private SpaceContext(SpaceContext parent) {
+		this.context = parent.context;
+		this.isTest = parent.isTest;
+		this.www = parent.www;
+		this.debug = parent.debug;
+		// sub requests like login or logout modify their credentials
+		this.credentials = parent.credentials.copy();
+		this.authorization = parent.authorization;
+		this.authorizationChecked = parent.authorizationChecked;
+		this.settings = parent.settings;
+		this.compiled = parent.compiled;
+	}
+
 	public Context context() {
 		return context;
 	}
@@ -63,8 +82,16 @@ public class SpaceContext {
 		return (uri, context, nextFilter) -> {
 			if (isSetAuthorized()) {
 				try {
-					threadLocal.set(new SpaceContext(context));
-					return nextFilter.get();
+					SpaceContext spaceContext = new SpaceContext(context);
+					threadLocal.set(spaceContext);
+					Payload payload = nextFilter.get();
+
+					if (payload != null && spaceContext.debug.isTrue())
+						payload = JsonPayload.serialize(payload, spaceContext.debug)//
+								.withHeader(Debug.SERVER_TIMING, //
+										spaceContext.debug.toServerTiming());
+
+					return payload;
 
 				} finally {
 					threadLocal.set(null);
@@ -99,6 +126,12 @@ public class SpaceContext {
 		return get().debug;
 	}
 
+	// debug of the current request if any
+	static Debug currentDebug() {
+		SpaceContext context = threadLocal.get();
+		return context == null ? Debug.NONE : context.debug;
+	}
+
 	public static String target() {
 		return getCredentials().target();
 	}
@@ -110,22 +143,69 @@ public class SpaceContext {
 			throw Exceptions.runtime("overriding non null context is illegal");
 	}
 
+	/**
+	 * Returns a copy of the current context for a batch sub request. The copy
+	 * shares debug, loaded settings and compiled settings with the current
+	 * context but gets its own copy of the current credentials so that sub
+	 * requests run in parallel never modify each other credentials.
+	 */
+	static SpaceContext fork() {
+		return new SpaceContext(get());
+	}
+
+	/**
+	 * Returns a copy of the current context for a batch sub request with its
+	 * own authorization header. Credentials are checked again from this
+	 * header but settings are still shared since they belong to the same
+	 * backend.
+	 */
+	static SpaceContext fork(String authorization) {
+		SpaceContext context = new SpaceContext(get());
+		context.credentials = new Credentials(context.credentials.target());
+		context.authorization = authorization;
+		context.authorizationChecked = false;
+		return context;
+	}
+
+	/**
+	 * Calls this task with the specified context set in the current thread
+	 * and restores the previous context when done.
+	 */
+	static <T> T call(SpaceContext context, Callable<T> task) throws Exception {
+		SpaceContext previous = threadLocal.get();
+		threadLocal.set(context);
+		try {
+			return task.call();
+		} finally {
+			threadLocal.set(previous);
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	public static <K extends Settings> K getSettings(Class<K> settingsClass) {
+		return (K) get().settings.get(Settings.id(settingsClass));
+	}
 
+	public static void setSettings(Settings settings) {
 		SpaceContext context = get();
-		if (context.settings == null)
-			return null;
-
-		return (K) context.settings.get(Settings.id(settingsClass));
+		context.settings.put(settings.id(), settings);
+		context.compiled.remove(settings.id());
 	}
 
-	public static void setSettings(Settings settings) {
+	public static void removeSettings(String settingsId) {
 		SpaceContext context = get();
-		if (context.settings == null)
-			context.settings = Maps.newHashMap();
+		context.settings.remove(settingsId);
+		context.compiled.remove(settingsId);
+	}
 
-		context.settings.put(settings.id(), settings);
+	// what has been compiled from these settings in this request if any
+	@SuppressWarnings("unchecked")
+	static <T> T getCompiled(String settingsId) {
+		return (T) get().compiled.get(settingsId);
+	}
+
+	static void setCompiled(String settingsId, Object compiled) {
+		get().compiled.put(settingsId, compiled);
 	}
 
 	//
@@ -203,13 +283,18 @@ public class SpaceContext {
 	}
 
 	private void checkAuthorizationHeader() {
-		if (!authorizationChecked) {
+		if (authorizationChecked)
+			// batch sub requests reuse the batch request credentials
+			debug.saved(Debug.AUTH);
+
+		else {
 			authorizationChecked = true;
-			SpaceContext.debug().credentialCheck();
+			debug.credentialCheck();
 			String backendId = target();
-			String headerValue = context.header(SpaceHeaders.AUTHORIZATION);
+			String headerValue = authorization;
 
 			if (headerValue != null) {
+				long start = debug.start();
 				boolean superdog = false;
 				Credentials userCredentials = null;
 				AuthorizationHeader authHeader = new AuthorizationHeader(headerValue, true);
@@ -234,6 +319,8 @@ public class SpaceContext {
 				// sets superdog backend id to the request backend id
 				if (superdog)
 					credentials.target(backendId);
+
+				debug.stop(Debug.AUTH, authHeader.isBasic() ? "basic" : "bearer", start);
 			}
 
 		}
@@ -4,21 +4,22 @@
 package io.spacedog.services;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.ExecutionException;
 
-import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
-import org.elasticsearch.action.support.QuerySourceBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.Settings.Builder;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.plugin.cloud.aws.CloudAwsPlugin;
 import org.elasticsearch.plugin.deletebyquery.DeleteByQueryPlugin;
+import org.simpleframework.http.Status;
 
+import io.spacedog.utils.Passwords;
 import io.spacedog.utils.Utils;
 import net.codestory.http.AbstractWebServer;
+import net.codestory.http.Cookie;
 import net.codestory.http.Request;
 import net.codestory.http.Response;
 import net.codestory.http.internal.Handler;
@@ -73,46 +74,10 @@ public class Start {
 
 	private void upgradeAndCleanUp() throws IOException {
 		// Utils.info("[SpaceDog] Nothing to upgrade");
-		deletePingRequestsFromLogs();
-		deleteGetLogRequestsFromLogs();
 		SnapshotResource.get().deleteMissingRepositories();
 		SnapshotResource.get().deleteObsoleteRepositories();
 	}
 
-	private void deleteGetLogRequestsFromLogs() {
-		Utils.info("[SpaceDog] Deleting [GET] [/1/log] requests from logs ...");
-
-		BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery()//
-				.filter(QueryBuilders.termQuery("method", "GET"))//
-				.filter(QueryBuilders.termQuery("path", "/1/log"));
-
-		String querySource = new QuerySourceBuilder()//
-				.setQuery(queryBuilder)//
-				.toString();
-
-		DeleteByQueryResponse response = get().getElasticClient()//
-				.deleteByQuery(querySource, Resource.SPACEDOG_BACKEND, LogResource.TYPE);
-
-		Utils.info("[SpaceDog] [%s] logs deleted", response.getTotalDeleted());
-	}
-
-	private void deletePingRequestsFromLogs() {
-		Utils.info("[SpaceDog] Deleting [GET] [/] requests from logs ...");
-
-		BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery()//
-				.filter(QueryBuilders.termQuery("method", "GET"))//
-				.filter(QueryBuilders.termQuery("path", "/"));
-
-		String querySource = new QuerySourceBuilder()//
-				.setQuery(queryBuilder)//
-				.toString();
-
-		DeleteByQueryResponse response = get().getElasticClient()//
-				.deleteByQuery(querySource, Resource.SPACEDOG_BACKEND, LogResource.TYPE);
-
-		Utils.info("[SpaceDog] [%s] logs deleted", response.getTotalDeleted());
-	}
-
 	private void startElasticNode() throws InterruptedException, ExecutionException, IOException {
 
 		Builder builder = Settings.builder()//
@@ -145,6 +110,8 @@ public class Start {
 
 		elasticNode.start();
 		setElasticClient(elasticNode.client());
+		elastic.registry().listen(//
+				elasticNode.injector().getInstance(ClusterService.class));
 
 		// wait for cluster to fully initialize and turn asynchronously from
 		// RED status to GREEN before to initialize anything else
@@ -157,8 +124,10 @@ public class Start {
 	}
 
 	private void initServices() throws IOException {
+		Passwords.iterations(config.passwordHashIterations());
 		LogResource.get().init();
 		CredentialsResource.get().init();
+		SessionSweeper.get().start();
 	}
 
 	private void startFluent() throws IOException {
@@ -168,28 +137,32 @@ public class Start {
 	}
 
 	private static void configure(Routes routes) {
-		routes.add(BackendResource.get())//
-				.add(AdminResource.get())//
-				.add(DataResource.get())//
-				.add(LafargeCesioResource.get())//
-				.add(SchemaResource.get())//
-				.add(CredentialsResource.get())//
-				.add(LinkedinResource.get())//
-				.add(UserResource.get())//
-				.add(BatchResource.get())//
-				.add(MailResource.get())//
-				.add(MailTemplateResource.get())//
-				.add(SnapshotResource.get())//
-				.add(LogResource.get())//
-				.add(PushResource.get())//
-				.add(SendPulseResource.get())//
-				.add(StripeResource.get())//
-				.add(ShareResource.get())//
-				.add(SettingsResource.get())//
-				.add(SearchResource.get());
+		Object[] resources = { BackendResource.get(), //
+				AdminResource.get(), //
+				DataResource.get(), //
+				LafargeCesioResource.get(), //
+				SchemaResource.get(), //
+				CredentialsResource.get(), //
+				LinkedinResource.get(), //
+				UserResource.get(), //
+				BatchResource.get(), //
+				MailResource.get(), //
+				MailTemplateResource.get(), //
+				SnapshotResource.get(), //
+				LogResource.get(), //
+				PushResource.get(), //
+				SendPulseResource.get(), //
+				StripeResource.get(), //
+				ShareResource.get(), //
+				SettingsResource.get(), //
+				SearchResource.get() };
+
+		for (Object resource : resources)
+			routes.add(resource);
 
 		routes.filter(new CrossOriginFilter())//
 				.filter(SpaceContext.filter())//
+				.filter(Metrics.filter(new RouteTemplates(resources)))//
 				.filter(LogResource.filter())//
 				.filter(SpaceContext.checkAuthorizationFilter())//
 				// web filter before error filter
@@ -203,7 +176,9 @@ public class Start {
 
 		@Override
 		protected HttpServerWrapper createHttpServer(Handler httpHandler, WebSocketHandler webSocketHandler) {
-			return new SimpleServerWrapper(httpHandler, webSocketHandler);
+			return new SimpleServerWrapper(//
+					(request, response) -> httpHandler.handle(request, new AnyStatusResponse(response)), //
+					webSocketHandler);
 		}
 
 		public Payload executeRequest(Request request, Response response) throws Exception {
@@ -215,6 +190,62 @@ public class Start {
 		return fluent.executeRequest(request, response);
 	}
 
+	/**
+	 * Simple http server only knows the status codes of its status enum and
+	 * sends 200 for any other code like 429. This response sets unknown codes
+	 * directly.
+	 */
+	private static class AnyStatusResponse implements Response {
+
+		private Response response;
+
+		private AnyStatusResponse(Response response) {
+			this.response = response;
+		}
+
+		@Override
+		public void setStatus(int statusCode) {
+			org.simpleframework.http.Response simple = response.unwrap(org.simpleframework.http.Response.class);
+
+			if (simple == null || Status.getStatus(statusCode).code == statusCode)
+				response.setStatus(statusCode);
+			else {
+				simple.setCode(statusCode);
+				simple.setDescription(statusCode == 429 ? "Too Many Requests" : "Unknown");
+			}
+		}
+
+		@Override
+		public <T> T unwrap(Class<T> type) {
+			return response.unwrap(type);
+		}
+
+		@Override
+		public void close() throws IOException {
+			response.close();
+		}
+
+		@Override
+		public OutputStream outputStream() throws IOException {
+			return response.outputStream();
+		}
+
+		@Override
+		public void setContentLength(long length) {
+			response.setContentLength(length);
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			response.setHeader(name, value);
+		}
+
+		@Override
+		public void setCookie(Cookie cookie) {
+			response.setCookie(cookie);
+		}
+	}
+
 	//
 	// Singleton
 	//
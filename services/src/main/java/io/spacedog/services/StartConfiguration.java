@@ -13,6 +13,7 @@ import com.google.common.base.Strings;
 
 import io.spacedog.utils.Backends;
 import io.spacedog.utils.Exceptions;
+import io.spacedog.utils.Passwords;
 import io.spacedog.utils.Utils;
 
 public class StartConfiguration {
@@ -34,6 +35,32 @@ public class StartConfiguration {
 	private static final String SPACEDOG_SERVER_PORT = "spacedog.server.port";
 	private static final String SPACEDOG_API_URL_SCHEME = "spacedog.api.url.scheme";
 	private static final String SPACEDOG_API_URL_BASE = "spacedog.api.url.base";
+	private static final String SPACEDOG_CREDENTIALS_TOKEN_CACHE_SIZE = "spacedog.credentials.token.cache.size";
+	private static final String SPACEDOG_CREDENTIALS_TOKEN_CACHE_TTL = "spacedog.credentials.token.cache.ttl";
+	private static final String SPACEDOG_CREDENTIALS_PASSWORD_CACHE_SIZE = "spacedog.credentials.password.cache.size";
+	private static final String SPACEDOG_CREDENTIALS_PASSWORD_CACHE_TTL = "spacedog.credentials.password.cache.ttl";
+	private static final String SPACEDOG_CREDENTIALS_TOKEN_SIGNED = "spacedog.credentials.token.signed";
+	private static final String SPACEDOG_CREDENTIALS_TOKEN_SECRET = "spacedog.credentials.token.secret";
+	private static final String SPACEDOG_CREDENTIALS_TOKEN_RELOAD_PERIOD = "spacedog.credentials.token.reload.period";
+	private static final String SPACEDOG_CREDENTIALS_SESSION_MAX = "spacedog.credentials.session.max";
+	private static final String SPACEDOG_CREDENTIALS_SESSION_SWEEP_PERIOD = "spacedog.credentials.session.sweep.period";
+	private static final String SPACEDOG_PASSWORD_HASH_ITERATIONS = "spacedog.password.hash.iterations";
+	private static final String SPACEDOG_PASSWORD_HASH_THREADS = "spacedog.password.hash.threads";
+	private static final String SPACEDOG_PASSWORD_HASH_QUEUE_SIZE = "spacedog.password.hash.queue.size";
+	private static final String SPACEDOG_PASSWORD_HASH_BACKEND_QUEUE_SIZE = "spacedog.password.hash.backend.queue.size";
+	private static final String SPACEDOG_SETTINGS_CACHE_SIZE = "spacedog.settings.cache.size";
+	private static final String SPACEDOG_SETTINGS_CACHE_TTL = "spacedog.settings.cache.ttl";
+	private static final String SPACEDOG_LOG_QUEUE_SIZE = "spacedog.log.queue.size";
+	private static final String SPACEDOG_LOG_BULK_SIZE = "spacedog.log.bulk.size";
+	private static final String SPACEDOG_LOG_FLUSH_PERIOD = "spacedog.log.flush.period";
+	private static final String SPACEDOG_LOG_OVERFLOW = "spacedog.log.overflow";
+	private static final String SPACEDOG_LOG_SAMPLE_RATE = "spacedog.log.sample.rate";
+	private static final String SPACEDOG_LOG_INDEX_PERIOD = "spacedog.log.index.period";
+	private static final String SPACEDOG_LOG_RETENTION = "spacedog.log.retention";
+	private static final String SPACEDOG_BATCH_THREADS = "spacedog.batch.threads";
+	private static final String SPACEDOG_BATCH_QUEUE_SIZE = "spacedog.batch.queue.size";
+	private static final String SPACEDOG_BATCH_STREAM_MAX = "spacedog.batch.stream.max";
+	private static final String SPACEDOG_BATCH_STREAM_WINDOW = "spacedog.batch.stream.window";
 
 	private Properties configuration = new Properties();
 
@@ -68,6 +95,33 @@ public class StartConfiguration {
 		check(SPACEDOG_MAIL_SMTP_DEBUG, mailSmtpDebug());
 		check(SPACEDOG_MAIL_MAILGUN_KEY, mailGunKey());
 
+		check(SPACEDOG_CREDENTIALS_TOKEN_CACHE_SIZE, credentialsTokenCacheSize());
+		check(SPACEDOG_CREDENTIALS_TOKEN_CACHE_TTL, credentialsTokenCacheTtl());
+		check(SPACEDOG_CREDENTIALS_PASSWORD_CACHE_SIZE, credentialsPasswordCacheSize());
+		check(SPACEDOG_CREDENTIALS_PASSWORD_CACHE_TTL, credentialsPasswordCacheTtl());
+		check(SPACEDOG_CREDENTIALS_TOKEN_SIGNED, credentialsTokenSigned());
+		checkTokenSecret();
+		check(SPACEDOG_CREDENTIALS_TOKEN_RELOAD_PERIOD, credentialsTokenReloadPeriod());
+		check(SPACEDOG_CREDENTIALS_SESSION_MAX, credentialsSessionMax());
+		check(SPACEDOG_CREDENTIALS_SESSION_SWEEP_PERIOD, credentialsSessionSweepPeriod());
+		check(SPACEDOG_PASSWORD_HASH_ITERATIONS, passwordHashIterations());
+		check(SPACEDOG_PASSWORD_HASH_THREADS, passwordHashThreads());
+		check(SPACEDOG_PASSWORD_HASH_QUEUE_SIZE, passwordHashQueueSize());
+		check(SPACEDOG_PASSWORD_HASH_BACKEND_QUEUE_SIZE, passwordHashBackendQueueSize());
+		check(SPACEDOG_SETTINGS_CACHE_SIZE, settingsCacheSize());
+		check(SPACEDOG_SETTINGS_CACHE_TTL, settingsCacheTtl());
+		check(SPACEDOG_LOG_QUEUE_SIZE, logQueueSize());
+		check(SPACEDOG_LOG_BULK_SIZE, logBulkSize());
+		check(SPACEDOG_LOG_FLUSH_PERIOD, logFlushPeriod());
+		check(SPACEDOG_LOG_OVERFLOW, logOverflow());
+		check(SPACEDOG_LOG_SAMPLE_RATE, logSampleRate());
+		check(SPACEDOG_LOG_INDEX_PERIOD, logIndexPeriod());
+		check(SPACEDOG_LOG_RETENTION, logRetention());
+		check(SPACEDOG_BATCH_THREADS, batchThreads());
+		check(SPACEDOG_BATCH_QUEUE_SIZE, batchQueueSize());
+		check(SPACEDOG_BATCH_STREAM_MAX, batchStreamMax());
+		check(SPACEDOG_BATCH_STREAM_WINDOW, batchStreamWindow());
+
 		if (isProduction()) {
 			// Force Fluent HTTP to production mode
 			System.setProperty("PROD_MODE", "true");
@@ -164,6 +218,157 @@ public class StartConfiguration {
 				configuration.getProperty(SPACEDOG_ELASTIC_HTTP_ENABLED, "false"));
 	}
 
+	public long credentialsTokenCacheSize() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_TOKEN_CACHE_SIZE, "10000"));
+	}
+
+	// in seconds
+	public long credentialsTokenCacheTtl() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_TOKEN_CACHE_TTL, "60"));
+	}
+
+	public long credentialsPasswordCacheSize() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_PASSWORD_CACHE_SIZE, "10000"));
+	}
+
+	// in seconds, 0 means verified passwords are not cached
+	public long credentialsPasswordCacheTtl() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_PASSWORD_CACHE_TTL, "0"));
+	}
+
+	public long settingsCacheSize() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_SETTINGS_CACHE_SIZE, "10000"));
+	}
+
+	// in seconds, 0 means settings are not cached
+	public long settingsCacheTtl() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_SETTINGS_CACHE_TTL, "60"));
+	}
+
+	public int logQueueSize() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_LOG_QUEUE_SIZE, "10000"));
+	}
+
+	public int logBulkSize() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_LOG_BULK_SIZE, "500"));
+	}
+
+	// in milliseconds
+	public long logFlushPeriod() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_LOG_FLUSH_PERIOD, "1000"));
+	}
+
+	public LogWriter.Overflow logOverflow() {
+		return LogWriter.Overflow.valueOf(//
+				configuration.getProperty(SPACEDOG_LOG_OVERFLOW, "block"));
+	}
+
+	// with sample overflow policy, one log out of sample rate is kept
+	public int logSampleRate() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_LOG_SAMPLE_RATE, "10"));
+	}
+
+	// logs are written in a new index every day or every week
+	public LogIndices.Period logIndexPeriod() {
+		return LogIndices.Period.valueOf(//
+				configuration.getProperty(SPACEDOG_LOG_INDEX_PERIOD, "day"));
+	}
+
+	// in days
+	public int logRetention() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_LOG_RETENTION, "30"));
+	}
+
+	// threads running parallel batch sub requests
+	public int batchThreads() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_BATCH_THREADS, "16"));
+	}
+
+	// sub requests waiting for a thread, beyond this they are run
+	// by the batch request thread
+	public int batchQueueSize() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_BATCH_QUEUE_SIZE, "100"));
+	}
+
+	// maximum number of sub requests of a streamed batch for any backend
+	public int batchStreamMax() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_BATCH_STREAM_MAX, "10000"));
+	}
+
+	// number of streamed batch sub requests read and run at once
+	public int batchStreamWindow() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_BATCH_STREAM_WINDOW, "100"));
+	}
+
+	// signed access tokens are enabled on this server
+	public boolean credentialsTokenSigned() {
+		return Boolean.parseBoolean(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_TOKEN_SIGNED, "false"));
+	}
+
+	// secret key of signed access tokens shared by all servers
+	public Optional<String> credentialsTokenSecret() {
+		return Optional.ofNullable(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_TOKEN_SECRET));
+	}
+
+	// period of signed access token revocations reload in seconds
+	public long credentialsTokenReloadPeriod() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_TOKEN_RELOAD_PERIOD, "5"));
+	}
+
+	// maximum number of sessions kept per credentials
+	public int credentialsSessionMax() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_SESSION_MAX, "50"));
+	}
+
+	// in seconds
+	public long credentialsSessionSweepPeriod() {
+		return Long.valueOf(//
+				configuration.getProperty(SPACEDOG_CREDENTIALS_SESSION_SWEEP_PERIOD, "600"));
+	}
+
+	public int passwordHashIterations() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_PASSWORD_HASH_ITERATIONS, //
+						String.valueOf(Passwords.LEGACY_ITERATIONS)));
+	}
+
+	public int passwordHashThreads() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_PASSWORD_HASH_THREADS, //
+						String.valueOf(Runtime.getRuntime().availableProcessors())));
+	}
+
+	// total number of hashings waiting for a thread
+	public int passwordHashQueueSize() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_PASSWORD_HASH_QUEUE_SIZE, "1000"));
+	}
+
+	// number of hashings a single backend can have running or waiting
+	public int passwordHashBackendQueueSize() {
+		return Integer.valueOf(//
+				configuration.getProperty(SPACEDOG_PASSWORD_HASH_BACKEND_QUEUE_SIZE, "100"));
+	}
+
 	public String elasticNetworkHost() {
 		String ip = configuration.getProperty(SPACEDOG_ELASTIC_NETWORK_HOST);
 		if (!Strings.isNullOrEmpty(ip))
@@ -189,6 +394,19 @@ public class StartConfiguration {
 		Utils.info("[SpaceDog] %s = %s", property, value);
 	}
 
+	private void checkTokenSecret() {
+		if (!credentialsTokenSigned())
+			return;
+
+		// secret is not logged
+		Optional<String> secret = credentialsTokenSecret();
+		if (!secret.isPresent() || secret.get().length() < 32)
+			throw Exceptions.illegalArgument(//
+					"Configuration setting [%s] of at least 32 characters is required "
+							+ "when [%s] is true",
+					SPACEDOG_CREDENTIALS_TOKEN_SECRET, SPACEDOG_CREDENTIALS_TOKEN_SIGNED);
+	}
+
 	private void checkPath(String property, Optional<Path> path, boolean directory) {
 		if (path.isPresent())
 			checkPath(property, path.get(), directory);
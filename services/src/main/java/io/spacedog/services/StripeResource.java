@@ -33,7 +33,8 @@ public class StripeResource extends Resource {
 	@Post("/customers")
 	@Post("/customers/")
 	public Payload postCustomer() {
-		Credentials credentials = SpaceContext.checkUserCredentials();
+		Credentials credentials = CredentialsResource.get()//
+				.attach(SpaceContext.checkUserCredentials());
 
 		if (hasStripeCustomerId(credentials))
 			throw Exceptions.illegalArgument(//
@@ -57,7 +58,8 @@ public class StripeResource extends Resource {
 	@Get("/customers/me")
 	@Get("/customers/me/")
 	public Payload getCustomer(Context context) {
-		Credentials credentials = SpaceContext.checkUserCredentials();
+		Credentials credentials = CredentialsResource.get()//
+				.attach(SpaceContext.checkUserCredentials());
 		String customerId = getStripeCustomerId(credentials);
 		StripeSettings settings = SettingsResource.get().load(StripeSettings.class);
 
@@ -76,7 +78,8 @@ public class StripeResource extends Resource {
 	@Delete("/customers/me/")
 	public Payload deleteStripeCustomer() {
 
-		Credentials credentials = SpaceContext.checkUserCredentials();
+		Credentials credentials = CredentialsResource.get()//
+				.attach(SpaceContext.checkUserCredentials());
 		String customerId = getStripeCustomerId(credentials);
 		StripeSettings settings = SettingsResource.get().load(StripeSettings.class);
 
@@ -96,7 +99,8 @@ public class StripeResource extends Resource {
 	@Post("/customers/me/sources")
 	@Post("/customers/me/sources/")
 	public Payload postCard(String body, Context context) {
-		Credentials credentials = SpaceContext.checkUserCredentials();
+		Credentials credentials = CredentialsResource.get()//
+				.attach(SpaceContext.checkUserCredentials());
 		String customerId = getStripeCustomerId(credentials);
 		ObjectNode node = Json.readObject(body);
 		StripeSettings settings = SettingsResource.get().load(StripeSettings.class);
@@ -120,7 +124,8 @@ public class StripeResource extends Resource {
 	@Delete("/customers/me/sources/:cardId")
 	@Delete("/customers/me/sources/:cardId/")
 	public Payload deleteStripeCard(String cardId, Context context) {
-		Credentials credentials = SpaceContext.checkUserCredentials();
+		Credentials credentials = CredentialsResource.get()//
+				.attach(SpaceContext.checkUserCredentials());
 		String customerId = getStripeCustomerId(credentials);
 		StripeSettings settings = SettingsResource.get().load(StripeSettings.class);
 
@@ -153,7 +158,8 @@ public class StripeResource extends Resource {
 	//
 
 	private Payload charge(boolean myself, Context context) {
-		Credentials credentials = SpaceContext.getCredentials();
+		Credentials credentials = CredentialsResource.get()//
+				.attach(SpaceContext.getCredentials());
 		StripeSettings settings = SettingsResource.get().load(StripeSettings.class);
 		SpaceRequest request = SpaceRequest.post("https://api.stripe.com/v1/charges")//
 				.basicAuth("", settings.secretKey, "");
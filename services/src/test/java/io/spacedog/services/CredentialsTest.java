@@ -3,7 +3,9 @@ package io.spacedog.services;
 import org.junit.Assert;
 import org.junit.Test;
 
+import io.spacedog.utils.Credentials;
 import io.spacedog.utils.Credentials.Level;
+import io.spacedog.utils.Credentials.Session;
 
 public class CredentialsTest extends Assert {
 
@@ -25,4 +27,25 @@ public class CredentialsTest extends Assert {
 				new Level[] { Level.KEY, Level.USER, Level.ADMIN, Level.SUPER_ADMIN, Level.SUPERDOG }, //
 				Level.SUPERDOG.lowerOrEqual());
 	}
+
+	@Test
+	public void shouldCopyCredentialsWithoutSideEffect() {
+		Credentials credentials = new Credentials("test", "vince", Level.USER);
+		credentials.id("test-vince");
+		credentials.roles().add("driver");
+		credentials.setCurrentSession(Session.newSession(60));
+
+		Credentials copy = credentials.copy();
+		assertEquals(credentials, copy);
+		assertEquals("test-vince", copy.id());
+		assertEquals(credentials.accessToken(), copy.accessToken());
+
+		copy.roles().add("admin");
+		copy.target("test2");
+		copy.deleteCurrentSession();
+
+		assertFalse(credentials.roles().contains("admin"));
+		assertEquals("test", credentials.target());
+		assertTrue(credentials.hasCurrentSession());
+	}
 }
@@ -0,0 +1,96 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Credentials.Level;
+import io.spacedog.utils.DataPermission;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Schema.SchemaAcl;
+import io.spacedog.utils.SchemaAclTable;
+import io.spacedog.utils.SchemaSettings;
+
+/**
+ * Per request cost of data access checks with schema settings as they were
+ * used before (settings parsed per request then checked role by role) and
+ * with the compiled acl table. Run with main from the services test
+ * classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataAccessControlBenchmark {
+
+	private Credentials credentials;
+	private SchemaSettings settings;
+	private String settingsAsString;
+	private SchemaAclTable table;
+
+	@Setup
+	public void setup() throws Exception {
+		settings = new SchemaSettings();
+		for (int i = 0; i < 50; i++)
+			settings.acl.put("type" + i, i % 2 == 0 ? SchemaAcl.defaultAcl() //
+					: new SchemaAcl().set("driver", DataPermission.read, DataPermission.search)//
+							.set("manager", DataPermission.read_all, DataPermission.update_all));
+
+		settingsAsString = Json.mapper().writeValueAsString(settings);
+		table = new SchemaAclTable(settings);
+
+		credentials = new Credentials("test", "fred", Level.USER);
+		credentials.roles().add("driver");
+		credentials.roles().add("operator");
+	}
+
+	@Benchmark
+	public boolean settingsCheck() {
+		return settings.check(credentials, "type49", DataPermission.update, DataPermission.search);
+	}
+
+	@Benchmark
+	public boolean parsedSettingsCheck() throws Exception {
+		return Json.mapper().readValue(settingsAsString, SchemaSettings.class)//
+				.check(credentials, "type49", DataPermission.update, DataPermission.search);
+	}
+
+	@Benchmark
+	public boolean tableCheck() {
+		return table.check(credentials, "type49", DataPermission.update, DataPermission.search);
+	}
+
+	@Benchmark
+	public String[] settingsTypes() {
+		return settings.types(DataPermission.search, credentials);
+	}
+
+	@Benchmark
+	public String[] tableTypes() {
+		return table.types(DataPermission.search, credentials);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()//
+				.include(DataAccessControlBenchmark.class.getSimpleName())//
+				.build()).run();
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Utils;
+import net.codestory.http.payload.Payload;
+
+public class DebugTest extends Assert {
+
+	@Test
+	public void shouldOnlyRecordTimingsInDebugMode() {
+
+		Debug off = new Debug(false);
+		assertEquals(0, off.start());
+		off.stop(Debug.ELASTIC, "search", 0);
+		assertFalse(off.toNode().has("timings"));
+
+		Debug on = new Debug(true);
+		long start = on.start();
+		on.stop(Debug.SETTINGS, "schema", start);
+		on.stop(Debug.ELASTIC, "indices:data/read/get", on.start());
+		on.stop(Debug.ELASTIC, "indices:data/read/search", on.start());
+
+		ObjectNode node = on.toNode();
+		JsonNode timings = node.get("timings");
+		assertEquals(1, timings.get("categories").get(Debug.SETTINGS).get("count").asInt());
+		assertEquals(2, timings.get("categories").get(Debug.ELASTIC).get("count").asInt());
+		assertEquals(3, timings.get("calls").size());
+		assertEquals("schema", timings.get("calls").get(0).get("detail").asText());
+
+		String header = on.toServerTiming();
+		assertTrue(header.startsWith("settings;dur="));
+		assertTrue(header.contains(", elastic;dur="));
+		assertTrue(header.contains(";desc=\"2 calls\""));
+		assertTrue(header.contains(", total;dur="));
+	}
+
+	@Test
+	public void shouldTimeJsonSerialization() {
+
+		Debug on = new Debug(true);
+		ObjectNode content = Json.object("success", true, "status", 201);
+		Payload payload = new Payload(JsonPayload.JSON_CONTENT_UTF8, content, 201)//
+				.withHeader("x-test", "test");
+
+		Payload serialized = JsonPayload.serialize(payload, on);
+		assertEquals(content.toString(), new String((byte[]) serialized.rawContent(), Utils.UTF8));
+		assertEquals(JsonPayload.JSON_CONTENT_UTF8, serialized.rawContentType());
+		assertEquals(201, serialized.code());
+		assertEquals("test", serialized.headers().get("x-test"));
+
+		assertEquals(1, on.toNode().get("timings").get("categories").get(Debug.JSON).get("count").asInt());
+		assertTrue(on.toNode().get("timings").get(Debug.JSON).isTextual());
+		assertTrue(on.toServerTiming().startsWith("json;dur="));
+
+		// non json payloads are left as is
+		Payload text = new Payload("text/plain", "hello", 200);
+		assertSame(text, JsonPayload.serialize(text, on));
+	}
+
+	@Test
+	public void shouldCountChecksSavedByBatchSubRequests() {
+
+		Debug off = new Debug(false);
+		off.saved(Debug.AUTH);
+		assertFalse(off.toNode().has("checksSaved"));
+
+		Debug on = new Debug(true);
+		on.credentialCheck();
+		on.saved(Debug.AUTH);
+		on.saved(Debug.AUTH);
+		on.saved(Debug.SETTINGS);
+
+		ObjectNode node = on.toNode();
+		assertEquals(1, node.get("batchCredentialChecks").asInt());
+		assertEquals(2, node.get("checksSaved").get(Debug.AUTH).asInt());
+		assertEquals(1, node.get("checksSaved").get(Debug.SETTINGS).asInt());
+		assertFalse(node.get("checksSaved").has(Debug.COMPILED));
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Schema;
+
+public class IndexRegistryTest extends Assert {
+
+	@Test
+	public void shouldRegisterIndicesAndSchemasPerBackend() throws IOException {
+
+		AtomicReference<ClusterState> state = new AtomicReference<>(//
+				toState(1, index("test", "car"), index("test", "settings"), //
+						index("test2", "car")));
+		IndexRegistry registry = new IndexRegistry(() -> state.get());
+
+		assertArrayEquals(new String[] { "test-car-0", "test-settings-0", "test2-car-0" }, //
+				registry.indices());
+		assertEquals(2, registry.indices("test").length);
+		assertEquals(0, registry.indices("test3").length);
+
+		assertTrue(registry.exists("test-car", "car"));
+		assertTrue(registry.exists("test-settings", "settings"));
+		assertFalse(registry.exists("test-car", "settings"));
+		assertFalse(registry.exists("test3-car", "car"));
+
+		// only data types have a schema
+		assertTrue(registry.schema("test-car", "car").isPresent());
+		assertFalse(registry.schema("test-settings", "settings").isPresent());
+		assertEquals(1, registry.schemas("test").size());
+
+		// schemas can be modified by callers
+		registry.schema("test-car", "car").get().removeAll();
+		assertTrue(registry.schema("test-car", "car").get().has("car"));
+
+		// registry is reloaded from cluster state after invalidation
+		state.set(toState(2, index("test2", "car")));
+		assertTrue(registry.exists("test-car", "car"));
+		registry.invalidate();
+		assertFalse(registry.exists("test-car", "car"));
+		assertEquals(0, registry.indices("test").length);
+	}
+
+	//
+	// Implementation
+	//
+
+	private static IndexMetaData index(String backendId, String type) throws IOException {
+		String mapping = "settings".equals(type) //
+				? Json.object(type, Json.object("enabled", false)).toString()
+				: Schema.builder(type).string("name").build().validate().translate().toString();
+
+		return IndexMetaData.builder(backendId + "-" + type + "-0")//
+				.settings(Settings.builder()//
+						.put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)//
+						.put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)//
+						.put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0))//
+				.putMapping(type, mapping)//
+				.putAlias(AliasMetaData.builder(backendId + "-" + type))//
+				.build();
+	}
+
+	private static ClusterState toState(long version, IndexMetaData... indices) {
+		MetaData.Builder metaData = MetaData.builder().version(version);
+		for (IndexMetaData index : indices)
+			metaData.put(index, false);
+		return ClusterState.builder(ClusterName.DEFAULT).metaData(metaData).build();
+	}
+}
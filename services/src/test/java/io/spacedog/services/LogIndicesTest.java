@@ -0,0 +1,50 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.spacedog.services.LogIndices.Period;
+
+public class LogIndicesTest extends Assert {
+
+	@Test
+	public void shouldNameIndicesAfterTheirPeriodStart() {
+
+		// 2016-06-15 is a wednesday
+		DateTime time = new DateTime(2016, 6, 15, 23, 30, DateTimeZone.UTC);
+
+		LogIndices daily = new LogIndices(Period.day, 30);
+		assertEquals("spacedog-log-20160615", daily.toIndex(time));
+		// periods are in UTC
+		assertEquals("spacedog-log-20160616", daily.toIndex(//
+				time.withZoneRetainFields(DateTimeZone.forOffsetHours(-2))));
+
+		LogIndices weekly = new LogIndices(Period.week, 30);
+		assertEquals("spacedog-log-20160613", weekly.toIndex(time));
+		assertEquals("spacedog-log-20160620", weekly.toIndex(time.plusDays(5)));
+
+		assertTrue(daily.isPartition("spacedog-log-20160615"));
+		assertFalse(daily.isPartition("spacedog-log-0"));
+		assertFalse(daily.isPartition("test-log-20160615"));
+	}
+
+	@Test
+	public void shouldOnlyDropIndicesOlderThanRetention() {
+
+		DateTime now = new DateTime(2016, 6, 15, 12, 0, DateTimeZone.UTC);
+
+		LogIndices daily = new LogIndices(Period.day, 2);
+		assertFalse(daily.isObsolete("spacedog-log-20160615", now));
+		assertFalse(daily.isObsolete("spacedog-log-20160613", now));
+		assertTrue(daily.isObsolete("spacedog-log-20160612", now));
+
+		LogIndices weekly = new LogIndices(Period.week, 7);
+		assertFalse(weekly.isObsolete("spacedog-log-20160606", now));
+		assertTrue(weekly.isObsolete("spacedog-log-20160530", now));
+	}
+}
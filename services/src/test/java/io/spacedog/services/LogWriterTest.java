@@ -0,0 +1,89 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+
+import io.spacedog.services.LogWriter.Overflow;
+import io.spacedog.utils.Json;
+
+public class LogWriterTest extends Assert {
+
+	@Test
+	public void shouldWriteLogsInBulks() {
+
+		List<Integer> bulks = Lists.newCopyOnWriteArrayList();
+		LogWriter writer = new LogWriter(logs -> {
+			bulks.add(logs.size());
+			return 0;
+		}, 100, 10, 60000, Overflow.block, 10);
+
+		writer.start();
+		for (int i = 0; i < 25; i++)
+			writer.log(Json.object("i", i));
+
+		// flush does not wait for the flush period
+		writer.flush();
+		assertEquals(25, bulks.stream().mapToInt(Integer::intValue).sum());
+		assertEquals(10, bulks.get(0).intValue());
+		assertEquals(10, bulks.get(1).intValue());
+
+		// stop writes remaining logs
+		writer.log(Json.object("i", 25));
+		writer.stop();
+		assertEquals(26, writer.toJson().get("flushed").asLong());
+		assertEquals(0, writer.toJson().get("queueSize").asLong());
+	}
+
+	@Test
+	public void shouldDropOrSampleLogsWhenQueueIsFull() {
+
+		// writers are not started, queued logs stay queued
+		LogWriter.Bulk noop = logs -> 0;
+		LogWriter dropping = new LogWriter(noop, 10, 10, 100, Overflow.drop, 10);
+		for (int i = 0; i < 15; i++)
+			dropping.log(log(i));
+
+		ObjectNode json = dropping.toJson();
+		assertEquals(10, json.get("queued").asLong());
+		assertEquals(5, json.get("dropped").asLong());
+
+		LogWriter sampling = new LogWriter(noop, 10, 10, 100, Overflow.sample, 2);
+		for (int i = 0; i < 15; i++)
+			sampling.log(log(i));
+
+		// 6 logs are queued before the queue is half full,
+		// then only one out of two is queued
+		json = sampling.toJson();
+		assertEquals(10, json.get("queued").asLong());
+		assertEquals(0, json.get("dropped").asLong());
+		assertEquals(5, json.get("sampledOut").asLong());
+	}
+
+	@Test
+	public void shouldCountFailedLogs() {
+		LogWriter writer = new LogWriter(logs -> {
+			throw new RuntimeException("elastic is down");
+		}, 10, 10, 100, Overflow.block, 10);
+
+		writer.log(log(1));
+		writer.log(log(2));
+		writer.flush();
+
+		ObjectNode json = writer.toJson();
+		assertEquals(0, json.get("flushed").asLong());
+		assertEquals(2, json.get("failed").asLong());
+		assertEquals(1, json.get("bulks").asLong());
+	}
+
+	private static ObjectNode log(int i) {
+		return Json.object("i", i);
+	}
+}
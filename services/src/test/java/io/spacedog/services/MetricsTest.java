@@ -0,0 +1,139 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.spacedog.services.Metrics.Histogram;
+import io.spacedog.services.RouteTemplates.Route;
+import net.codestory.http.annotations.Delete;
+import net.codestory.http.annotations.Get;
+import net.codestory.http.annotations.Post;
+import net.codestory.http.annotations.Prefix;
+
+public class MetricsTest extends Assert {
+
+	@Prefix("/1/data")
+	public static class DataRoutes {
+
+		@Get("")
+		@Get("/")
+		public void getAll() {
+		}
+
+		@Get("/:type")
+		@Get("/:type/")
+		public void getType() {
+		}
+
+		@Get("/:type/:id")
+		@Get("/:type/:id/")
+		public void getObject() {
+		}
+
+		@Get("/_export/:id")
+		public void export() {
+		}
+
+		@Delete("/:type")
+		public void deleteType() {
+		}
+	}
+
+	public static class AdminRoutes {
+
+		@Post("/1/admin/login")
+		public void login() {
+		}
+	}
+
+	@Test
+	public void shouldResolveUrisToRouteTemplates() {
+
+		RouteTemplates templates = new RouteTemplates(new DataRoutes(), new AdminRoutes());
+
+		assertEquals("/1/data", templates.resolve("GET", "/1/data").template);
+		assertEquals("/1/data", templates.resolve("GET", "/1/data/").template);
+		assertEquals("/1/data/:type", templates.resolve("GET", "/1/data/car").template);
+		assertEquals("/1/data/:type/:id", templates.resolve("GET", "/1/data/car/123/").template);
+		assertEquals("/1/data/:type", templates.resolve("DELETE", "/1/data/car").template);
+		assertEquals("/1/admin/login", templates.resolve("POST", "/1/admin/login").template);
+
+		// static segments are preferred to parameters
+		assertEquals("/1/data/_export/:id", templates.resolve("GET", "/1/data/_export/1").template);
+
+		// unknown routes share the same metrics
+		assertSame(RouteTemplates.OTHER, templates.resolve("GET", "/1/data/car/123/456"));
+		assertSame(RouteTemplates.OTHER, templates.resolve("PUT", "/1/data/car/123"));
+		assertSame(RouteTemplates.OTHER, templates.resolve("GET", "/"));
+
+		// each template is resolved to the same route instance
+		Route route = templates.resolve("GET", "/1/data/car");
+		assertSame(route, templates.resolve("GET", "/1/data/bike/"));
+		assertEquals(6, templates.routes().size());
+	}
+
+	@Test
+	public void shouldRecordLatenciesInHistograms() {
+
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 100; i++)
+			histogram.record(i * 1000000L);
+
+		ObjectNode json = histogram.toJson();
+		assertEquals(100, json.get("count").asLong());
+		assertEquals(50.5, json.get("meanMillis").asDouble(), 0.001);
+		assertEquals(100, json.get("maxMillis").asDouble(), 0.001);
+
+		// percentiles are interpolated within buckets
+		double p50 = histogram.percentile(50);
+		assertTrue(p50 >= 25 && p50 <= 50);
+		double p99 = histogram.percentile(99);
+		assertTrue(p99 >= 50 && p99 <= 100);
+
+		Metrics metrics = new Metrics();
+		RouteTemplates templates = new RouteTemplates(new DataRoutes());
+		metrics.request("test", templates.resolve("GET", "/1/data/car"), 200, 3000000);
+		metrics.request("test", templates.resolve("GET", "/1/data/car"), 404, 1000000);
+		metrics.elastic("indices:data/read/search", 2000000);
+
+		json = metrics.toJson();
+		assertEquals(2, json.get("requestCount").asLong());
+		assertEquals(2, json.get("requests").size());
+		assertEquals("indices:data/read/search", json.get("elastic").get(0).get("action").asText());
+
+		String text = metrics.toPrometheus();
+		assertTrue(text.contains("spacedog_request_duration_seconds_bucket{backend=\"test\","//
+				+ "method=\"GET\",route=\"/1/data/:type\",status=\"2xx\",le=\"0.005\"} 1\n"));
+		assertTrue(text.contains("spacedog_request_duration_seconds_count{backend=\"test\","//
+				+ "method=\"GET\",route=\"/1/data/:type\",status=\"4xx\"} 1\n"));
+		assertTrue(text.contains("spacedog_elastic_duration_seconds_bucket{"//
+				+ "action=\"indices:data/read/search\",le=\"+Inf\"} 1\n"));
+	}
+
+	@Test
+	public void shouldCapTheNumberOfBackends() {
+
+		Metrics metrics = new Metrics();
+		Route route = new RouteTemplates(new DataRoutes()).resolve("GET", "/1/data/car");
+
+		for (int i = 0; i < Metrics.MAX_BACKENDS + 10; i++)
+			metrics.request("backend" + i, route, 200, 1000000);
+
+		// requests of extra backends are recorded in the unknown backend
+		ObjectNode json = metrics.toJson();
+		assertEquals(Metrics.MAX_BACKENDS + 10, json.get("requestCount").asLong());
+		assertEquals(Metrics.MAX_BACKENDS + 1, json.get("requests").size());
+
+		// already known backends are still recorded
+		metrics.request("backend0", route, 200, 1000000);
+		assertTrue(metrics.toPrometheus().contains("spacedog_request_duration_seconds_count{backend=\"backend0\","//
+				+ "method=\"GET\",route=\"/1/data/:type\",status=\"2xx\"} 2\n"));
+		assertTrue(metrics.toPrometheus().contains("spacedog_request_duration_seconds_count{backend=\"unknown\","//
+				+ "method=\"GET\",route=\"/1/data/:type\",status=\"2xx\"} 10\n"));
+	}
+}
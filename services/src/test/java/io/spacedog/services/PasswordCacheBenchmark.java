@@ -0,0 +1,68 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Credentials.Level;
+
+/**
+ * Per request cost of a basic authenticated password check, without the
+ * password cache (a full password hash) and with it (a salted digest and a
+ * cache lookup). Run with main from the services test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordCacheBenchmark {
+
+	private static final String PASSWORD = "hi fred";
+
+	private Credentials credentials;
+	private PasswordCache cache;
+
+	@Setup
+	public void setup() {
+		credentials = new Credentials("test", "fred", Level.USER);
+		credentials.setPassword(PASSWORD, Optional.empty());
+		CredentialsInvalidations invalidations = new CredentialsInvalidations(60);
+		cache = new PasswordCache(10000, 60, invalidations);
+		cache.put("test", "fred", PASSWORD, credentials, invalidations.generation());
+	}
+
+	@Benchmark
+	public boolean withoutCache() {
+		return credentials.checkPassword(PASSWORD);
+	}
+
+	@Benchmark
+	public boolean withCache() {
+		return cache.get("test", "fred", PASSWORD).isPresent();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()//
+				.include(PasswordCacheBenchmark.class.getSimpleName())//
+				.build()).run();
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Credentials.Level;
+
+public class PasswordCacheTest extends Assert {
+
+	@Test
+	public void shouldCacheVerifiedPasswordsOnly() {
+
+		CredentialsInvalidations invalidations = new CredentialsInvalidations(60);
+		PasswordCache cache = new PasswordCache(10, 60, invalidations);
+		Credentials fred = new Credentials("test", "fred", Level.USER);
+		fred.id("fredId");
+		cache.put("test", "fred", "hi fred", fred, invalidations.generation());
+
+		assertTrue(cache.get("test", "fred", "hi fred").isPresent());
+		assertEquals("fredId", cache.get("test", "fred", "hi fred").get().id());
+		assertFalse(cache.get("test", "fred", "hi vince").isPresent());
+		assertFalse(cache.get("test2", "fred", "hi fred").isPresent());
+		assertFalse(cache.get("test", "vince", "hi fred").isPresent());
+
+		// cached credentials are copies
+		cache.get("test", "fred", "hi fred").get().name("vince");
+		assertEquals("fred", cache.get("test", "fred", "hi fred").get().name());
+
+		// invalidation
+		invalidations.invalidateCredentials("fredId");
+		assertFalse(cache.get("test", "fred", "hi fred").isPresent());
+
+		// credentials loaded before an invalidation are stale
+		// even if cached after this invalidation
+		long generation = invalidations.generation();
+		invalidations.invalidateCredentials("fredId");
+		cache.put("test", "fred", "hi fred", fred, generation);
+		assertFalse(cache.get("test", "fred", "hi fred").isPresent());
+
+		// credentials loaded after an invalidation are valid
+		cache.put("test", "fred", "hi fred", fred, invalidations.generation());
+		assertTrue(cache.get("test", "fred", "hi fred").isPresent());
+
+		// backend invalidation
+		invalidations.invalidateBackend("test2");
+		assertTrue(cache.get("test", "fred", "hi fred").isPresent());
+		invalidations.invalidateBackend("test");
+		assertFalse(cache.get("test", "fred", "hi fred").isPresent());
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.spacedog.utils.SpaceException;
+
+public class PasswordHasherTest extends Assert {
+
+	@Test
+	public void shouldRejectHashingsOverBackendQueueSize() throws InterruptedException {
+
+		PasswordHasher hasher = new PasswordHasher(2, 10, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		Thread thread = new Thread(() -> hasher.run("test", () -> {
+			started.countDown();
+			await(release);
+		}));
+		thread.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// test backend has reached its limit
+		try {
+			hasher.execute("test", () -> true);
+			fail();
+		} catch (SpaceException e) {
+			assertEquals(429, e.httpStatus());
+		}
+
+		// other backends are not impacted
+		assertTrue(hasher.execute("test2", () -> true));
+
+		release.countDown();
+		thread.join();
+
+		assertTrue(hasher.execute("test", () -> true));
+		assertEquals(1, hasher.toJson().get("rejected").asLong());
+		assertEquals(1, hasher.toJson().get("rejectedByBackend").get("test").asLong());
+		assertEquals(3, hasher.toJson().get("executed").asLong());
+	}
+
+	@Test
+	public void shouldExecuteAllHashingsWithinBackendQueueSize() {
+
+		PasswordHasher hasher = new PasswordHasher(4, 100, 3);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+
+		List<Supplier<Integer>> hashings = IntStream.range(0, 20)//
+				.mapToObj(i -> (Supplier<Integer>) () -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					Thread.yield();
+					running.decrementAndGet();
+					return i;
+				})//
+				.collect(Collectors.toList());
+
+		List<Integer> results = hasher.executeAll("test", hashings, rejection -> -1);
+
+		// results are in submission order
+		for (int i = 0; i < 20; i++)
+			assertEquals(i, results.get(i).intValue());
+
+		assertTrue(maxRunning.get() <= 3);
+		assertEquals(20, hasher.toJson().get("executed").asLong());
+		assertEquals(0, hasher.toJson().get("rejected").asLong());
+	}
+
+	@Test
+	public void shouldReturnRejectedResultsWhenPoolIsFull() throws InterruptedException {
+
+		PasswordHasher hasher = new PasswordHasher(1, 1, 10);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		// another backend fills the pool thread and queue
+		Thread thread = new Thread(() -> hasher.run("test2", () -> {
+			started.countDown();
+			await(release);
+		}));
+		thread.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread queued = new Thread(() -> hasher.run("test2", () -> {
+		}));
+		queued.start();
+
+		while (hasher.toJson().get("queued").asInt() == 0)
+			Thread.yield();
+
+		List<Supplier<Integer>> hashings = IntStream.range(0, 3)//
+				.mapToObj(i -> (Supplier<Integer>) () -> i)//
+				.collect(Collectors.toList());
+
+		// all hashings get a result even if rejected
+		List<Integer> results = hasher.executeAll("test", hashings, rejection -> {
+			assertEquals(429, ((SpaceException) rejection).httpStatus());
+			return -1;
+		});
+
+		assertEquals(3, results.size());
+		for (Integer result : results)
+			assertEquals(-1, result.intValue());
+
+		release.countDown();
+		thread.join();
+		queued.join();
+
+		// hashings are submitted again once previous ones are done
+		assertEquals(Integer.valueOf(2), //
+				hasher.executeAll("test", hashings, rejection -> -1).get(2));
+	}
+
+	@Test
+	public void shouldRethrowHashingExceptions() {
+		PasswordHasher hasher = new PasswordHasher(1, 10, 10);
+		try {
+			hasher.run("test", () -> {
+				throw new IllegalArgumentException("invalid password");
+			});
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("invalid password", e.getMessage());
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
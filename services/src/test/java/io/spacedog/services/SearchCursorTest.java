@@ -0,0 +1,80 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.Base64;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.spacedog.utils.ForbiddenException;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Utils;
+
+public class SearchCursorTest extends Assert {
+
+	@Test
+	public void shouldOnlyAcceptCursorsOfThisBackendAndTypes() {
+
+		SignedTokens signer = new SignedTokens(SignedTokens.newSecret());
+		String encoded = new SearchCursor("test", "car", "bike").encode(signer);
+
+		// cursors are safe to pass as query params
+		assertTrue(encoded.matches("[A-Za-z0-9_.-]+"));
+
+		SearchCursor cursor = SearchCursor.decode(encoded, signer);
+		cursor.check("test", "car", "bike");
+		cursor.check("test", "bike", "car", "truck");
+
+		try {
+			cursor.check("test", "car");
+			fail();
+		} catch (ForbiddenException e) {
+		}
+
+		try {
+			cursor.check("other", "car", "bike");
+			fail();
+		} catch (ForbiddenException e) {
+		}
+
+		try {
+			SearchCursor.decode("garbage", signer);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void shouldRejectForgedCursors() {
+
+		SignedTokens signer = new SignedTokens(SignedTokens.newSecret());
+		String encoded = new SearchCursor("test", "car").encode(signer);
+		String signature = encoded.substring(encoded.lastIndexOf('.') + 1);
+
+		// unsigned cursor around somebody else's scroll id
+		String forged = Base64.getUrlEncoder().withoutPadding().encodeToString(//
+				Json.object("b", "test", "t", Json.array("car"), "s", "victim", "c", 0)//
+						.toString().getBytes(Utils.UTF8));
+
+		assertRejected(forged, signer);
+		assertRejected(forged + '.', signer);
+		assertRejected(forged + '.' + signature, signer);
+
+		// cursor signed by another server secret
+		assertRejected(new SearchCursor("test", "car")//
+				.encode(new SignedTokens(SignedTokens.newSecret())), signer);
+
+		// access tokens and cursors signatures never match
+		assertRejected(forged + '.' + signer.sign(forged), signer);
+	}
+
+	private void assertRejected(String cursor, SignedTokens signer) {
+		try {
+			SearchCursor.decode(cursor, signer);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
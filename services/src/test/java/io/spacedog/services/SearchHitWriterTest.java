@@ -0,0 +1,68 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.io.StringWriter;
+import java.util.Collections;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.spacedog.utils.Json;
+
+public class SearchHitWriterTest extends Assert {
+
+	@Test
+	public void shouldWriteHitsStraightFromSourceWithMeta() throws Exception {
+
+		InternalSearchHit hit = new InternalSearchHit(0, "1", new Text("car"), //
+				Collections.emptyMap());
+		hit.version(3);
+		hit.score(1.5f);
+		hit.sortValues(new Object[] { "blue", 12 });
+		hit.sourceRef(new BytesArray("{\"name\":\"twingo\",\"meta\":{\"createdBy\":\"fred\","//
+				+ "\"id\":\"forged\",\"score\":9},\"tags\":[\"small\",{\"color\":\"blue\"}]}"));
+
+		JsonNode result = write(hit, true);
+		assertEquals(Json.readNode("{\"name\":\"twingo\",\"meta\":{\"createdBy\":\"fred\","//
+				+ "\"id\":\"1\",\"type\":\"car\",\"version\":3,\"score\":1.5,\"sort\":[\"blue\",12]},"//
+				+ "\"tags\":[\"small\",{\"color\":\"blue\"}]}"), result);
+
+		// objects are written without score and sort
+		JsonNode object = write(hit, false);
+		assertEquals(Json.readNode("{\"name\":\"twingo\",\"meta\":{\"createdBy\":\"fred\","//
+				+ "\"score\":9,\"id\":\"1\",\"type\":\"car\",\"version\":3},"//
+				+ "\"tags\":[\"small\",{\"color\":\"blue\"}]}"), object);
+
+		// hits without source or meta only get injected meta
+		hit.sourceRef(null);
+		hit.sortValues(new Object[0]);
+		hit.score(Float.NaN);
+		assertEquals(Json.readNode("{\"meta\":{\"id\":\"1\",\"type\":\"car\",\"version\":3}}"), //
+				write(hit, true));
+
+		hit.sourceRef(new BytesArray("{\"name\":\"clio\",\"meta\":\"invalid\"}"));
+		assertEquals(Json.readNode("{\"name\":\"clio\",\"meta\":{\"id\":\"1\",\"type\":\"car\",\"version\":3}}"), //
+				write(hit, true));
+	}
+
+	private JsonNode write(InternalSearchHit hit, boolean result) throws Exception {
+		StringWriter writer = new StringWriter();
+		JsonGenerator generator = Json.mapper().getFactory().createGenerator(writer);
+
+		if (result)
+			SearchHitWriter.writeResult(generator, hit);
+		else
+			SearchHitWriter.writeObject(generator, hit);
+
+		generator.flush();
+		return Json.readNode(writer.toString());
+	}
+}
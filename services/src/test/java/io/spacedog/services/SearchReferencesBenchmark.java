@@ -0,0 +1,151 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Credentials.Level;
+import io.spacedog.utils.Json;
+import io.spacedog.utils.Schema;
+
+/**
+ * Latency of a search page of pets with their owner and vet references
+ * fetched, per page size. References are fetched as they were before (one
+ * get per distinct reference) and with one multi get per referenced type.
+ * Runs on an embedded elasticsearch node but still needs the usual
+ * configuration file. Run with main from the services test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchReferencesBenchmark {
+
+	private static final String BACKEND_ID = "benchmark";
+	private static final int COUNT = 1000;
+
+	@Param({ "10", "50", "100", "500" })
+	private int pageSize;
+
+	private Node node;
+	private ElasticClient elastic;
+	private Credentials credentials;
+
+	@Setup
+	public void setup() throws Exception {
+		node = new ElasticNode(Settings.builder()//
+				.put("cluster.name", "spacedog-benchmark")//
+				.put("node.local", true)//
+				.put("http.enabled", false)//
+				.put("path.home", Files.createTempDirectory("spacedog-benchmark").toString())//
+				.build());
+
+		node.start();
+		Start.get().setElasticClient(node.client());
+		elastic = Start.get().getElasticClient();
+		credentials = new Credentials(BACKEND_ID, "fred", Level.USER);
+
+		index(Schema.builder("owner").string("name").build(), "owner");
+		index(Schema.builder("vet").string("name").build(), "vet");
+		index(Schema.builder("pet").string("name").string("owner").string("vet").build(), "pet");
+	}
+
+	@TearDown
+	public void tearDown() {
+		node.close();
+	}
+
+	@Benchmark
+	public int getPerReference() {
+		SearchHit[] hits = searchPets();
+		int count = 0;
+
+		for (String reference : toReferences(hits)) {
+			DataStore.get().getObject(BACKEND_ID, //
+					Resource.getReferenceType(reference), Resource.getReferenceId(reference));
+			count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int multiGetPerType() {
+		Map<String, ObjectNode> objects = SearchResource.get()//
+				.getReferences(toReferences(searchPets()), new String[0], credentials);
+		return objects.size();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()//
+				.include(SearchReferencesBenchmark.class.getSimpleName())//
+				.build()).run();
+	}
+
+	//
+	// Implementation
+	//
+
+	private SearchHit[] searchPets() {
+		return elastic.prepareSearch(BACKEND_ID, "pet")//
+				.setQuery(QueryBuilders.matchAllQuery())//
+				.setSize(pageSize)//
+				.get().getHits().getHits();
+	}
+
+	private Set<String> toReferences(SearchHit[] hits) {
+		Set<String> references = new HashSet<>();
+		for (SearchHit hit : hits) {
+			references.add(hit.getSource().get("owner").toString());
+			references.add(hit.getSource().get("vet").toString());
+		}
+		return references;
+	}
+
+	private void index(Schema schema, String type) {
+		elastic.createIndex(BACKEND_ID, type, //
+				schema.validate().translate().toString(), false, 1, 0);
+
+		BulkRequestBuilder bulk = elastic.prepareBulk();
+		for (int i = 0; i < COUNT; i++) {
+			ObjectNode object = Json.object("name", type + i);
+			if (type.equals("pet"))
+				object.put("owner", "/owner/" + i).put("vet", "/vet/" + i);
+			bulk.add(elastic.prepareIndex(BACKEND_ID, type, Integer.toString(i))//
+					.setSource(object.toString()));
+		}
+
+		bulk.get();
+		elastic.refreshType(BACKEND_ID, type);
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SettingsCacheTest extends Assert {
+
+	@Test
+	public void shouldLoadSettingsOnlyOnce() {
+		SettingsCache cache = new SettingsCache(100, 60);
+		AtomicInteger loads = new AtomicInteger();
+
+		for (int i = 0; i < 3; i++) {
+			SettingsCache.Entry entry = cache.get("test", "mail", () -> {
+				loads.incrementAndGet();
+				return SettingsCache.found("{}", 1);
+			});
+			assertEquals("{}", entry.source().get());
+		}
+
+		// missing settings are cached too
+		for (int i = 0; i < 3; i++)
+			assertFalse(cache.get("test", "schema", () -> {
+				loads.incrementAndGet();
+				return SettingsCache.missing(-1);
+			}).source().isPresent());
+
+		assertEquals(2, loads.get());
+		assertEquals(4, cache.cache().stats().hitCount());
+	}
+
+	@Test
+	public void shouldNotOverrideMoreRecentSettings() {
+		SettingsCache cache = new SettingsCache(100, 60);
+
+		// slow read returns an older version than the one just saved
+		cache.get("test", "mail", () -> {
+			cache.put("test", "mail", SettingsCache.found("{\"v\":2}", 2));
+			return SettingsCache.found("{\"v\":1}", 1);
+		});
+		assertEquals("{\"v\":2}", cache.get("test", "mail", null).source().get());
+
+		// slow read returns settings deleted meanwhile
+		cache.invalidateAll();
+		cache.get("test", "mail", () -> {
+			cache.put("test", "mail", SettingsCache.missing(3));
+			return SettingsCache.found("{\"v\":2}", 2);
+		});
+		assertFalse(cache.get("test", "mail", null).source().isPresent());
+
+		// saves always replace cached settings
+		cache.put("test", "mail", SettingsCache.found("{\"v\":1}", 1));
+		assertEquals("{\"v\":1}", cache.get("test", "mail", null).source().get());
+	}
+
+	@Test
+	public void shouldInvalidateBackendSettings() {
+		SettingsCache cache = new SettingsCache(100, 60);
+		cache.put("test", "mail", SettingsCache.found("{}", 1));
+		cache.put("test", "schema", SettingsCache.found("{}", 1));
+		cache.put("test2", "mail", SettingsCache.found("{}", 1));
+
+		cache.invalidate("test");
+
+		assertEquals(1, cache.cache().size());
+		assertNotNull(cache.cache().getIfPresent("test2/mail"));
+	}
+}
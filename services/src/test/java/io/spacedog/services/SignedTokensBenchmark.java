@@ -0,0 +1,102 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Credentials.Level;
+import io.spacedog.utils.Json;
+
+/**
+ * Access token checks under concurrent load: signed tokens checked in memory
+ * against stored sessions checked with the two real time gets of the token
+ * cache miss path (token document then credentials document) on a local
+ * elastic node. Run with main from the services test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class SignedTokensBenchmark {
+
+	private Node node;
+	private Client client;
+	private SignedTokens signedTokens;
+	private String signedToken;
+
+	@Setup
+	public void setup() throws Exception {
+		node = NodeBuilder.nodeBuilder().local(true)//
+				.settings(Settings.builder()//
+						.put("path.home", Files.createTempDirectory("benchmark").toString())//
+						.put("http.enabled", false))//
+				.clusterName("spacedog-benchmark")//
+				.node();
+		client = node.client();
+
+		Credentials credentials = new Credentials("test", "fred", Level.USER);
+		credentials.id("fredId");
+		credentials.email("fred@dog.com");
+
+		client.prepareIndex("spacedog-credentials", "credentials", "fredId")//
+				.setSource(Json.mapper().writeValueAsString(credentials)).get();
+		client.prepareIndex("spacedog-token", "token", "tokenId")//
+				.setSource(Json.object("credentialsId", "fredId", "backendId", "test").toString())//
+				.get();
+
+		signedTokens = new SignedTokens(SignedTokens.newSecret());
+		signedToken = signedTokens.newSession(credentials, 3600).accessToken();
+	}
+
+	@TearDown
+	public void tearDown() {
+		node.close();
+	}
+
+	@Benchmark
+	public Credentials signedToken() {
+		return signedTokens.check("test", signedToken);
+	}
+
+	@Benchmark
+	public Credentials storedSession() {
+		GetResponse token = client.prepareGet("spacedog-token", "token", "tokenId").get();
+		String credentialsId = token.getSource().get("credentialsId").toString();
+		GetResponse credentials = client.prepareGet(//
+				"spacedog-credentials", "credentials", credentialsId).get();
+		return Json.mapper().convertValue(credentials.getSource(), Credentials.class);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()//
+				.include(SignedTokensBenchmark.class.getSimpleName())//
+				.build()).run();
+	}
+}
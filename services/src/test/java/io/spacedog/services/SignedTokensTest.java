@@ -0,0 +1,70 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.services;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.spacedog.utils.AuthenticationException;
+import io.spacedog.utils.Credentials;
+import io.spacedog.utils.Credentials.Level;
+import io.spacedog.utils.Credentials.Session;
+
+public class SignedTokensTest extends Assert {
+
+	@Test
+	public void shouldSignAndCheckAccessTokens() {
+
+		SignedTokens tokens = new SignedTokens(SignedTokens.newSecret());
+		Credentials fred = new Credentials("test", "fred", Level.USER);
+		fred.id("fredId");
+		fred.email("fred@dog.com");
+		fred.roles().add("driver");
+
+		Session session = tokens.newSession(fred, 60);
+		assertTrue(SignedTokens.isSigned(session.accessToken()));
+		assertFalse(SignedTokens.isSigned(Session.newSession(60).accessToken()));
+
+		Credentials checked = tokens.check("test", session.accessToken());
+		assertTrue(checked.isDetached());
+		assertEquals("fredId", checked.id());
+		assertEquals("test", checked.backendId());
+		assertEquals("fred", checked.name());
+		assertEquals("fred@dog.com", checked.email().get());
+		assertEquals(Level.USER, checked.level());
+		assertEquals(fred.roles(), checked.roles());
+		assertEquals(session.accessToken(), checked.accessToken());
+		assertTrue(checked.accessTokenExpiresIn() > 0);
+	}
+
+	@Test
+	public void shouldRejectInvalidAccessTokens() {
+
+		SignedTokens tokens = new SignedTokens(SignedTokens.newSecret());
+		Credentials fred = new Credentials("test", "fred", Level.USER);
+		fred.id("fredId");
+		String token = tokens.newSession(fred, 60).accessToken();
+
+		// signed with another secret
+		checkInvalid(new SignedTokens(SignedTokens.newSecret()), token, "invalid-access-token");
+
+		// tampered payload
+		String payload = token.substring(0, token.indexOf('.'));
+		String tampered = payload.substring(0, payload.length() - 2) + "xx" //
+				+ token.substring(token.indexOf('.'));
+		checkInvalid(tokens, tampered, "invalid-access-token");
+
+		// expired
+		checkInvalid(tokens, tokens.newSession(fred, -1).accessToken(), "expired-access-token");
+	}
+
+	private void checkInvalid(SignedTokens tokens, String token, String code) {
+		try {
+			tokens.check("test", token);
+			fail();
+		} catch (AuthenticationException e) {
+			assertEquals(code, e.code());
+		}
+	}
+}
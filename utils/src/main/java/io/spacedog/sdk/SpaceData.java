@@ -75,6 +75,8 @@ public class SpaceData {
 
 	public static class ComplexQuery {
 		public boolean refresh = false;
+		// to get a next cursor to read next pages
+		public boolean cursor = false;
 		public ObjectNode query;
 		public String type;
 	}
@@ -85,11 +87,26 @@ public class SpaceData {
 				.bearerAuth(dog.backendId, dog.accessToken)//
 				.routeParam("type", query.type)//
 				.queryParam("refresh", Boolean.toString(query.refresh))//
+				.queryParam("cursor", Boolean.toString(query.cursor))//
 				.body(query.query).go(200).objectNode();
 
 		return new SearchResults<K>(results, dataClass);
 	}
 
+	/**
+	 * Returns the next page of a search started with cursor set to true. The
+	 * next cursor is null if there is no more page to read.
+	 */
+	public <K extends DataObject> SearchResults<K> search(String next, Class<K> dataClass) {
+
+		ObjectNode results = SpaceRequest.get("/1/search")//
+				.bearerAuth(dog.backendId, dog.accessToken)//
+				.queryParam("next", next)//
+				.go(200).objectNode();
+
+		return new SearchResults<K>(results, dataClass);
+	}
+
 	public static class TermQuery {
 		public int from = 0;
 		public int size = 10;
@@ -98,16 +115,19 @@ public class SpaceData {
 		public String type;
 		public String sort;
 		public boolean ascendant = true;
+		public boolean cursor = false;
 	}
 
 	public class SearchResults<K extends DataObject> {
 
 		private long total;
 		private List<K> objects;
+		private String next;
 
 		public SearchResults(ObjectNode results, Class<K> dataClass) {
 			this.total = results.get("total").asLong();
 			this.objects = toList((ArrayNode) results.get("results"), dataClass);
+			this.next = results.hasNonNull("next") ? results.get("next").asText() : null;
 		}
 
 		public long total() {
@@ -117,6 +137,10 @@ public class SpaceData {
 		public List<K> objects() {
 			return objects;
 		}
+
+		public String next() {
+			return next;
+		}
 	}
 
 	public <K extends DataObject> SearchResults<K> search(TermQuery query, Class<K> dataClass) {
@@ -156,6 +180,7 @@ public class SpaceData {
 
 		ComplexQuery complex = new ComplexQuery();
 		complex.refresh = query.refresh;
+		complex.cursor = query.cursor;
 		complex.type = query.type;
 		complex.query = builder.build();
 
@@ -0,0 +1,14 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.utils;
+
+public class BatchSettings extends Settings {
+
+	// maximum number of sub requests of a streamed batch,
+	// the platform maximum applies if lower
+	public int maxStreamedRequests = 1000;
+
+	// maximum number of streamed batches running at the same time
+	public int maxConcurrentStreams = 2;
+}
@@ -6,7 +6,6 @@ package io.spacedog.utils;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
@@ -17,6 +16,8 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonProperty.Access;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
@@ -72,6 +73,14 @@ public class Credentials {
 			return accessToken == null ? super.hashCode() : accessToken.hashCode();
 		}
 
+		public String accessToken() {
+			return accessToken;
+		}
+
+		public DateTime accessTokenExpiresAt() {
+			return accessTokenExpiresAt;
+		}
+
 		public long expiresIn() {
 			if (accessTokenExpiresAt == null)
 				return 0;
@@ -93,10 +102,14 @@ public class Credentials {
 		}
 
 		public static Session newSession(String accessToken, long lifetime) {
+			// lifetime in seconds is converted to milliseconds
+			return newSession(accessToken, DateTime.now().plus(lifetime * 1000));
+		}
+
+		public static Session newSession(String accessToken, DateTime expiresAt) {
 			Session session = new Session();
 			session.accessToken = accessToken;
-			// lifetime in seconds is converted to milliseconds
-			session.accessTokenExpiresAt = DateTime.now().plus(lifetime * 1000);
+			session.accessTokenExpiresAt = expiresAt;
 			return session;
 		}
 
@@ -108,10 +121,17 @@ public class Credentials {
 	private Level level;
 	private boolean enabled = true;
 	private Set<String> roles;
+	/**
+	 * Sessions are stored in their own documents. Legacy sessions are only
+	 * read to be migrated and are never written back.
+	 */
+	@JsonProperty(access = Access.WRITE_ONLY)
 	private Set<Session> sessions;
 	private ObjectNode stash;
 	private String passwordResetCode;
 	private String hashedPassword;
+	private String passwordSalt;
+	private Integer passwordIterations;
 	private String createdAt;
 	private String updatedAt;
 
@@ -125,6 +145,12 @@ public class Credentials {
 
 	@JsonIgnore
 	public Session currentSession;
+	/**
+	 * Detached credentials are built from signed access tokens. They only
+	 * contain what the token carries and must be reloaded before any update.
+	 */
+	@JsonIgnore
+	private boolean detached;
 	@JsonIgnore
 	private boolean passwordChecked;
 	@JsonIgnore
@@ -150,6 +176,14 @@ public class Credentials {
 		return Level.SUPERDOG.equals(level);
 	}
 
+	public boolean isDetached() {
+		return detached;
+	}
+
+	public void detached(boolean detached) {
+		this.detached = detached;
+	}
+
 	public boolean isAtLeastSuperAdmin() {
 		return level.ordinal() >= Level.SUPER_ADMIN.ordinal();
 	}
@@ -320,6 +354,32 @@ public class Credentials {
 		return updatedAt == null ? true : updatedAt.equals(createdAt);
 	}
 
+	/**
+	 * Returns a copy safe to modify without side effect on this credentials.
+	 * Sessions are shared since they are never modified once created.
+	 */
+	public Credentials copy() {
+		Credentials copy = new Credentials(backendId, username, level);
+		copy.email = email;
+		copy.enabled = enabled;
+		copy.roles = roles == null ? null : Sets.newHashSet(roles);
+		copy.sessions = sessions == null ? null : Sets.newHashSet(sessions);
+		copy.stash = stash == null ? null : stash.deepCopy();
+		copy.passwordResetCode = passwordResetCode;
+		copy.hashedPassword = hashedPassword;
+		copy.passwordSalt = passwordSalt;
+		copy.passwordIterations = passwordIterations;
+		copy.createdAt = createdAt;
+		copy.updatedAt = updatedAt;
+		copy.target = target;
+		copy.currentSession = currentSession;
+		copy.passwordChecked = passwordChecked;
+		copy.detached = detached;
+		copy.id = id;
+		copy.version = version;
+		return copy;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -359,7 +419,9 @@ public class Credentials {
 		if (hashedPassword == null)
 			return false;
 
-		String hashedPasswordToCheck = Passwords.hash(passwordToCheck);
+		String hashedPasswordToCheck = passwordSalt == null //
+				? Passwords.hash(passwordToCheck)
+				: Passwords.hash(passwordToCheck, passwordSalt, passwordIterations);
 		if (hashedPassword.equals(hashedPasswordToCheck)) {
 			passwordChecked = true;
 			return true;
@@ -369,6 +431,8 @@ public class Credentials {
 
 	public void clearPasswordAndTokens() {
 		hashedPassword = null;
+		passwordSalt = null;
+		passwordIterations = null;
 		passwordResetCode = null;
 		currentSession = null;
 		if (sessions != null)
@@ -391,12 +455,51 @@ public class Credentials {
 	}
 
 	public boolean setPassword(String password, Optional<String> regex) {
-		hashedPassword = Passwords.checkAndHash(password, regex);
+		Passwords.checkValid(password, regex);
+		hashPassword(password);
 		passwordChecked = true;
 		passwordResetCode = null;
 		return true;
 	}
 
+	/**
+	 * Sets a password already hashed elsewhere, for example by another
+	 * SpaceDog server. Null salt and iterations mean legacy hashing.
+	 */
+	public void setHashedPassword(String hashedPassword, String salt, Integer iterations) {
+		Check.notNullOrEmpty(hashedPassword, "hashedPassword");
+		this.hashedPassword = hashedPassword;
+		this.passwordSalt = salt;
+		this.passwordIterations = salt == null ? null //
+				: iterations == null ? Passwords.LEGACY_ITERATIONS : iterations;
+		this.passwordResetCode = null;
+	}
+
+	/**
+	 * Returns true if this password has been hashed with legacy or outdated
+	 * parameters. Must be re-hashed with {@link #rehashPassword(String)} once
+	 * password has been checked.
+	 */
+	public boolean passwordNeedsRehash() {
+		return hashedPassword != null //
+				&& (passwordSalt == null //
+						|| passwordIterations == null //
+						|| passwordIterations != Passwords.iterations());
+	}
+
+	public void rehashPassword(String password) {
+		if (!passwordChecked)
+			throw Exceptions.passwordMustBeChallenged();
+
+		hashPassword(password);
+	}
+
+	private void hashPassword(String password) {
+		passwordSalt = Passwords.newSalt();
+		passwordIterations = Passwords.iterations();
+		hashedPassword = Passwords.hash(password, passwordSalt, passwordIterations);
+	}
+
 	public ObjectNode toJson() {
 		return Json.object(//
 				SpaceFieldNames.ID, id(), //
@@ -414,29 +517,14 @@ public class Credentials {
 	// Sessions and Access Tokens
 	//
 
-	public void setCurrentSession(String accessToken) {
-		boolean found = false;
-
-		if (sessions != null)
-			for (Session session : sessions)
-				if (accessToken.equals(session.accessToken)) {
-					currentSession = session;
-					found = true;
-				}
-
-		if (!found)
-			throw Exceptions.invalidAccessToken(backendId);
-
-	}
-
 	public void setCurrentSession(Session session) {
-
 		currentSession = session;
+	}
 
+	public Set<Session> legacySessions() {
 		if (sessions == null)
 			sessions = Sets.newHashSet();
-
-		sessions.add(currentSession);
+		return sessions;
 	}
 
 	public boolean hasCurrentSession() {
@@ -444,20 +532,7 @@ public class Credentials {
 	}
 
 	public void deleteCurrentSession() {
-		if (hasCurrentSession()) {
-			if (sessions != null)
-				sessions.remove(currentSession);
-			currentSession = null;
-		}
-	}
-
-	public void purgeExpiredSessions() {
-		if (sessions != null) {
-			Iterator<Session> iterator = sessions.iterator();
-			while (iterator.hasNext())
-				if (iterator.next().expiresIn() == 0)
-					iterator.remove();
-		}
+		currentSession = null;
 	}
 
 	//
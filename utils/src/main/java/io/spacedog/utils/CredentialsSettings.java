@@ -17,6 +17,9 @@ public class CredentialsSettings extends Settings {
 	public String linkedinFinalRedirectUri;
 	// in seconds
 	public long sessionMaximumLifetime = SESSION_DEFAULT_LIFETIME;
+	// stateless access tokens checked without any database access
+	// if enabled on servers, stored sessions are used otherwise
+	public boolean signedAccessTokens;
 
 	public String usernameRegex() {
 		return usernameRegex == null ? Usernames.USERNAME_DEFAULT_REGEX : usernameRegex;
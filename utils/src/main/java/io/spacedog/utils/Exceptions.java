@@ -64,6 +64,10 @@ public class Exceptions {
 		return new SpaceException("unchallenged-password", 403, "password must be challenged");
 	}
 
+	public static SpaceException tooManyRequests(String message, Object... args) {
+		return new SpaceException("too-many-requests", 429, message, args);
+	}
+
 	//
 	// 401
 	//
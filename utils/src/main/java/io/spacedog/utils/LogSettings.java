@@ -0,0 +1,42 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.utils;
+
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+public class LogSettings extends Settings {
+
+	public static final Set<String> defaultHeaders = ImmutableSet.of(//
+			SpaceHeaders.USER_AGENT, SpaceHeaders.CONTENT_TYPE, SpaceHeaders.CONTENT_LENGTH, //
+			SpaceHeaders.ORIGIN, SpaceHeaders.X_FORWARDED_FOR, SpaceHeaders.SPACEDOG_TEST);
+
+	// in days, only applies if shorter than the platform log retention,
+	// 0 means the platform log retention applies
+	public int retentionDays;
+
+	// in characters, longer request and response contents are truncated,
+	// 0 means contents are never truncated
+	public int maxContentLength = 10000;
+
+	// one successful GET request out of this rate is logged,
+	// failed requests are always logged
+	public int successfulGetSampleRate = 1;
+
+	// names of the logged request headers, authorization is never logged
+	public Set<String> headers = Sets.newHashSet(defaultHeaders);
+
+	public boolean isLogged(String header) {
+		if (header.equalsIgnoreCase(SpaceHeaders.AUTHORIZATION))
+			return false;
+
+		for (String name : headers)
+			if (name.equalsIgnoreCase(header))
+				return true;
+
+		return false;
+	}
+}
@@ -3,6 +3,7 @@
  */
 package io.spacedog.utils;
 
+import java.security.SecureRandom;
 import java.util.Optional;
 
 import javax.crypto.SecretKeyFactory;
@@ -30,16 +31,43 @@ public class Passwords {
 		Check.matchRegex(regex.orElse(PASSWORD_DEFAULT_REGEX), password, "password");
 	}
 
+	//
+	// Hashing
+	//
+
 	/**
-	 * ******* README ******* For now, I use hard coded salt and iteration
-	 * number (1000). If I decide to change this, I have to maintain this algo
-	 * and har coded values until all password hashed this way are hashed anoter
-	 * way. Salt and iterations could be saved in datastore close to the hashed
-	 * password.
+	 * Passwords hashed before salts and iterations were saved next to the
+	 * hashed password share these hard coded values. Credentials without salt
+	 * are re-hashed with current parameters on next successful login.
 	 */
+	public static final String LEGACY_SALT = "hjyuetcslhhjgl";
+	public static final int LEGACY_ITERATIONS = 1000;
+
+	private static int iterations = LEGACY_ITERATIONS;
+
+	public static int iterations() {
+		return iterations;
+	}
+
+	public static void iterations(int iterations) {
+		Check.isTrue(iterations > 0, "password hash iterations [%s] must be positive", iterations);
+		Passwords.iterations = iterations;
+	}
+
+	public static String newSalt() {
+		byte[] salt = new byte[16];
+		random.nextBytes(salt);
+		return DatatypeConverter.printHexBinary(salt);
+	}
+
 	public static String hash(String password) {
+		return hash(password, LEGACY_SALT, LEGACY_ITERATIONS);
+	}
+
+	public static String hash(String password, String salt, int iterations) {
 		try {
-			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), "hjyuetcslhhjgl".getBytes(), 1000, 64 * 8);
+			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), //
+					salt.getBytes(Utils.UTF8), iterations, 64 * 8);
 			SecretKeyFactory skf;
 			skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
 			return DatatypeConverter.printHexBinary(skf.generateSecret(spec).getEncoded());
@@ -48,4 +76,5 @@ public class Passwords {
 		}
 	}
 
+	private static SecureRandom random = new SecureRandom();
 }
@@ -0,0 +1,153 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import io.spacedog.utils.Schema.SchemaAcl;
+
+/**
+ * Immutable decision table compiled from schema settings. For each role, it
+ * holds a bitset of data permissions per type and the sorted array of types
+ * granted per permission. Types without acl get the default acl, as in
+ * {@link SchemaSettings#check(Credentials, String, DataPermission...)}.
+ */
+public class SchemaAclTable {
+
+	private static final String[] NO_TYPES = new String[0];
+	private static final int PERMISSION_COUNT = DataPermission.values().length;
+
+	// per type, the permission bitset of each role
+	private Map<String, Map<String, Integer>> types = Maps.newHashMap();
+	private Map<String, Integer> defaultAcl = Maps.newHashMap();
+	// per role, the sorted types granted by each permission
+	private Map<String, String[][]> roles = Maps.newHashMap();
+
+	public SchemaAclTable(SchemaSettings settings) {
+		SchemaAcl.defaultAcl().forEach(//
+				(role, permissions) -> defaultAcl.put(role, toBits(permissions)));
+
+		settings.acl.forEach((type, acl) -> types.put(type, //
+				acl == null ? defaultAcl : toBits(acl)));
+
+		Set<String> allRoles = Sets.newHashSet();
+		types.values().forEach(acl -> allRoles.addAll(acl.keySet()));
+
+		for (String role : allRoles) {
+			String[][] granted = new String[PERMISSION_COUNT][];
+			for (DataPermission permission : DataPermission.values())
+				granted[permission.ordinal()] = types.entrySet().stream()//
+						.filter(entry -> (entry.getValue().getOrDefault(role, 0) //
+								& toBit(permission)) != 0)//
+						.map(entry -> entry.getKey())//
+						.sorted()//
+						.toArray(String[]::new);
+			roles.put(role, granted);
+		}
+	}
+
+	public boolean check(Credentials credentials, String type, DataPermission... permissions) {
+		return check(credentials.roles(), type, permissions);
+	}
+
+	public boolean check(Collection<String> roles, String type, DataPermission... permissions) {
+		int mask = toBits(permissions);
+		Map<String, Integer> acl = types.getOrDefault(type, defaultAcl);
+
+		for (String role : roles) {
+			Integer bits = acl.get(role);
+			if (bits != null && (bits & mask) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	public String[] types(DataPermission permission, Credentials credentials) {
+		return types(permission, credentials.roles());
+	}
+
+	public String[] types(DataPermission permission, Collection<String> roles) {
+		String[] result = NO_TYPES;
+		boolean shared = true;
+
+		for (String role : roles) {
+			String[][] granted = this.roles.get(role);
+			if (granted == null)
+				continue;
+
+			String[] types = granted[permission.ordinal()];
+			if (types.length == 0)
+				continue;
+
+			if (result.length == 0)
+				result = types;
+			else {
+				result = merge(result, types);
+				shared = false;
+			}
+		}
+
+		// compiled arrays are never exposed to callers
+		return shared && result.length > 0 ? result.clone() : result;
+	}
+
+	//
+	// Implementation
+	//
+
+	private static Map<String, Integer> toBits(SchemaAcl acl) {
+		Map<String, Integer> bits = Maps.newHashMap();
+		acl.forEach((role, permissions) -> bits.put(role, toBits(permissions)));
+		return bits;
+	}
+
+	// merges two sorted arrays of distinct types
+	private static String[] merge(String[] left, String[] right) {
+		String[] result = new String[left.length + right.length];
+		int i = 0, j = 0, k = 0;
+
+		while (i < left.length && j < right.length) {
+			int comparison = left[i].compareTo(right[j]);
+			if (comparison < 0)
+				result[k++] = left[i++];
+			else if (comparison > 0)
+				result[k++] = right[j++];
+			else {
+				result[k++] = left[i++];
+				j++;
+			}
+		}
+		while (i < left.length)
+			result[k++] = left[i++];
+		while (j < right.length)
+			result[k++] = right[j++];
+
+		return k == result.length ? result : Arrays.copyOf(result, k);
+	}
+
+	private static int toBit(DataPermission permission) {
+		return 1 << permission.ordinal();
+	}
+
+	private static int toBits(Collection<DataPermission> permissions) {
+		int bits = 0;
+		if (permissions != null)
+			for (DataPermission permission : permissions)
+				bits |= toBit(permission);
+		return bits;
+	}
+
+	private static int toBits(DataPermission... permissions) {
+		int bits = 0;
+		for (DataPermission permission : permissions)
+			bits |= toBit(permission);
+		return bits;
+	}
+}
@@ -17,9 +17,12 @@ public interface SpaceFieldNames {
 	public static final String SESSIONS_ACCESS_TOKEN = SESSIONS + '.' + ACCESS_TOKEN;
 	public static final String EXPIRES_IN = "expiresIn";
 	public static final String HASHED_PASSWORD = "hashedPassword";
+	public static final String PASSWORD_SALT = "passwordSalt";
+	public static final String PASSWORD_ITERATIONS = "passwordIterations";
 	public static final String PASSWORD_RESET_CODE = "passwordResetCode";
 	public static final String CREDENTIALS_LEVEL = "level";
 	public static final String CREDENTIALS = "credentials";
+	public static final String CREDENTIALS_ID = "credentialsId";
 	public static final String ROLES = "roles";
 	public static final String ERROR = "error";
 
@@ -52,4 +52,35 @@ public class PasswordsTest extends Assert {
 	private void checkHashAreDifferent(String password, String other) {
 		assertNotEquals(Passwords.checkAndHash(password), Passwords.checkAndHash(other));
 	}
+
+	@Test
+	public void saltedHashesDependOnSaltAndIterations() {
+		String salt = Passwords.newSalt();
+		assertNotEquals(salt, Passwords.newSalt());
+		assertEquals(Passwords.hash("hi fred", salt, 1000), Passwords.hash("hi fred", salt, 1000));
+		assertNotEquals(Passwords.hash("hi fred", salt, 1000), Passwords.hash("hi fred", salt, 1001));
+		assertNotEquals(Passwords.hash("hi fred", salt, 1000), //
+				Passwords.hash("hi fred", Passwords.newSalt(), 1000));
+		assertEquals(Passwords.hash("hi fred"), //
+				Passwords.hash("hi fred", Passwords.LEGACY_SALT, Passwords.LEGACY_ITERATIONS));
+	}
+
+	@Test
+	public void legacyHashedPasswordsAreRehashedOnceChecked() {
+		Credentials credentials = Json.mapper().convertValue(//
+				Json.object(SpaceFieldNames.USERNAME, "fred", //
+						SpaceFieldNames.HASHED_PASSWORD, Passwords.hash("hi fred")),
+				Credentials.class);
+
+		assertTrue(credentials.passwordNeedsRehash());
+		assertFalse(credentials.checkPassword("hi vince"));
+		assertTrue(credentials.checkPassword("hi fred"));
+
+		credentials.rehashPassword("hi fred");
+		assertFalse(credentials.passwordNeedsRehash());
+		assertNotEquals(Passwords.hash("hi fred"), Json.mapper().valueToTree(credentials)//
+				.get(SpaceFieldNames.HASHED_PASSWORD).asText());
+		assertTrue(credentials.checkPassword("hi fred"));
+		assertFalse(credentials.checkPassword("hi vince"));
+	}
 }
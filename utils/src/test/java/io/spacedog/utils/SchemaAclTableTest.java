@@ -0,0 +1,61 @@
+/**
+ * © David Attias 2015
+ */
+package io.spacedog.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+import io.spacedog.utils.Credentials.Level;
+import io.spacedog.utils.Schema.SchemaAcl;
+
+public class SchemaAclTableTest extends Assert {
+
+	@Test
+	public void shouldDecideLikeSchemaSettings() {
+
+		SchemaSettings settings = new SchemaSettings();
+		settings.acl.put("car", SchemaAcl.defaultAcl());
+		settings.acl.put("message", new SchemaAcl()//
+				.set("user", DataPermission.read, DataPermission.search)//
+				.set("driver", DataPermission.update_all));
+		settings.acl.put("invoice", new SchemaAcl()//
+				.set("admin", DataPermission.read_all, DataPermission.delete_all)//
+				.set("driver"));
+		settings.acl.put("legacy", null);
+
+		SchemaAclTable table = new SchemaAclTable(settings);
+
+		List<String> types = Arrays.asList("car", "message", "invoice", "legacy", "unknown");
+		List<Credentials> credentialsList = Arrays.asList(//
+				credentials(Level.KEY), credentials(Level.USER), //
+				credentials(Level.USER, "driver"), credentials(Level.ADMIN), //
+				credentials(Level.USER, "driver", "manager"));
+
+		for (Credentials credentials : credentialsList) {
+			for (String type : types)
+				for (DataPermission permission : DataPermission.values()) {
+					assertEquals(settings.check(credentials, type, permission), //
+							table.check(credentials, type, permission));
+					assertEquals(settings.check(credentials, type, permission, DataPermission.search), //
+							table.check(credentials, type, permission, DataPermission.search));
+				}
+
+			for (DataPermission permission : DataPermission.values())
+				assertEquals(Sets.newHashSet(settings.types(permission, credentials)), //
+						Sets.newHashSet(table.types(permission, credentials)));
+		}
+	}
+
+	private static Credentials credentials(Level level, String... roles) {
+		Credentials credentials = new Credentials("test", "fred", level);
+		for (String role : roles)
+			credentials.roles().add(role);
+		return credentials;
+	}
+}
@@ -3,19 +3,28 @@
  */
 package io.spacedog.watchdog;
 
+import java.util.Base64;
+import java.util.Set;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import io.spacedog.client.SpaceClient;
 import io.spacedog.client.SpaceClient.Backend;
+import io.spacedog.client.SpaceClient.User;
 import io.spacedog.client.SpaceRequest;
 import io.spacedog.client.SpaceResponse;
+import io.spacedog.utils.BatchSettings;
+import io.spacedog.utils.DataPermission;
 import io.spacedog.utils.Json;
 import io.spacedog.utils.Schema;
+import io.spacedog.utils.Utils;
 import io.spacedog.watchdog.SpaceSuite.TestOften;
 
 @TestOften
@@ -261,4 +270,395 @@ public class BatchResourceTestOften extends Assert {
 		SpaceRequest.post("/1/batch").backend(test).body(bigBatch).go(400)//
 				.assertEquals("batch-limit-exceeded", "error.code");
 	}
+
+	@Test
+	public void executeParallelBatch() {
+
+		// prepare
+
+		SpaceClient.prepareTest();
+		Backend test = SpaceClient.resetTestBackend();
+		User vince = SpaceClient.signUp(test, "vince", "hi vince");
+		User dave = SpaceClient.signUp(test, "dave", "hi dave");
+		SpaceClient.setSchema(Schema.builder("message").id("code")//
+				.string("code").text("text").build(), test);
+
+		for (int i = 0; i < 10; i++)
+			SpaceRequest.post("/1/data/message").adminAuth(test)//
+					.body("code", String.valueOf(i), "text", "message " + i).go(201);
+
+		// should return parallel sub request responses in sub request order,
+		// all GET batches are run in parallel by default
+
+		ArrayNode batch = Json.array();
+		for (int i = 9; i >= 0; i--)
+			batch.add(Json.object("method", "GET", "path", "/1/data/message/" + i));
+
+		SpaceResponse response = SpaceRequest.post("/1/batch")//
+				.adminAuth(test).body(batch).go(200)//
+				.assertSizeEquals(10, "responses");
+
+		for (int i = 0; i < 10; i++)
+			response.assertEquals(200, "responses." + i + ".status")//
+					.assertEquals(String.valueOf(9 - i), "responses." + i + ".content.code");
+
+		// should also return writes in sub request order when forced in
+		// parallel
+
+		batch = Json.array();
+		for (int i = 0; i < 10; i++)
+			batch.add(i % 2 == 0 //
+					? Json.object("method", "GET", "path", "/1/data/message/" + i) //
+					: Json.object("method", "PUT", "path", "/1/data/message/" + i, //
+							"content", Json.object("text", "updated " + i)));
+
+		response = SpaceRequest.post("/1/batch").queryParam("parallel", "true")//
+				.adminAuth(test).body(batch).go(200)//
+				.assertSizeEquals(10, "responses");
+
+		for (int i = 0; i < 10; i++)
+			if (i % 2 == 0)
+				response.assertEquals(200, "responses." + i + ".status")//
+						.assertEquals(String.valueOf(i), "responses." + i + ".content.code");
+			else
+				response.assertEquals(200, "responses." + i + ".status")//
+						.assertEquals(String.valueOf(i), "responses." + i + ".id")//
+						.assertEquals(2, "responses." + i + ".version");
+
+		// should run sub requests one after the other and stop on first error
+		// even if parallel is asked
+
+		batch = Json.arrayBuilder()//
+				.object().put("method", "GET").put("path", "/1/data/message/0").end()//
+				.object().put("method", "GET").put("path", "/1/data/XXX").end()//
+				.object().put("method", "GET").put("path", "/1/data/message/1").end()//
+				.object().put("method", "GET").put("path", "/1/data/message/2").end()//
+				.build();
+
+		SpaceRequest.post("/1/batch").queryParam("parallel", "true")//
+				.queryParam("stopOnError", "true")//
+				.adminAuth(test).body(batch).go(200)//
+				.assertSizeEquals(2, "responses")//
+				.assertEquals(200, "responses.0.status")//
+				.assertEquals(404, "responses.1.status");
+
+		// parallel sub requests should share batch credentials and debug
+		// unless they have their own authorization header
+
+		batch = Json.arrayBuilder()//
+				.object().put("method", "GET").put("path", "/1/credentials/" + vince.id).end()//
+				.object().put("method", "GET").put("path", "/1/credentials/" + dave.id).end()//
+				.object().put("method", "GET").put("path", "/1/credentials/" + dave.id)//
+				.object("headers").put("Authorization", basicAuthorization(dave)).end().end()//
+				.object().put("method", "GET").put("path", "/1/data/message/0").end()//
+				.object().put("method", "GET").put("path", "/1/data/message/1").end()//
+				.build();
+
+		SpaceRequest.post("/1/batch").queryParam("parallel", "true")//
+				.debugServer().userAuth(vince).body(batch).go(200)//
+				.assertEquals(200, "responses.0.status")//
+				.assertEquals("vince", "responses.0.content.username")//
+				.assertEquals(403, "responses.1.status")//
+				.assertEquals(200, "responses.2.status")//
+				.assertEquals("dave", "responses.2.content.username")//
+				.assertEquals(200, "responses.3.status")//
+				.assertEquals(200, "responses.4.status")//
+				// batch credentials are checked once, dave's once more
+				.assertEquals(2, "debug.batchCredentialChecks")//
+				// worker elasticsearch calls are timed in batch debug
+				.assertNotNull("debug.timings.categories.elastic");
+
+		// batches in a parallel batch should run one after the other
+		// in their worker and still return responses in order
+
+		ArrayNode nested = Json.array();
+		for (int i = 0; i < 5; i++)
+			nested.add(Json.object("method", "GET", "path", "/1/data/message/" + i));
+
+		batch = Json.arrayBuilder()//
+				.object().put("method", "GET").put("path", "/1/data/message/9").end()//
+				.object().put("method", "POST").put("path", "/1/batch")//
+				.node("content", nested).end()//
+				.object().put("method", "POST").put("path", "/1/batch")//
+				.node("content", nested).end()//
+				.build();
+
+		response = SpaceRequest.post("/1/batch").queryParam("parallel", "true")//
+				.adminAuth(test).body(batch).go(200)//
+				.assertEquals(200, "responses.0.status")//
+				.assertEquals("9", "responses.0.content.code")//
+				.assertSizeEquals(5, "responses.1.responses")//
+				.assertSizeEquals(5, "responses.2.responses");
+
+		for (int i = 0; i < 5; i++)
+			response.assertEquals(String.valueOf(i), "responses.1.responses." + i + ".content.code")//
+					.assertEquals(String.valueOf(i), "responses.2.responses." + i + ".content.code");
+
+		// parallel logins should each create their own valid session
+
+		batch = Json.array();
+		for (int i = 0; i < 4; i++)
+			batch.add(Json.object("method", "GET", "path", "/1/login"));
+
+		response = SpaceRequest.post("/1/batch")//
+				.basicAuth(vince).body(batch).go(200)//
+				.assertSizeEquals(4, "responses");
+
+		Set<String> accessTokens = Sets.newHashSet();
+		for (int i = 0; i < 4; i++) {
+			String accessToken = response.assertEquals(200, "responses." + i + ".status")//
+					.getString("responses." + i + ".content.accessToken");
+			accessTokens.add(accessToken);
+
+			SpaceRequest.get("/1/login").bearerAuth(test, accessToken).go(200)//
+					.assertEquals(accessToken, "accessToken")//
+					.assertEquals("vince", "credentials.username");
+		}
+
+		assertEquals(4, accessTokens.size());
+	}
+
+	@Test
+	public void coalescedBatchesReturnSameResponses() {
+
+		// prepare
+
+		SpaceClient.prepareTest();
+		Backend test = SpaceClient.resetTestBackend();
+		User vince = SpaceClient.signUp(test, "vince", "hi vince");
+		User dave = SpaceClient.signUp(test, "dave", "hi dave");
+
+		Schema message = Schema.builder("message").id("code")//
+				.string("code").text("text").build();
+
+		// users can only read and write their own notes
+		Schema note = Schema.builder("note").id("code")//
+				.acl("user", DataPermission.create, DataPermission.read, //
+						DataPermission.update, DataPermission.delete)//
+				.string("code").text("text").build();
+
+		// users have no permission on secrets
+		Schema secret = Schema.builder("secret").id("code")//
+				.acl("admin", DataPermission.create, DataPermission.read_all, //
+						DataPermission.update_all, DataPermission.delete_all)//
+				.string("code").text("text").build();
+
+		Runnable reset = () -> {
+			SpaceClient.resetSchema(message, test);
+			SpaceClient.resetSchema(note, test);
+			SpaceClient.resetSchema(secret, test);
+
+			for (String code : new String[] { "1", "2" })
+				SpaceRequest.post("/1/data/message").adminAuth(test)//
+						.body("code", code, "text", "message " + code).go(201);
+
+			SpaceRequest.post("/1/data/secret").adminAuth(test)//
+					.body("code", "1", "text", "secret").go(201);
+			SpaceRequest.post("/1/data/note").userAuth(vince)//
+					.body("code", "vince", "text", "vince's note").go(201);
+			SpaceRequest.post("/1/data/note").userAuth(dave)//
+					.body("code", "dave", "text", "dave's note").go(201);
+		};
+
+		// creates, updates and deletes with version conflicts,
+		// missing objects and unknown types
+
+		ArrayNode batch = Json.array()//
+				.add(Json.object("method", "POST", "path", "/1/data/message", //
+						"content", Json.object("code", "3", "text", "message 3")))//
+				.add(Json.object("method", "POST", "path", "/1/data/message", //
+						"content", Json.object("code", "1", "text", "again")))//
+				.add(Json.object("method", "PUT", "path", "/1/data/message/1", //
+						"parameters", Json.object("version", 5), //
+						"content", Json.object("text", "conflict")))//
+				.add(Json.object("method", "PUT", "path", "/1/data/message/2", //
+						"parameters", Json.object("version", 1), //
+						"content", Json.object("text", "updated")))//
+				.add(Json.object("method", "PUT", "path", "/1/data/message/9", //
+						"content", Json.object("text", "missing")))//
+				.add(Json.object("method", "DELETE", "path", "/1/data/message/2"))//
+				.add(Json.object("method", "DELETE", "path", "/1/data/message/9"))//
+				.add(Json.object("method", "POST", "path", "/1/data/XXX", //
+						"content", Json.object("code", "1")))//
+				.add(Json.object("method", "PUT", "path", "/1/data/XXX/1", //
+						"content", Json.object("code", "1")))//
+				.add(Json.object("method", "DELETE", "path", "/1/data/XXX/1"));
+
+		assertCoalescedResponses(batch, test.adminUser, reset);
+
+		// gets of existing and missing objects and unknown types
+
+		batch = Json.array()//
+				.add(Json.object("method", "GET", "path", "/1/data/message/1"))//
+				.add(Json.object("method", "GET", "path", "/1/data/message/9"))//
+				.add(Json.object("method", "GET", "path", "/1/data/XXX/1"))//
+				.add(Json.object("method", "GET", "path", "/1/data/message/2"));
+
+		assertCoalescedResponses(batch, test.adminUser, reset);
+
+		// forbidden types and owner only permissions
+
+		batch = Json.array()//
+				.add(Json.object("method", "GET", "path", "/1/data/secret/1"))//
+				.add(Json.object("method", "GET", "path", "/1/data/note/vince"))//
+				.add(Json.object("method", "GET", "path", "/1/data/note/dave"))//
+				.add(Json.object("method", "GET", "path", "/1/data/message/1"));
+
+		assertCoalescedResponses(batch, vince, reset);
+
+		batch = Json.array()//
+				.add(Json.object("method", "POST", "path", "/1/data/secret", //
+						"content", Json.object("code", "2")))//
+				.add(Json.object("method", "PUT", "path", "/1/data/secret/1", //
+						"content", Json.object("text", "hacked")))//
+				.add(Json.object("method", "DELETE", "path", "/1/data/secret/1"))//
+				.add(Json.object("method", "POST", "path", "/1/data/note", //
+						"content", Json.object("code", "vince2", "text", "vince's other note")))//
+				.add(Json.object("method", "PUT", "path", "/1/data/note/dave", //
+						"content", Json.object("text", "hacked")))//
+				.add(Json.object("method", "PUT", "path", "/1/data/note/vince", //
+						"content", Json.object("text", "updated")))//
+				.add(Json.object("method", "DELETE", "path", "/1/data/note/dave"))//
+				.add(Json.object("method", "DELETE", "path", "/1/data/note/vince"))//
+				.add(Json.object("method", "GET", "path", "/1/data/note/vince"));
+
+		assertCoalescedResponses(batch, vince, reset);
+	}
+
+	@Test
+	public void executeStreamedBatch() {
+
+		// prepare
+
+		SpaceClient.prepareTest();
+		Backend test = SpaceClient.resetTestBackend();
+		SpaceClient.setSchema(Schema.builder("message").id("code")//
+				.string("code").text("text").build(), test);
+
+		for (int i = 0; i < 3; i++)
+			SpaceRequest.post("/1/data/message").adminAuth(test)//
+					.body("code", String.valueOf(i), "text", "message " + i).go(201);
+
+		// should succeed to stream batches of more than 10 sub requests
+		// and return responses in order
+
+		ArrayNode batch = Json.array();
+		for (int i = 0; i < 25; i++)
+			batch.add(Json.object("method", "GET", "path", "/1/data/message/" + (i % 3)));
+
+		SpaceResponse response = SpaceRequest.post("/1/batch/_stream")//
+				.adminAuth(test).body(batch).go(200)//
+				.assertEquals(25, "total")//
+				.assertSizeEquals(25, "responses")//
+				.assertNotNull("took");
+
+		assertFalse(response.has("error"));
+		for (int i = 0; i < 25; i++)
+			response.assertEquals(String.valueOf(i % 3), "responses." + i + ".content.code");
+
+		// should succeed to stream batches ending at and just after the
+		// default window of 100 sub requests
+
+		for (int size : new int[] { 99, 100, 101, 201 }) {
+			batch = Json.array();
+			for (int i = 0; i < size; i++)
+				batch.add(Json.object("method", "GET", "path", "/1/data/message/" + (i % 3)));
+
+			response = SpaceRequest.post("/1/batch/_stream")//
+					.adminAuth(test).body(batch).go(200)//
+					.assertEquals(size, "total")//
+					.assertSizeEquals(size, "responses")//
+					.assertEquals(String.valueOf((size - 1) % 3), //
+							"responses." + (size - 1) + ".content.code");
+			assertFalse(response.has("error"));
+		}
+
+		// should stop on the first error of the second window
+
+		batch = Json.array();
+		for (int i = 0; i < 150; i++)
+			batch.add(Json.object("method", "GET", //
+					"path", i == 100 ? "/1/data/XXX" : "/1/data/message/0"));
+
+		SpaceRequest.post("/1/batch/_stream").queryParam("stopOnError", "true")//
+				.adminAuth(test).body(batch).go(200)//
+				.assertEquals(101, "total")//
+				.assertEquals(200, "responses.99.status")//
+				.assertEquals(404, "responses.100.status");
+
+		// should run sub requests up to the backend limit
+		// and return the limit error in the trailing error field
+
+		BatchSettings settings = new BatchSettings();
+		settings.maxStreamedRequests = 5;
+		SpaceRequest.put("/1/settings/batch").adminAuth(test)//
+				.bodySettings(settings).go(200, 201);
+
+		batch = Json.array();
+		for (int i = 0; i < 7; i++)
+			batch.add(Json.object("method", "GET", "path", "/1/data/message/0"));
+
+		SpaceRequest.post("/1/batch/_stream")//
+				.adminAuth(test).body(batch).go(200)//
+				.assertEquals(5, "total")//
+				.assertSizeEquals(5, "responses")//
+				.assertEquals("batch-limit-exceeded", "error.code");
+
+		// should release streamed batch leases when done
+
+		settings.maxConcurrentStreams = 1;
+		SpaceRequest.put("/1/settings/batch").adminAuth(test)//
+				.bodySettings(settings).go(200, 201);
+
+		for (int i = 0; i < 3; i++)
+			SpaceRequest.post("/1/batch/_stream")//
+					.adminAuth(test).body(Json.array(batch.get(0))).go(200)//
+					.assertEquals(1, "total");
+
+		// should fail with 429 when backend streamed batches
+		// in progress exceed the maximum
+
+		settings.maxConcurrentStreams = 0;
+		SpaceRequest.put("/1/settings/batch").adminAuth(test)//
+				.bodySettings(settings).go(200, 201);
+
+		SpaceRequest.post("/1/batch/_stream")//
+				.adminAuth(test).body(batch).go(429);
+	}
+
+	/**
+	 * Runs the specified batch twice from the same data, first with data sub
+	 * requests coalesced, then one by one, and checks responses are the
+	 * same but for object timestamps.
+	 */
+	private static void assertCoalescedResponses(ArrayNode batch, User user, Runnable reset) {
+
+		reset.run();
+		JsonNode coalesced = SpaceRequest.post("/1/batch")//
+				.userAuth(user).body(batch).go(200).get("responses");
+
+		// sub requests with headers are never coalesced
+		ArrayNode singles = batch.deepCopy();
+		singles.forEach(request -> ((ObjectNode) request).putObject("headers"));
+
+		reset.run();
+		JsonNode notCoalesced = SpaceRequest.post("/1/batch")//
+				.userAuth(user).body(singles).go(200).get("responses");
+
+		assertEquals(withoutTimestamps(notCoalesced), withoutTimestamps(coalesced));
+	}
+
+	private static JsonNode withoutTimestamps(JsonNode responses) {
+		for (JsonNode response : responses) {
+			JsonNode meta = response.path("content").path("meta");
+			if (meta.isObject())
+				((ObjectNode) meta).remove(Lists.newArrayList("createdAt", "updatedAt"));
+		}
+		return responses;
+	}
+
+	private static String basicAuthorization(User user) {
+		return "Basic " + Base64.getEncoder().encodeToString(//
+				(user.username + ':' + user.password).getBytes(Utils.UTF8));
+	}
 }
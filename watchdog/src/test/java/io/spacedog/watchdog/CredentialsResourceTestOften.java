@@ -315,7 +315,8 @@ public class CredentialsResourceTestOften extends Assert {
 		User vince = SpaceClient.signUp(test, "vince", "hi vince");
 
 		// vince searches for all credentials
-		SpaceRequest.get("/1/credentials").userAuth(vince).go(200)//
+		// refresh since credentials creation does not refresh index anymore
+		SpaceRequest.get("/1/credentials").refresh().userAuth(vince).go(200)//
 				.assertEquals(3, "total")//
 				.assertSizeEquals(3, "results")//
 				.assertContainsValue("test", "username")//
@@ -360,12 +361,17 @@ public class CredentialsResourceTestOften extends Assert {
 				.assertSizeEquals(1, "results")//
 				.assertContainsValue("test", "username");
 
+		// usernames of credentials deleted by query are released
+		SpaceClient.signUp(test, "vince", "hi vince");
+
 		// super admin deletes all credentials but himself
 		SpaceRequest.delete("/1/credentials").adminAuth(test).go(200);
 
 		SpaceRequest.get("/1/credentials").adminAuth(test).go(200)//
 				.assertSizeEquals(1, "results")//
 				.assertContainsValue("test", "username");
+
+		SpaceClient.signUp(test, "vince", "hi vince");
 	}
 
 	@Test
@@ -896,21 +902,15 @@ public class CredentialsResourceTestOften extends Assert {
 		SpaceRequest.get("/1/data").backend(test).bearerAuth(firstToken).go(401)//
 				.assertEquals("expired-access-token", "error.code");
 
-		// check session has expired a second time
-		// this means expired session has not yet been purged
-		SpaceRequest.get("/1/data").backend(test).bearerAuth(firstToken).go(401)//
-				.assertEquals("expired-access-token", "error.code");
-
 		// superadmin logs in again and create a second session
-		// this means superadmin credentials is updated
-		// this means expired session token are purged
+		// this does not update superadmin credentials
 		SpaceClient.login(test.adminUser);
 
-		// check expired session token is "invalid"
-		// this means expired session has been purged
-		// and its token is no longer present in spacedog
+		// check session has still expired
+		// this means expired session has not yet been purged
+		// expired sessions are deleted in background by the sweeper
 		SpaceRequest.get("/1/data").backend(test).bearerAuth(firstToken).go(401)//
-				.assertEquals("invalid-access-token", "error.code");
+				.assertEquals("expired-access-token", "error.code");
 
 	}
 
@@ -3,17 +3,29 @@
  */
 package io.spacedog.watchdog;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
 import org.joda.time.DateTime;
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 
 import io.spacedog.client.SpaceClient;
 import io.spacedog.client.SpaceClient.Backend;
+import io.spacedog.client.SpaceClient.User;
 import io.spacedog.client.SpaceRequest;
 import io.spacedog.client.SpaceResponse;
+import io.spacedog.utils.DataPermission;
 import io.spacedog.utils.Json;
+import io.spacedog.utils.Schema;
+import io.spacedog.utils.Utils;
 import io.spacedog.watchdog.SpaceSuite.TestOften;
 
 @TestOften
@@ -86,4 +98,175 @@ public class DataResourceTestOften extends Assert {
 		SpaceRequest.delete("/1/data/car/" + id).userAuth(vince).go(200);
 		SpaceRequest.get("/1/data/car/" + id).userAuth(vince).go(404);
 	}
+
+	@Test
+	public void importObjects() {
+
+		// prepare
+
+		SpaceClient.prepareTest();
+		Backend test = SpaceClient.resetTestBackend();
+		User vince = SpaceClient.signUp(test, "vince", "hi vince");
+		SpaceClient.setSchema(Schema.builder("message").id("code")//
+				.string("code").text("text").build(), test);
+		SpaceClient.setSchema(Schema.builder("note")//
+				.text("text").build(), test);
+
+		// should import valid lines and return failed lines with their
+		// number, in bulks of 2 objects
+
+		String ndjson = String.join("\n", //
+				"{\"code\":\"1\",\"text\":\"one\"}", //
+				"not json", //
+				"", //
+				"{\"code\":\"2\",\"text\":\"two\"}", //
+				"{\"text\":\"no code\"}", //
+				"{\"code\":\"3\",\"text\":{\"not\":\"text\"}}", //
+				"{\"code\":\"1\",\"text\":\"one again\"}");
+
+		SpaceRequest.post("/1/data/message/_import").refresh()//
+				.queryParam("batchSize", "2").userAuth(vince).body(ndjson).go(200)//
+				.assertEquals(6, "total")//
+				.assertEquals(3, "created")//
+				.assertEquals(3, "failed")//
+				.assertSizeEquals(3, "failures")//
+				.assertEquals(2, "failures.0.line")//
+				.assertEquals(400, "failures.0.status")//
+				.assertEquals(5, "failures.1.line")//
+				.assertEquals(400, "failures.1.status")//
+				.assertEquals(6, "failures.2.line")//
+				.assertEquals(400, "failures.2.status");
+
+		// objects should get their id from the schema id path
+
+		SpaceRequest.get("/1/data/message/1").userAuth(vince).go(200)//
+				.assertEquals("one again", "text")//
+				.assertEquals("vince", "meta.createdBy");
+
+		SpaceRequest.get("/1/data/message/2").userAuth(vince).go(200)//
+				.assertEquals("two", "text");
+
+		SpaceRequest.get("/1/data/message/3").userAuth(vince).go(404);
+
+		SpaceRequest.get("/1/data/message").userAuth(vince).go(200)//
+				.assertEquals(2, "total");
+
+		// objects of types without id path should get generated ids
+
+		SpaceRequest.post("/1/data/note/_import").refresh()//
+				.userAuth(vince).body("{\"text\":\"a\"}\n{\"text\":\"b\"}\n").go(200)//
+				.assertEquals(2, "created")//
+				.assertEquals(0, "failed");
+
+		SpaceRequest.get("/1/data/note").userAuth(vince).go(200)//
+				.assertEquals(2, "total");
+
+		// batch size should be between 1 and 10000
+
+		SpaceRequest.post("/1/data/note/_import").queryParam("batchSize", "0")//
+				.userAuth(vince).body("{\"text\":\"c\"}").go(400);
+		SpaceRequest.post("/1/data/note/_import").queryParam("batchSize", "10001")//
+				.userAuth(vince).body("{\"text\":\"c\"}").go(400);
+		SpaceRequest.post("/1/data/note/_import").queryParam("batchSize", "1")//
+				.userAuth(vince).body("{\"text\":\"c\"}").go(200)//
+				.assertEquals(1, "created");
+		SpaceRequest.post("/1/data/note/_import").queryParam("batchSize", "10000")//
+				.userAuth(vince).body("{\"text\":\"d\"}").go(200)//
+				.assertEquals(1, "created");
+
+		// should fail to import without create permission
+
+		SpaceRequest.post("/1/data/note/_import").backend(test)//
+				.body("{\"text\":\"e\"}").go(403);
+
+		SpaceClient.setSchema(Schema.builder("secret")//
+				.acl("user", DataPermission.read_all, DataPermission.search)//
+				.text("text").build(), test);
+
+		SpaceRequest.post("/1/data/secret/_import").userAuth(vince)//
+				.body("{\"text\":\"e\"}").go(403);
+
+		SpaceRequest.get("/1/data/secret").refresh().userAuth(vince).go(200)//
+				.assertEquals(0, "total");
+	}
+
+	@Test
+	public void exportObjects() throws IOException {
+
+		// prepare
+
+		SpaceClient.prepareTest();
+		Backend test = SpaceClient.resetTestBackend();
+		User vince = SpaceClient.signUp(test, "vince", "hi vince");
+		SpaceClient.setSchema(Schema.builder("message").id("code")//
+				.string("code").text("text").build(), test);
+
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 0; i < 25; i++)
+			ndjson.append(Json.object("code", String.valueOf(i), //
+					"text", i % 5 == 0 ? "hello " + i : "bye " + i)).append('\n');
+
+		SpaceRequest.post("/1/data/message/_import").refresh()//
+				.userAuth(vince).body(ndjson.toString()).go(200)//
+				.assertEquals(25, "created");
+
+		// should export all objects in pages smaller than the number of
+		// objects, one object per line with its meta
+
+		String export = SpaceRequest.get("/1/data/message/_export")//
+				.queryParam("size", "10").userAuth(vince).go(200)//
+				.string();
+
+		Map<String, ObjectNode> objects = toObjects(export);
+		assertEquals(25, objects.size());
+		assertEquals("bye 7", objects.get("7").get("text").asText());
+		assertEquals("message", objects.get("7").get("meta").get("type").asText());
+		assertEquals(1, objects.get("7").get("meta").get("version").asInt());
+
+		// should only export objects matching the q filter
+
+		export = SpaceRequest.get("/1/data/message/_export")//
+				.queryParam("q", "hello").queryParam("size", "2")//
+				.userAuth(vince).go(200)//
+				.string();
+
+		assertEquals(Sets.newHashSet("0", "5", "10", "15", "20"), toObjects(export).keySet());
+
+		// should export gzipped objects as an attachment
+
+		SpaceResponse response = SpaceRequest.get("/1/data/message/_export")//
+				.queryParam("gzip", "true").userAuth(vince).go(200);
+
+		assertEquals("application/gzip", response.contentType());
+		assertTrue(response.headerFirst("Content-Disposition")//
+				.contains("filename=\"message.ndjson.gz\""));
+
+		export = new String(ByteStreams.toByteArray(//
+				new GZIPInputStream(new ByteArrayInputStream(response.bytes()))), Utils.UTF8);
+
+		objects = toObjects(export);
+		assertEquals(25, objects.size());
+		assertEquals("hello 20", objects.get("20").get("text").asText());
+
+		// should fail to export without search permission
+
+		SpaceRequest.get("/1/data/message/_export").backend(test).go(403);
+
+		SpaceClient.setSchema(Schema.builder("secret")//
+				.acl("user", DataPermission.create, DataPermission.read)//
+				.text("text").build(), test);
+
+		SpaceRequest.get("/1/data/secret/_export").userAuth(vince).go(403);
+	}
+
+	// per id, exported objects
+	private static Map<String, ObjectNode> toObjects(String ndjson) {
+		Map<String, ObjectNode> objects = Maps.newHashMap();
+		for (String line : ndjson.split("\n"))
+			if (!line.isEmpty()) {
+				ObjectNode object = Json.readObject(line);
+				objects.put(object.get("meta").get("id").asText(), object);
+			}
+		return objects;
+	}
 }
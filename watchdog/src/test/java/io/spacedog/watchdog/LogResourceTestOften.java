@@ -6,6 +6,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.Sets;
 
 import io.spacedog.client.SpaceClient;
 import io.spacedog.client.SpaceClient.Backend;
@@ -14,6 +15,7 @@ import io.spacedog.client.SpaceRequest;
 import io.spacedog.client.SpaceResponse;
 import io.spacedog.utils.Backends;
 import io.spacedog.utils.Json;
+import io.spacedog.utils.LogSettings;
 import io.spacedog.utils.Schema;
 import io.spacedog.watchdog.SpaceSuite.TestOften;
 
@@ -437,20 +439,43 @@ public class LogResourceTestOften extends Assert {
 				.assertEquals("/1/log", "results.0.path")//
 				.assertNotPresent("results.0.response.results");
 
-		// Headers are logged if not empty
+		// Headers are logged if allowed by log settings and not empty
+		LogSettings settings = new LogSettings();
+		settings.headers.addAll(Sets.newHashSet("x-empty", "x-blank", "x-color", "x-color-list"));
+		SpaceRequest.put("/1/settings/log").adminAuth(test).bodySettings(settings).go(201);
+
 		SpaceRequest.get("/1/log").adminAuth(test)//
 				.header("x-empty", "")//
 				.header("x-blank", " ")//
 				.header("x-color", "YELLOW")//
 				.header("x-color-list", "RED,BLUE,GREEN")//
+				.header("x-other", "GREY")//
 				.go(200);
 
 		SpaceRequest.get("/1/log").size(1).adminAuth(test).go(200)//
+				.assertNotPresent("results.0.headers.x-other")//
 				.assertNotPresent("results.0.headers.x-empty")//
 				.assertNotPresent("results.0.headers.x-blank")//
 				.assertEquals("YELLOW", "results.0.headers.x-color")//
 				.assertEquals("RED", "results.0.headers.x-color-list.0")//
 				.assertEquals("BLUE", "results.0.headers.x-color-list.1")//
 				.assertEquals("GREEN", "results.0.headers.x-color-list.2");
+
+		// streamed searches log their query and a response summary
+		SpaceClient.setSchema(Schema.builder("message").text("text").build(), test);
+		SpaceRequest.post("/1/data/message").adminAuth(test).body("text", "hello").go(201);
+
+		SpaceRequest.post("/1/search/message").refresh().adminAuth(test)//
+				.body(Json.object("query", Json.object("match_all", Json.object())))//
+				.go(200)//
+				.assertEquals(1, "total");
+
+		SpaceRequest.get("/1/log").size(1).adminAuth(test).go(200)//
+				.assertEquals("POST", "results.0.method")//
+				.assertEquals("/1/search/message", "results.0.path")//
+				.assertEquals(Json.object(), "results.0.jsonContent.query.match_all")//
+				.assertEquals(1, "results.0.response.total")//
+				.assertNotNull("results.0.response.took")//
+				.assertNotPresent("results.0.response.results");
 	}
 }